@@ -1,29 +1,45 @@
 package sharingsystem;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Action implements Runnable {
   
   /**
-   * The list of sockets.
+   * The connections to the servers.
    */
-  private List<Socket> socket;
+  private PeerConnections connections;
+  /**
+   * The answers of the searches, so that files downloaded again are not searched again.
+   */
+  private LookupCache lookups;
+  /**
+   * The files waiting to be replicated in the background, started with the first file to replicate.
+   */
+  private ReplicationQueue replication;
+  /**
+   * The multiplexers sending searches and downloads, one per server, opened when first needed.
+   * A server gets a connection for them, apart from its message stream, so that they are not held up by the messages
+   * waiting for an answer in order.
+   */
+  private final AtomicReferenceArray<Multiplexer> multiplexers = new AtomicReferenceArray<Multiplexer>(Constant.MAX_SERVER);
+  /**
+   * The locks opening the multiplexers, one per server, so that a server slow to connect holds up its own callers only.
+   */
+  private final Object multiplexerLocks[] = new Object[Constant.MAX_SERVER];
   /**
    * The Id of the peer
    */
@@ -33,125 +49,268 @@ public class Action implements Runnable {
    * @param serverId - The Id of the peer
    */
   public Action(int serverId) {
-    this.socket = new ArrayList<Socket>();
+    this();
     this.myId = serverId;
   }
   /**
    * Default constructor. Get the socket list ready.
    */
   public Action() {
-    this.socket = new ArrayList<Socket>();
+    this.connections = PeerConnections.get();
+    this.lookups = newLookupCache();
     this.myId = 0;
+    for (int i = 0; i < multiplexerLocks.length; i++) {
+      multiplexerLocks[i] = new Object();
+    }
+  }
+
+  private static LookupCache newLookupCache() {
+    return new LookupCache(ConfigurationFile.getLookupCacheSize(),ConfigurationFile.getLookupCacheTtl()*1000L,
+        Constant.LOOKUP_NEGATIVE_TTL);
   }
 
   /**
-   * The function initiates a socket connection to a server among the 8 listed in the configuration file.
+   * @return lookups - The cache of the answers of the searches.
+   */
+  public LookupCache getLookupCache() {
+    return lookups;
+  }
+
+  /**
+   * The function returns the queue replicating the files of the peer in the background, starting it if it was not done
+   * yet. The actions of a peer share its queue.
+   * @return replication - The queue, or null if the files are replicated during the registration.
+   */
+  public synchronized ReplicationQueue getReplicationQueue() {
+    int threads = ConfigurationFile.getReplicationThreads();
+    if(replication == null && threads > 0) {
+      replication = ReplicationQueue.get(this,myId,getReplicationFile(),threads);
+    }
+    return replication;
+  }
+
+  /**
+   * The function initiates a new socket connection to a server among the 8 listed in the configuration file,
+   * apart from the pool of connections. It must be closed by the caller.
+   * The protocol of the connection is the one chosen in the configuration file.
    * @param serverNb - The number of the server to connect.
-   * @return
+   * @return stream - The message stream of the connection, or null if the connection failed.
    */
-  public Socket connectToServer(int serverNb) {
-    Socket socket=null;
+  public MessageStream connectToServer(int serverNb) {
+    MessageStream stream=null;
     try {
-      socket = new Socket(InetAddress.getByName(ConfigurationFile.getClientIp()[serverNb-1]),
-          ConfigurationFile.getClientPort()[serverNb-1]);
+      stream = connections.connect(serverNb);
     } catch (UnknownHostException e) {
       System.out.println("Could not connect to server. Unknown host.");
     } catch (IOException e) {
       System.out.println("An error occurred creating a socket.");
     }
-    return socket;
+    return stream;
+  }
+  
+  /**
+   * The function starts connecting to all the servers at once, without waiting for them.
+   * Connections are otherwise opened when first needed.
+   */
+  public void connect() {
+    connections.warmUp();
+  }
+
+  /**
+   * The function takes a connection to a server from the pool of connections, connecting it if needed.
+   * It must be given back by release().
+   * @param serverNb - The number of the server.
+   * @return stream - The message stream of the connection, or null if the server could not be connected.
+   */
+  public MessageStream acquire(int serverNb) {
+    try {
+      return connections.acquire(serverNb);
+    } catch (IOException e) {
+      System.out.println("Could not connect to server "+serverNb+". "+e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * The function gives back a connection taken by acquire(). A connection which failed was closed and is not used again.
+   * @param serverNb - The number of the server.
+   * @param stream - The message stream of the connection.
+   */
+  public void release(int serverNb, MessageStream stream) {
+    connections.release(serverNb,stream);
   }
   
+  /**
+   * The function returns the multiplexer of a server, opening its connection if it was not done yet or if it failed.
+   * An open multiplexer is returned without locking. The connection is opened under the lock of the server only.
+   * @param serverNb - The number of the server.
+   * @return multiplexer - The multiplexer, or null if multiplexing is disabled or the connection does not use the binary protocol.
+   */
+  public Multiplexer getMultiplexer(int serverNb) {
+    if(!ConfigurationFile.isMultiplex() || ConfigurationFile.getProtocol().equals(Constant.PROTOCOL_LEGACY)) {
+      return null;
+    }
+    Multiplexer multiplexer = multiplexers.get(serverNb-1);
+    if(multiplexer != null && multiplexer.isOpen()) {
+      return multiplexer;
+    }
+    synchronized(multiplexerLocks[serverNb-1]) {
+      multiplexer = multiplexers.get(serverNb-1);
+      if(multiplexer != null && multiplexer.isOpen()) {
+        return multiplexer;
+      }
+      multiplexer = null;
+      MessageStream connection = connectToServer(serverNb);
+      if(connection != null) {
+        try {
+          multiplexer = Multiplexer.open(connection);
+        } catch (IOException e) {
+          connection.close();
+        }
+      }
+      multiplexers.set(serverNb-1,multiplexer);
+      return multiplexer;
+    }
+  }
+
+  /**
+   * The function sends a search to a server and returns its answer.
+   * The search goes through the multiplexer of the server if there is one, and through its message stream otherwise.
+   * @param serverNb - The number of the server.
+   * @param message - The search.
+   * @return message - The answer. An error message if no answer was received.
+   */
+  public Message search(int serverNb, Message message) {
+    Multiplexer multiplexer = getMultiplexer(serverNb);
+    if(multiplexer != null) {
+      try {
+        return multiplexer.request(message);
+      } catch (IOException e) {
+        System.out.println("The search could not be multiplexed. It is sent on the message stream.");
+      }
+    }
+    MessageStream stream = acquire(serverNb);
+    if(stream == null) {
+      return new Message(Constant.ERROR_HEADER,null,null);
+    }
+    try {
+      sendMessage(stream,message);
+      return receiveMessage(stream);
+    } finally {
+      release(serverNb,stream);
+    }
+  }
+
   /**
    * The function finds the server having the corresponding key.
+   * It is the owner of the key on the consistent-hash ring.
    * @param key - The key.
    * @return - serverNb - The number of the server.
    */
   public int getServer(String key) {
-    int hashcode = Integer.parseInt(key);
-    int serverNb=0;
-    for(int i=0;i<ConfigurationFile.getClientNumber();i++) {
-      if(hashcode < (i+1)*Constant.MAX/ConfigurationFile.getClientNumber()) {
-        serverNb=i+1;
-        break;
-      }
-    }
-    return serverNb;
+    return HashRing.get().owner(HashRing.position(Key.parse(key)));
   }
   
   /**
-   * The function sends a message to a server through a socket. The first 4 bits correspond to the header.
-   * The next 20 bits correspond to the key and the last 1000 bits correspond to the value.
-   * @param socket - The socket connected to the server.
+   * The function sends a message to a server through its message stream.
+   * @param stream - The message stream connected to the server.
    * @param header - The header sent before the message.
    * @param key - The key.
    * @param value - The value.
    * @return result - True or false depending if the message was sent.
    */
-  public boolean sendMessage(Socket socket,String header, String key, String value) {
-    boolean result=false;
-    ObjectOutputStream out;
+  public boolean sendMessage(MessageStream stream,String header, String key, String value) {
+    return sendMessage(stream,new Message(header,key,value));
+  }
+
+  /**
+   * The function sends a message to a server through its message stream.
+   * The stream is closed if the message could not be sent, so that it is not used again.
+   * @param stream - The message stream connected to the server.
+   * @param message - The message.
+   * @return result - True or false depending if the message was sent.
+   */
+  public boolean sendMessage(MessageStream stream, Message message) {
+    String header = message.getHeader();
+    if (!(header.equals(Constant.REGISTER_HEADER) || header.equals(Constant.DOWNLOAD_HEADER) ||
+        header.equals(Constant.SEARCH_HEADER) || header.equals(Constant.REPLICATE_HEADER)
+        || header.equals(Constant.DOWNLOAD_REPLICA_HEADER) || header.equals(Constant.SUCCESS_HEADER)
+        || header.equals(Constant.BATCH_HEADER) || header.equals(Constant.UNREGISTER_HEADER)
+        || header.equals(Constant.CHECKSUM_HEADER) || header.equals(Constant.DELTA_HEADER))) {
+      return false;
+    }
     try {
-      out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-      byte[] headerByte = new byte[4];
-      byte[] keyByte = new byte[20];
-      byte[] valueByte = new byte[1000];
-      byte[] message = new byte[1024];
-      if (!(header.equals(Constant.REGISTER_HEADER) || header.equals(Constant.DOWNLOAD_HEADER) ||
-          header.equals(Constant.SEARCH_HEADER) || header.equals(Constant.REPLICATE_HEADER)
-          || header.equals(Constant.DOWNLOAD_REPLICA_HEADER) || header.equals(Constant.SUCCESS_HEADER))) {
-        return false;
-      }
-      headerByte=header.getBytes();
-      keyByte=key.getBytes();
-      valueByte=value.getBytes();
-      System.arraycopy(headerByte, 0, message, 0, headerByte.length);
-      System.arraycopy(keyByte, 0, message, 4, keyByte.length);
-      System.arraycopy(valueByte, 0, message, 24, valueByte.length);
-      out.write(message);
-      out.flush();
+      stream.send(message);
       return true;
     } catch (IOException e) {
       System.out.println("The client tried to send a message but it failed.");
+      stream.close();
     }
-    return result;
+    return false;
   }
   
   /**
-   * The function receives a message from a server and returns it as a String.
-   * @param socket - The socket connected to the server.
-   * @return message - The message from the server.
+   * The function receives a message from a server.
+   * The stream is closed if no message could be received, so that it is not used again.
+   * @param stream - The message stream connected to the server.
+   * @return message - The message from the server. An error message if no message was received.
    */
-  public String receiveMessage(Socket socket) {
-    ObjectInputStream in;
-    String message="";
+  public Message receiveMessage(MessageStream stream) {
     try {
-      in = new ObjectInputStream (socket.getInputStream());
-      byte buffer[] = new byte[1024];
-      in.read(buffer);
-      String header=new String(Arrays.copyOfRange(buffer,0,4));
-      String key=new String(Arrays.copyOfRange(buffer,4,24));
-      String value=new String(Arrays.copyOfRange(buffer,24,1024));
-      message=header+Constant.TOKEN+convertString(key)+Constant.TOKEN+convertString(value);
+      return stream.receive();
     } catch (IOException e) {
       System.out.println("The client tried to receive a message but no message was received.");
+      stream.close();
     }
-    return message;
+    return new Message(Constant.ERROR_HEADER,null,null);
   }
   
   /**
-   * The hash function. It transforms a value into a key.
+   * The hash function. It transforms a value into a key, the 64-bit xxHash of the value written as 16 hexadecimal digits.
    * @param value - The value.
    * @return key - The key.
    */
   public String hash(String value) {
-    String key=null;
-    int nb=value.hashCode()%Constant.MAX;
-    if(nb < 0) {
-      nb=-nb;
+    return Key.format(Key.of(value));
+  }
+
+  /**
+   * The hash function of the content of a file. It transforms the bytes of the file into a key.
+   * @param file - The file.
+   * @return key - The key.
+   * @throws IOException - If the file could not be read.
+   */
+  public String hashContent(File file) throws IOException {
+    XXHash64 hash = new XXHash64();
+    byte buffer[] = new byte[64*1024];
+    InputStream in = new FileInputStream(file);
+    try {
+      int n;
+      while((n = in.read(buffer)) != -1) {
+        hash.update(buffer,0,n);
+      }
+    } finally {
+      in.close();
+    }
+    return Key.format(hash.digest());
+  }
+
+  /**
+   * The function returns the key placing the replicas of a file: the key of its name,
+   * or the key of its content if the key mode of the configuration file is 'content'.
+   * @param file - The file.
+   * @return key - The key.
+   * @throws RegistrationException - If the file could not be read.
+   */
+  public String replicaKey(File file) throws RegistrationException {
+    if(!ConfigurationFile.getKeyMode().equals(Constant.KEY_CONTENT)) {
+      return hash(file.getName());
+    }
+    try {
+      return hashContent(file);
+    } catch (IOException e) {
+      throw new RegistrationException();
     }
-    key = Integer.toString(nb);
-    return key;
   }
   
   /**
@@ -179,127 +338,312 @@ public class Action implements Runnable {
   
   /**
    * The method registers files that are in the shared directory defined in the configuration file.
+   * The directory is scanned on several threads by a ShareScanner. If the index is durable, the files registered are kept
+   * in a ShareManifest, and only the files added or changed since the last run are registered, the deleted ones
+   * being unregistered.
+   * The files are registered in batches unless the batch size of the configuration file is 1.
+   * The number of files registered per second is printed.
    */
-  public void register(OutputStream[] out) {
+  public void register() {
     File shareDirectory = new File(ConfigurationFile.getShareDirectory());
-    registerDirectory(shareDirectory,out);
-  }
-  
-  /**
-   * The recursive method registerDirectory check the content of a directory and registers it to the decentralized indexing server.
-   * Directories are not registered but their content is checked.
-   * Found files are registered through the registerFile method.
-   * @param shareDirectory - The directory to check for registration
-   */
-  public void registerDirectory (File shareDirectory, OutputStream[] out) {
-    if (shareDirectory.isDirectory()) {
-      File[] list = shareDirectory.listFiles();
-      for (int i = 0; i<list.length;i++) {
-        registerDirectory(list[i],out);
-        if(list[i].isFile()) {
+    long start = System.nanoTime();
+    ShareManifest manifest = ShareManifest.load(getManifestFile());
+    ShareScanner scanner = new ShareScanner(shareDirectory,manifest);
+    scanner.run(Math.max(4,Runtime.getRuntime().availableProcessors()));
+    List<ShareManifest.Entry> files = scanner.getUnchanged();
+    List<ShareManifest.Entry> changed = scanner.getChanged();
+    List<File> registered = registerFiles(toFiles(scanner,changed));
+    replicateFiles(registered);
+    Set<File> done = new HashSet<File>(registered);
+    int unchanged = files.size();
+    for (ShareManifest.Entry entry : changed) {
+      if (done.contains(scanner.getFile(entry))) {
+        files.add(entry);
+      }
+    }
+    List<ShareManifest.Entry> deleted = scanner.getDeleted();
+    if (!deleted.isEmpty()) {
+      Set<String> names = new HashSet<String>();
+      for (ShareManifest.Entry entry : files) {
+        names.add(entry.getName());
+      }
+      for (ShareManifest.Entry entry : deleted) {
+        if (!names.contains(entry.getName())) {
           try {
-            registerFile(list[i],out);
+            unregisterFile(entry.getName());
           } catch (ServerNotFoundException e) {
             System.out.println("A server could not be found.");
           } catch (RegistrationException e) {
-            System.out.println("Some files were not registered.");
+            System.out.println("The deleted file "+entry.getName()+" could not be unregistered.");
           }
         }
       }
     }
+    try {
+      manifest.save(files);
+    } catch (IOException e) {
+      System.out.println("The manifest of the shared directory could not be written.");
+    }
+    long elapsed = System.nanoTime()-start;
+    System.out.println(String.format("%d files registered, %d unchanged and %d deleted in %d ms (%.0f files per second).",
+        registered.size(),unchanged,deleted.size(),elapsed/1000000,(registered.size()+unchanged)*1e9/Math.max(1,elapsed)));
+    if(replication != null) {
+      System.out.println(replication.report());
+    }
+    if(ConfigurationFile.isCompression()) {
+      System.out.println(Compression.report());
+    }
+    if(ConfigurationFile.isDeltaReplication()) {
+      System.out.println(DeltaReplication.report());
+    }
+    ReplicaScrubber scrubber = ReplicaScrubber.get(myId);
+    if(scrubber != null) {
+      System.out.println(scrubber.report());
+    }
+  }
+
+  /**
+   * The function returns the files of the shared directory found by a scan.
+   * @param scanner - The scanner.
+   * @param entries - The files found.
+   * @return files - The files.
+   */
+  private static List<File> toFiles(ShareScanner scanner, List<ShareManifest.Entry> entries) {
+    List<File> files = new ArrayList<File>(entries.size());
+    for (ShareManifest.Entry entry : entries) {
+      files.add(scanner.getFile(entry));
+    }
+    return files;
+  }
+
+  /**
+   * The function registers files without replicating them, in batches unless the batch size of the configuration file is 1.
+   * @param files - The files to register.
+   * @return registered - The files registered.
+   */
+  public List<File> registerFiles(List<File> files) {
+    if(ConfigurationFile.getBatchSize() > 1) {
+      return new BulkRegistration(this).run(files);
+    }
+    List<File> registered = new ArrayList<File>();
+    for (File file : files) {
+      try {
+        sendRegistration(file);
+        registered.add(file);
+      } catch (ServerNotFoundException e) {
+        System.out.println("A server could not be found.");
+      } catch (RegistrationException e) {
+        System.out.println("Some files were not registered.");
+      }
+    }
+    return registered;
+  }
+
+  /**
+   * The function replicates files, if replication is enabled in the configuration file.
+   * They are queued to be replicated in the background, or replicated one after the other if there are no replication threads.
+   * @param files - The files to replicate.
+   */
+  public void replicateFiles(List<File> files) {
+    if(!ConfigurationFile.isReplicaEnabled()) {
+      return;
+    }
+    ReplicationQueue queue = getReplicationQueue();
+    if(queue != null) {
+      queue.addAll(files);
+      return;
+    }
+    for (File file : files) {
+      try {
+        replicateFile(file);
+      } catch (RegistrationException e) {
+        System.out.println("Warning : Could not upload a replica of the file "+file.getName()+" during registration.");
+      }
+    }
+  }
+
+  /**
+   * The function returns the file of the manifest of the shared directory.
+   * It is kept in the index directory of the peer, as it is only valid while the index is durable.
+   * @return file - The file, or null if the index lives in memory only.
+   */
+  public File getManifestFile() {
+    String directory = ConfigurationFile.getIndexDirectory();
+    if(directory == null) {
+      return null;
+    }
+    return new File(directory+"/peer"+myId+"/"+Constant.MANIFEST);
+  }
+
+  /**
+   * The function returns the journal of the files waiting to be replicated, kept in the index directory of the peer.
+   * @return file - The file, or null if the index lives in memory only.
+   */
+  public File getReplicationFile() {
+    String directory = ConfigurationFile.getIndexDirectory();
+    if(directory == null) {
+      return null;
+    }
+    return new File(directory+"/peer"+myId+"/"+Constant.REPLICATION_JOURNAL);
   }
   
   /**
    * The method registers a file used as an input.
-   * The file is replicated to another peer in the system if the replication was enabled in configuration file.
+   * The file is replicated to another peer in the system if the replication was enabled in configuration file,
+   * in the background unless there are no replication threads.
    * @param file - The file to register
    * @throws ServerNotFoundException - If the server found by hashing the name of the file does not exist.
    * @throws RegistrationException - If the file could not be registered.
    */
-  public void registerFile(File file, OutputStream[] out) throws ServerNotFoundException, RegistrationException {
-    String filename=file.getName();
-    String key=hash(filename);
-    int serverNb=getServer(key);
+  public void registerFile(File file) throws ServerNotFoundException, RegistrationException {
+    sendRegistration(file);
+    try{
+      if(ConfigurationFile.isReplicaEnabled()) {
+        ReplicationQueue queue = getReplicationQueue();
+        if(queue != null) {
+          queue.addAll(Collections.singletonList(file));
+        }
+        else {
+          replicateFile(file);
+        }
+      }
+    }
+    catch (RegistrationException e) {
+      System.out.println("Warning : Could not upload a replica of the file "+file.getName()+" during registration.");
+    }
+  }
+
+  /**
+   * The method registers a file to the peer holding the key of its name, without replicating it.
+   * @param file - The file to register
+   * @throws ServerNotFoundException - If the server found by hashing the name of the file does not exist.
+   * @throws RegistrationException - If the file could not be registered.
+   */
+  private void sendRegistration(File file) throws ServerNotFoundException, RegistrationException {
+    Message registration=registration(file);
+    int serverNb=getServer(registration.getKey());
     if(serverNb==0) {
       throw new ServerNotFoundException();
     }
-    Socket socket = this.socket.get(serverNb-1);
-    String replicaId="";
-    if(ConfigurationFile.isReplicaEnabled()) {
-      for (int i=0;i<ConfigurationFile.getReplicaNumber();i++) {
-        replicaId+=Constant.TOKEN+getReplicaId(Integer.parseInt(key),myId)[i];
+    MessageStream stream = acquire(serverNb);
+    boolean result=false;
+    if (stream != null) {
+      try {
+        result = sendMessage(stream,registration) && receiveMessage(stream).isSuccess();
+      }
+      finally {
+        release(serverNb,stream);
       }
     }
-    boolean result=false;
-    try {
-      result = sendMessage(socket,Constant.REGISTER_HEADER,key,""+myId+Constant.TOKEN+replicaId);
+    if (result == false) {
+      throw new RegistrationException();
+    }
+  }
+  
+  /**
+   * The method unregisters a file of this peer from the peer holding the key of its name.
+   * @param filename - The name of the file
+   * @throws ServerNotFoundException - If the server found by hashing the name of the file does not exist.
+   * @throws RegistrationException - If the file could not be unregistered.
+   */
+  public void unregisterFile(String filename) throws ServerNotFoundException, RegistrationException {
+    String key=hash(filename);
+    int serverNb=getServer(key);
+    if(serverNb==0) {
+      throw new ServerNotFoundException();
     }
-    catch (NullPointerException e) {
-      ;
+    MessageStream stream = acquire(serverNb);
+    boolean result=false;
+    if (stream != null) {
+      try {
+        result = sendMessage(stream,new Message(Constant.UNREGISTER_HEADER,key,""+myId).withName(filename))
+            && receiveMessage(stream).isSuccess();
+      }
+      finally {
+        release(serverNb,stream);
+      }
     }
     if (result == false) {
       throw new RegistrationException();
     }
-    try{
-      if(ConfigurationFile.isReplicaEnabled()) {
-        replicateFile(file,out);
+  }
+
+  /**
+   * The function returns the message registering a file to the peer holding the key of its name.
+   * Its value is the id of this peer followed by the ids of the peers getting the replicas of the file.
+   * @param file - The file to register
+   * @return registration - The message
+   * @throws RegistrationException - If the file could not be read to place its replicas.
+   */
+  public Message registration(File file) throws RegistrationException {
+    String filename=file.getName();
+    String replicaId="";
+    if(ConfigurationFile.isReplicaEnabled()) {
+      for (int id : getReplicaId(Key.parse(replicaKey(file)),myId)) {
+        replicaId+=Constant.TOKEN+id;
       }
     }
-    catch (RegistrationException e) {
-      System.out.println("Warning : Could not upload a replica of the file "+filename+" during registration.");
-    }
+    return new Message(Constant.REGISTER_HEADER,hash(filename),""+myId+Constant.TOKEN+replicaId).withName(filename);
   }
   
   /**
    * The function replicates a file by sending it to another peer.
+   * In the 'content' key mode, the key of the content is sent with the file. A peer already storing that content
+   * answers with its length and the file is not sent again.
+   * If replication is chained, the file is sent once to the first replica, which forwards it to the others.
+   * A replica holding an older copy of a large file is sent a delta by DeltaReplication, and the whole file otherwise.
    * @param file - The file to replicate
    * @throws RegistrationException - If the file could not be replicated.
    */
-  public void replicateFile(File file, OutputStream[] out) throws RegistrationException {
+  public void replicateFile(File file) throws RegistrationException {
     String filename = file.getName();
     String key = hash(filename);
-    int replicaId[]=getReplicaId(Integer.parseInt(key),myId);
-    for (int i=0;i<replicaId.length;i++) {
-      Socket socket = this.socket.get(replicaId[i]-1);
-      try {
-        sendMessage(socket,Constant.REGISTER_HEADER,key,""+myId);
+    String replicaKey = replicaKey(file);
+    String content = ConfigurationFile.getKeyMode().equals(Constant.KEY_CONTENT) ? replicaKey : null;
+    int replicaId[]=getReplicaId(Key.parse(replicaKey),myId);
+    if(content == null && DeltaReplication.applies(file)) {
+      replicaId = DeltaReplication.replicate(key,filename,file,myId,replicaId);
+      if(replicaId.length == 0) {
+        return;
       }
-      catch(NullPointerException e) {
-        throw new RegistrationException();
-      }
-      boolean result=false;
-      try {
-        result=sendMessage(socket,Constant.REPLICATE_HEADER,key,filename);
-      }
-      catch(NullPointerException e) {
-        throw new RegistrationException();
-      }
-      if (result == false) {
-        throw new RegistrationException();
+    }
+    if(ConfigurationFile.isReplicationChain() && replicaId[0] != 0) {
+      List<Integer> failed = new ReplicaChain(key,filename,content,myId,replicaId).replicate(file);
+      if(failed != null) {
+        if(!failed.isEmpty()) {
+          throw new RegistrationException();
+        }
+        return;
       }
-      String msg_in = receiveMessage(socket);
-      StringTokenizer st = new StringTokenizer(msg_in,Constant.TOKEN);
-      String header = st.nextToken();
-      if (!header.equals(Constant.SUCCESS_HEADER)) {
+    }
+    for (int i=0;i<replicaId.length;i++) {
+      MessageStream stream = acquire(replicaId[i]);
+      if (stream == null) {
         throw new RegistrationException();
       }
-      else {
-        try {
-          FileInputStream inf=new FileInputStream(file);
-          out[replicaId[i]-1] = new ObjectOutputStream(socket.getOutputStream());
-          byte buffer[] = new byte[1024];
-          int j;
-          while((j=inf.read(buffer))!=-1){
-             out[replicaId[i]-1].write(buffer,0,j);
-          }
-          inf.close();
-          out[replicaId[i]-1].flush();
-          sendMessage(socket,Constant.SUCCESS_HEADER,key,filename);
-        } catch (IOException e) {
+      try {
+        boolean result=sendMessage(stream,new Message(Constant.REGISTER_HEADER,key,""+myId).withName(filename))
+            && receiveMessage(stream).isSuccess()
+            && sendMessage(stream,new Message(Constant.REPLICATE_HEADER,key,filename).withContent(content));
+        if (result == false) {
           throw new RegistrationException();
         }
-    }
-    
+        Message msg_in = receiveMessage(stream);
+        if (!msg_in.isSuccess()) {
+          throw new RegistrationException();
+        }
+        else if (content == null || msg_in.getLength() < 0) {
+          try {
+            stream.sendFile(file);
+          } catch (IOException e) {
+            stream.close();
+            throw new RegistrationException();
+          }
+        }
+      }
+      finally {
+        release(replicaId[i],stream);
+      }
     }
   }
     
@@ -310,17 +654,29 @@ public class Action implements Runnable {
    * @return peerId - An array having the ids of the peer holding the file. The original peer is always the first one in the array.
    */
   public int[] findPeerToDownload(String key) {
-    int peerId[] = new int[ConfigurationFile.getReplicaNumber()+1];
+    return findPeerToDownload(key,null);
+  }
+
+  /**
+   * The function contacts the decentralized indexing server to find the original and replicate peers having the file.
+   * The name of the file is checked by the server, so another file sharing the key is never returned.
+   * The answer is taken from the lookup cache if the file was searched recently, and cached otherwise.
+   * @param key - The key used to register the file.
+   * @param filename - The name of the file. Null to accept any file registered with the key.
+   * @return peerId - An array having the ids of the peer holding the file. The original peer is always the first one in the array.
+   */
+  public int[] findPeerToDownload(String key, String filename) {
+    int peerId[] = lookups.get(key,filename);
+    if(peerId != null) {
+      return peerId;
+    }
+    peerId = new int[ConfigurationFile.getReplicaNumber()+1];
     int indexId = getServer(key);
     peerId[0]=0;
-    Socket socket = this.socket.get(indexId-1);
     System.out.println("Querying the location of the file...");
-    sendMessage(socket,Constant.SEARCH_HEADER,key,"");
-    String msg_in ="";
-    msg_in=receiveMessage(socket);
-    StringTokenizer st = new StringTokenizer(msg_in,Constant.TOKEN);
-    if(st.nextToken().equals(Constant.SUCCESS_HEADER)) {
-      st.nextToken();
+    Message msg_in=search(indexId,new Message(Constant.SEARCH_HEADER,key,"").withName(filename));
+    if(msg_in.isSuccess()) {
+      StringTokenizer st = new StringTokenizer(msg_in.getValue(),Constant.TOKEN);
       int i=0;
       while(st.hasMoreTokens()) {
         peerId[i]=Integer.parseInt(st.nextToken());
@@ -332,12 +688,10 @@ public class Action implements Runnable {
         int replicaNb=ConfigurationFile.getReplicaNumber();
         boolean found=false;
         for(int i=0;i<replicaNb;i++) {
-          sendMessage(socket,Constant.SEARCH_HEADER,key,"");
-          msg_in=receiveMessage(socket);
-          st=new StringTokenizer(msg_in,Constant.TOKEN);
-          if(st.nextToken().equals(Constant.SUCCESS_HEADER)) {
+          msg_in=search(indexId,new Message(Constant.SEARCH_HEADER,key,"").withName(filename));
+          if(msg_in.isSuccess()) {
             found=true;
-            st.nextToken();
+            StringTokenizer st=new StringTokenizer(msg_in.getValue(),Constant.TOKEN);
             int j=0;
             while(st.hasMoreTokens()) {
               peerId[j]=Integer.parseInt(st.nextToken());
@@ -350,27 +704,22 @@ public class Action implements Runnable {
         }
       }
     }
+    lookups.put(key,filename,peerId);
     return peerId;
   }
   
   /**
    * The function generate the id(s) of the peer(s) which holds or will hold the replica of a file designed by its key.
    * The peer having the replica cannot be the peer which has the original file.
+   * They are the distinct peers met walking the consistent-hash ring from the key, the peer having the original file excluded.
    * @param key - The key of the file.
    * @param myId - The id of the peer replicating the file.
-   * @return replicaId - The ids of the peer having the replica.
+   * @return replicaId - The ids of the peer having the replica. Fewer than the number of replica if there are not enough peers.
    */
-  public int[] getReplicaId(int key, int myId) {
+  public int[] getReplicaId(long key, int myId) {
     int replicaNb = ConfigurationFile.getReplicaNumber();
     if(replicaNb!=0) {
-      int replicaId[] = new int[replicaNb];
-      for(int i=0;i<replicaNb;i++) {
-        replicaId[i]=(myId+i+1)%ConfigurationFile.getClientNumber();
-        if(replicaId[i]==0) {
-          replicaId[i]=ConfigurationFile.getClientNumber();
-        }
-      }
-      return replicaId;
+      return HashRing.get().walk(HashRing.position(key),replicaNb,myId);
     }
     else {
       int def[] = new int[1];
@@ -381,37 +730,266 @@ public class Action implements Runnable {
   
   /**
    * The function used to download a file. It throws an exception if the download failed.
+   * The file comes in ranges through the multiplexer of the peer if there is one, and through its message stream otherwise.
+   * The ranges received are kept if the download fails, and the next download of the file, from this peer or another
+   * one, resumes after them. The legacy protocol has no ranges: the file is sent whole.
+   * The file downloaded is then checked against the checksums of the peer.
+   * If the download failed, the file is removed from the lookup cache so that its holders are searched again.
    * @param filename - The file to download.
    * @param peerId - The id of the peer having the file.
-   * @param in - An array of ObjectInputStream, used to allow multiple consecutive downloads.
    * @param action - The header to be sent. Download an original file or a replica.
    * @throws DownloadException - If the download failed.
    */
-  public void download (String filename, int peerId, InputStream[] in, String action) throws DownloadException {
+  public void download (String filename, int peerId, String action) throws DownloadException {
+    try {
+      downloadFrom(filename,peerId,action);
+      verify(filename,new File(ConfigurationFile.getDownloadDirectory()+"/"+filename),peerId);
+    } catch (DownloadException e) {
+      lookups.invalidate(hash(filename));
+      throw e;
+    }
+  }
+
+  private void downloadFrom(String filename, int peerId, String action) throws DownloadException {
     String key = hash(filename);
     if(peerId==0) {
       throw new DownloadException();
     }
-    try {
-      sendMessage(socket.get(peerId-1),action,key,filename);
+    File target = new File(ConfigurationFile.getDownloadDirectory()+"/"+filename);
+    Multiplexer multiplexer = getMultiplexer(peerId);
+    if(multiplexer != null) {
       System.out.println("Starting download...");
-      in[peerId-1] = new ObjectInputStream(socket.get(peerId-1).getInputStream());
-      FileOutputStream outf =new FileOutputStream(new File(ConfigurationFile.getDownloadDirectory()+"/"+filename));
-      byte buffer[] = new byte[1024];
-      int i;
-      while((i=in[peerId-1].read(buffer))!=-1){
-          outf.write(buffer,0,i);
-          if(i<1024) {
-            break;
-          }
+      try {
+        downloadRanges(multiplexer,null,key,filename,target);
+        System.out.println("Download finished.");
+        return;
+      } catch (IOException e) {
+        if(multiplexer.isOpen()) {
+          throw new DownloadException();
+        }
+        System.out.println("The download could not be multiplexed. It is sent on the message stream.");
+      }
+    }
+    MessageStream stream = acquire(peerId);
+    if(stream == null) {
+      throw new DownloadException();
+    }
+    try {
+      if(stream.getProtocol().equals(Constant.PROTOCOL_LEGACY)) {
+        if(!sendMessage(stream,action,key,filename)) {
+          throw new DownloadException();
+        }
+        System.out.println("Starting download...");
+        stream.receiveFile(target);
+      }
+      else {
+        System.out.println("Starting download...");
+        downloadRanges(null,stream,key,filename,target);
       }
-      outf.close(); 
       System.out.println("Download finished.");
     } catch (IOException e) {
+      stream.close();
       throw new DownloadException();
+    } finally {
+      release(peerId,stream);
     }
   }
   
+  /**
+   * The function downloads a file in ranges, through a multiplexer or a message stream of the binary protocol.
+   * The size of the file is asked first. The file is written to a PartialDownload, which records its progress after
+   * each range of DOWNLOAD_CHECKPOINT bytes, so that a download which failed is resumed from the last range received,
+   * from any peer having the file.
+   * @param multiplexer - The multiplexer of the peer having the file, or null.
+   * @param stream - The message stream connected to the peer having the file, if there is no multiplexer.
+   * @param key - The key of the file.
+   * @param filename - The name of the file.
+   * @param file - The file to write.
+   * @throws IOException - If the peer does not have the file or the file could not be received.
+   */
+  public static void downloadRanges(Multiplexer multiplexer, MessageStream stream, String key, String filename, File file)
+      throws IOException {
+    Message sizeRequest = new Message(Constant.RANGE_HEADER,key,filename);
+    Message answer;
+    if(multiplexer != null) {
+      answer = multiplexer.request(sizeRequest);
+    }
+    else {
+      stream.send(sizeRequest);
+      answer = stream.receive();
+    }
+    if(!answer.isSuccess() || answer.getLength() < 0) {
+      throw new IOException("The peer does not have the file.");
+    }
+    long size = answer.getLength();
+    PartialDownload download = new PartialDownload(file);
+    try {
+      long offset = download.resume(size);
+      if(offset > 0) {
+        System.out.println("Resuming the download at "+offset+" of "+size+" bytes.");
+      }
+      while(offset < size) {
+        long count = Math.min(Constant.DOWNLOAD_CHECKPOINT,size-offset);
+        Message range = new Message(Constant.RANGE_HEADER,key,filename,offset,count);
+        long received;
+        if(multiplexer != null) {
+          received = multiplexer.download(range,download.getChannel());
+        }
+        else {
+          stream.send(range);
+          received = stream.receiveRange(download.getChannel());
+        }
+        if(received != count) {
+          throw new IOException("The peer sent a short range.");
+        }
+        offset += count;
+        download.checkpoint(offset);
+      }
+      download.complete();
+    }
+    finally {
+      download.close();
+    }
+  }
+
+  /**
+   * The function checks a file downloaded against the checksums of the peer it was downloaded from, chunk by chunk.
+   * A damaged chunk is downloaded again alone, from the other peers having the file first, so that the whole file is not
+   * downloaded again. A file which can not be checked, because the peer uses the legacy protocol, is kept as it is.
+   * @param filename - The name of the file.
+   * @param file - The file downloaded.
+   * @param peerId - The id of the peer the file was downloaded from.
+   * @throws DownloadException - If the file is damaged and could not be repaired. It is deleted.
+   */
+  public void verify(String filename, File file, int peerId) throws DownloadException {
+    if(!ConfigurationFile.isChecksums()) {
+      return;
+    }
+    Message answer = search(peerId,new Message(Constant.CHECKSUM_HEADER,hash(filename),filename));
+    if(!answer.isSuccess() || answer.getValue() == null) {
+      System.out.println("The file could not be checked.");
+      return;
+    }
+    try {
+      Checksums expected = Checksums.decode(answer.getValue());
+      Checksums received = Checksums.of(file);
+      int damaged[] = expected.compare(received);
+      if(damaged == null) {
+        throw new IOException("The file does not have the length expected.");
+      }
+      if(damaged.length > 0) {
+        System.out.println(damaged.length+" damaged chunks of the file are downloaded again.");
+        int holders[] = findPeerToDownload(hash(filename),filename);
+        int order[] = new int[holders.length+1];
+        int n = 0;
+        for(int id : holders) {
+          if(id != peerId) {
+            order[n++] = id;
+          }
+        }
+        order[n] = peerId;
+        for(int chunk : damaged) {
+          if(!repair(filename,file,expected,chunk,order)) {
+            throw new IOException("A chunk could not be downloaded again.");
+          }
+        }
+        received = Checksums.of(file);
+      }
+      if(received.getDigest() != expected.getDigest()) {
+        throw new IOException("The digest of the file differs.");
+      }
+    } catch (IOException e) {
+      file.delete();
+      System.out.println("The file downloaded is damaged.");
+      throw new DownloadException();
+    }
+  }
+
+  /**
+   * The function downloads a damaged chunk of a file again, from the first peer sending it intact.
+   * @param filename - The name of the file.
+   * @param file - The file.
+   * @param expected - The checksums of the file.
+   * @param chunk - The number of the chunk.
+   * @param peerId - The ids of the peers having the file, in the order they are tried. 0 is skipped.
+   * @return repaired - True if the chunk was received intact.
+   * @throws IOException - If the file could not be read.
+   */
+  public boolean repair(String filename, File file, Checksums expected, int chunk, int peerId[]) throws IOException {
+    long offset = (long) chunk*Constant.CHECKSUM_CHUNK;
+    long length = Math.min(Constant.CHECKSUM_CHUNK,expected.getLength()-offset);
+    for(int id : peerId) {
+      if(id != 0 && downloadRange(id,filename,file,offset,length) && Checksums.crc(file,chunk) == expected.getChunk(chunk)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The function downloads a range of a file from a peer, and writes it at its position in the file.
+   * It needs the binary protocol.
+   * @param peerId - The id of the peer having the file.
+   * @param filename - The name of the file.
+   * @param file - The file to write.
+   * @param offset - The position of the range.
+   * @param length - The length of the range.
+   * @return received - True if the whole range was received.
+   */
+  public boolean downloadRange(int peerId, String filename, File file, long offset, long length) {
+    Message range = new Message(Constant.RANGE_HEADER,hash(filename),filename,offset,length);
+    try (FileChannel target = FileChannel.open(file.toPath(),StandardOpenOption.WRITE)) {
+      Multiplexer multiplexer = getMultiplexer(peerId);
+      if(multiplexer != null) {
+        try {
+          return multiplexer.download(range,target) == length;
+        } catch (IOException e) {
+          if(multiplexer.isOpen()) {
+            return false;
+          }
+        }
+      }
+      MessageStream stream = acquire(peerId);
+      if(stream == null) {
+        return false;
+      }
+      try {
+        if(stream.getProtocol().equals(Constant.PROTOCOL_LEGACY)) {
+          return false;
+        }
+        stream.send(range);
+        return stream.receiveRange(target) == length;
+      } catch (IOException e) {
+        stream.close();
+        return false;
+      } finally {
+        release(peerId,stream);
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The function downloads a file from all the peers having it at once, each one sending different parts of the file.
+   * It throws an exception if the download failed, and the file is removed from the lookup cache.
+   * @param filename - The file to download.
+   * @param peerId - The ids of the peers having the file, as returned by findPeerToDownload.
+   * @throws DownloadException - If the download failed.
+   */
+  public void downloadParallel(String filename, int peerId[]) throws DownloadException {
+    System.out.println("Starting parallel download...");
+    File file = new File(ConfigurationFile.getDownloadDirectory()+"/"+filename);
+    try {
+      new ParallelDownload(this,filename,peerId).run(file);
+      verify(filename,file,peerId[0]);
+    } catch (DownloadException e) {
+      lookups.invalidate(hash(filename));
+      throw e;
+    }
+    System.out.println("Download finished.");
+  }
+  
   /**
    * This function converts the string used as an input with an abnormal size to the same string with an optimal size.
    * It removes all the '\0' bytes at the end of the string.
@@ -428,62 +1006,82 @@ public class Action implements Runnable {
     return newStr;
   }
   
+  /**
+   * The function downloads a file from the peers having it: from all of them at once if parallel download is enabled,
+   * otherwise from the original peer, then from its replicas one after the other if it fails.
+   * @param filename - The name of the file
+   * @param peerId - The ids of the peers having the file, the original peer first
+   * @return downloadSucceeded - True if the file was downloaded.
+   */
+  public boolean downloadFile(String filename, int peerId[]) {
+    if(ConfigurationFile.isParallelDownload()) {
+      try {
+        downloadParallel(filename,peerId);
+        return true;
+      } catch (DownloadException e) {
+        System.out.println("The parallel download failed. The system will now download from one server at a time.");
+      }
+    }
+    try {
+      download(filename,peerId[0],Constant.DOWNLOAD_HEADER);
+      return true;
+    } catch (DownloadException e) {
+      System.out.println("The download failed. The system will now try to download on another server.");
+    }
+    for(int i=1;i<peerId.length && i<=ConfigurationFile.getReplicaNumber();i++) {
+      try {
+        download(filename,peerId[i],Constant.DOWNLOAD_REPLICA_HEADER);
+        return true;
+      } catch (DownloadException e) {
+        System.out.println("The download failed. The system will now try to download on another server.");
+      }
+    }
+    return false;
+  }
+
   /**
    * The run() function asks the user for an action. Initiate connections with the servers if this was not already done.
    * It connects to one server to do a put(), get() or del() operation.
+   * The shared directory is watched from the first registration on, if enabled in the configuration file.
    * It is never ending.
    */
   @SuppressWarnings("resource")
   public void run() {
-    InputStream in[] = new InputStream[8];
-    OutputStream out[] = new OutputStream[8];
     boolean registered=false;
     while(true) {
       System.out.println("");
       System.out.println("Start ?");
       Scanner sc = new Scanner(System.in);
       sc.nextLine();
-      if(socket.isEmpty()) {
-        for(int i=0;i<ConfigurationFile.getClientNumber();i++) {
-          socket.add(connectToServer(i+1));
-        }
-      }
+      connect();
       if(registered==false) {
-        register(out);
+        if(ConfigurationFile.isWatchShare()) {
+          ShareWatcher.start(myId);
+        }
+        register();
       }
       registered = true;
       String filename = chooseFile();
       if(filename!=null) {
         String key = hash(filename);
-        int peerId[] = findPeerToDownload(key);
+        int peerId[] = findPeerToDownload(key,filename);
         if (peerId[0]==0) {
           System.out.println("The file "+filename+ " could not be found. It may not exist or the connection has terminated.");
         }
         else {
           System.out.println("The file was found on peer "+peerId[0]+".");
-          try {
-            download(filename,peerId[0],in,Constant.DOWNLOAD_HEADER);
-          } catch (DownloadException e) {
-            System.out.println("The download failed. The system will now try to download on another server.");
-            boolean downloadSucceeded=false;
-            int i=1;
-            while(i<peerId.length && downloadSucceeded==false) {
-              try {
-                if(i>ConfigurationFile.getReplicaNumber()) {
-                  break;
-                }
-                i++;
-                download(filename,peerId[i],in,Constant.DOWNLOAD_REPLICA_HEADER);
-                downloadSucceeded=true;
-              } catch (DownloadException e1) {
-                System.out.println("The download failed. The system will now try to download on another server.");
-              }
-            }
-            if(downloadSucceeded==false) {
-              System.out.println("The file could not be downloaded.");
-            }
+          if(downloadFile(filename,peerId)==false) {
+            System.out.println("The file could not be downloaded.");
           }
         }
+        System.out.println(lookups.report());
+        System.out.print(connections.report());
+        if(ConfigurationFile.getFileCacheSize() > 0) {
+          System.out.println(FileCache.get().report());
+        }
+        if(ConfigurationFile.isCompression()) {
+          System.out.println(Compression.report());
+        }
       }
     }
   }
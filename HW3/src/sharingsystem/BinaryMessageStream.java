@@ -0,0 +1,493 @@
+package sharingsystem;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * The binary protocol. Messages are length-prefixed frames encoded by FrameCodec.
+ * A file is sent as a DAT# frame giving its length, followed by the raw bytes of the file,
+ * which go between the file and the socket with FileChannel.transferTo and transferFrom.
+ * The buffers are kept for the life of the stream.
+ * Once both peers agreed on it with a CMP# message, the bytes of the files are sent as compressed blocks instead,
+ * copied through the heap. The frames are never compressed.
+ */
+public class BinaryMessageStream extends MessageStream {
+
+  /**
+   * The codec encoding the frames sent.
+   */
+  private final FrameCodec codec = new FrameCodec();
+  /**
+   * The buffer holding the frame received.
+   */
+  private byte[] frame = new byte[256];
+  /**
+   * The buffer used to copy files received.
+   */
+  private final byte[] transfer = new byte[BUFFER_SIZE];
+  /**
+   * The buffer used to copy files sent, if the socket has no channel. Files can be sent and received at once.
+   */
+  private byte[] output;
+  /**
+   * The compression of the files sent and received, or null if they are sent raw.
+   */
+  private Compression compression;
+
+  private BinaryMessageStream(Socket socket, InputStream in, OutputStream out) {
+    super(socket,in,out);
+  }
+
+  /**
+   * Exchanges the magic bytes of the protocol and opens a binary stream.
+   * Both sides send the magic bytes and check the ones received.
+   * @param socket - The socket.
+   * @param in - The buffered input stream of the socket.
+   * @param out - The buffered output stream of the socket.
+   * @return stream - The stream.
+   * @throws IOException - If the other side does not speak the same protocol.
+   */
+  public static BinaryMessageStream handshake(Socket socket, InputStream in, OutputStream out) throws IOException {
+    out.write(FrameCodec.MAGIC);
+    out.flush();
+    byte[] magic = new byte[FrameCodec.MAGIC.length];
+    readFully(in,magic,0,magic.length);
+    if (!Arrays.equals(magic,FrameCodec.MAGIC)) {
+      throw new IOException("Unsupported protocol version.");
+    }
+    return new BinaryMessageStream(socket,in,out);
+  }
+
+  /**
+   * Asks the server to compress the files sent on the connection, both ways. It is done only if the server agrees.
+   * @throws IOException - If the server did not answer.
+   */
+  public void negotiateCompression() throws IOException {
+    send(new Message(Constant.COMPRESS_HEADER,null,Compression.DEFLATE));
+    Message answer = receive();
+    setCompressed(answer.isSuccess() && Compression.DEFLATE.equals(answer.getValue()));
+  }
+
+  /**
+   * Starts or stops the compression of the files sent and received.
+   * @param compressed - True to compress them.
+   */
+  public void setCompressed(boolean compressed) {
+    if (!compressed) {
+      compression = null;
+    }
+    else if (compression == null) {
+      compression = new Compression();
+    }
+  }
+
+  /**
+   * @return compressed - True if the files sent and received are compressed.
+   */
+  public boolean isCompressed() {
+    return compression != null;
+  }
+
+  public void send(Message message) throws IOException {
+    write(message);
+    out.flush();
+  }
+
+  public Message receive() throws IOException {
+    long length = FrameCodec.readVarint(in);
+    if (length > FrameCodec.MAX_FRAME) {
+      throw new IOException("Frame too long.");
+    }
+    if (length > frame.length) {
+      frame = new byte[(int) length];
+    }
+    readFully(in,frame,0,(int) length);
+    return FrameCodec.decode(frame,0,(int) length);
+  }
+
+  public void sendFile(File file) throws IOException {
+    FileInputStream inf;
+    try {
+      inf = new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      send(new Message(Constant.ERROR_HEADER,null,null));
+      throw e;
+    }
+    try {
+      FileChannel source = inf.getChannel();
+      long length = source.size();
+      send(new Message(Constant.DATA_HEADER,null,null,length));
+      sendRange(source,0,length);
+    }
+    finally {
+      inf.close();
+    }
+  }
+
+  public void receiveFile(File file) throws IOException {
+    Message message = receive();
+    if (!Constant.DATA_HEADER.equals(message.getHeader()) || message.getLength() < 0) {
+      throw new IOException("The file is not available.");
+    }
+    FileOutputStream outf = new FileOutputStream(file);
+    try {
+      receiveRange(outf.getChannel(),0,message.getLength());
+    }
+    finally {
+      outf.close();
+    }
+  }
+
+  public void sendRange(File file, long offset, long length) throws IOException {
+    FileInputStream inf;
+    try {
+      inf = new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      send(new Message(Constant.ERROR_HEADER,null,null));
+      throw e;
+    }
+    try {
+      FileChannel source = inf.getChannel();
+      long count = Math.max(0,Math.min(length,source.size()-offset));
+      send(new Message(Constant.DATA_HEADER,null,null,offset,count));
+      sendRange(source,offset,count);
+    }
+    finally {
+      inf.close();
+    }
+  }
+
+  public long receiveRange(FileChannel target) throws IOException {
+    Message message = receive();
+    if (!Constant.DATA_HEADER.equals(message.getHeader()) || message.getLength() < 0 || message.getOffset() < 0) {
+      throw new IOException("The range is not available.");
+    }
+    receiveRange(target,message.getOffset(),message.getLength());
+    return message.getLength();
+  }
+
+  public OutputStream sendFile(long length) throws IOException {
+    send(new Message(Constant.DATA_HEADER,null,null,length));
+    if (compression != null) {
+      return new FilterOutputStream(out) {
+        private final byte block[] = new byte[Compression.BLOCK_SIZE];
+        private int count;
+
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b},0,1);
+        }
+
+        public void write(byte b[], int off, int len) throws IOException {
+          while (len > 0) {
+            if (count == 0 && len >= block.length) {
+              compression.write(out,b,off,block.length);
+              off += block.length;
+              len -= block.length;
+              continue;
+            }
+            int i = Math.min(len,block.length-count);
+            System.arraycopy(b,off,block,count,i);
+            count += i;
+            off += i;
+            len -= i;
+            if (count == block.length) {
+              compression.write(out,block,0,count);
+              count = 0;
+            }
+          }
+        }
+
+        public void close() throws IOException {
+          if (count > 0) {
+            compression.write(out,block,0,count);
+            count = 0;
+          }
+          out.flush();
+        }
+      };
+    }
+    return new FilterOutputStream(out) {
+      public void write(byte b[], int off, int len) throws IOException {
+        out.write(b,off,len);
+      }
+
+      public void close() throws IOException {
+        out.flush();
+      }
+    };
+  }
+
+  public InputStream receiveStream(Message data) throws IOException {
+    if (!Constant.DATA_HEADER.equals(data.getHeader()) || data.getLength() < 0) {
+      throw new IOException("The file is not available.");
+    }
+    final long length = data.getLength();
+    if (compression != null) {
+      return new FilterInputStream(in) {
+        private long remaining = length;
+        private int position;
+        private int count;
+
+        public int read() throws IOException {
+          byte b[] = new byte[1];
+          return read(b,0,1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+          if (position == count) {
+            if (remaining <= 0) {
+              return -1;
+            }
+            count = readBlock(remaining);
+            position = 0;
+            remaining -= count;
+          }
+          int i = Math.min(len,count-position);
+          System.arraycopy(compression.getBlock(),position,b,off,i);
+          position += i;
+          return i;
+        }
+
+        public int available() {
+          return count-position;
+        }
+
+        public void close() {
+          ;
+        }
+      };
+    }
+    return new FilterInputStream(in) {
+      private long remaining = length;
+
+      public int read() throws IOException {
+        byte b[] = new byte[1];
+        return read(b,0,1) < 0 ? -1 : b[0] & 0xFF;
+      }
+
+      public int read(byte b[], int off, int len) throws IOException {
+        if (remaining <= 0) {
+          return -1;
+        }
+        int i = in.read(b,off,(int) Math.min(len,remaining));
+        if (i < 0) {
+          throw new EOFException();
+        }
+        remaining -= i;
+        return i;
+      }
+
+      public int available() throws IOException {
+        return (int) Math.min(in.available(),remaining);
+      }
+
+      public void close() {
+        ;
+      }
+    };
+  }
+
+  public void sendChunk(FileChannel source, long offset, long length, long id) throws IOException {
+    write(new Message(Constant.DATA_HEADER,null,null,offset,length).withId(id));
+    out.flush();
+    sendRange(source,offset,length);
+  }
+
+  public void sendContent(ByteBuffer content) throws IOException {
+    write(new Message(Constant.DATA_HEADER,null,null,content.remaining()));
+    out.flush();
+    sendContent(content,content.remaining());
+  }
+
+  public void sendChunk(ByteBuffer content, long offset, long id) throws IOException {
+    write(new Message(Constant.DATA_HEADER,null,null,offset,content.remaining()).withId(id));
+    out.flush();
+    sendContent(content,content.remaining());
+  }
+
+  public void receiveChunk(Message data, FileChannel target) throws IOException {
+    if (data.getLength() < 0 || data.getOffset() < 0) {
+      throw new IOException("Malformed chunk.");
+    }
+    if (target != null) {
+      receiveRange(target,data.getOffset(),data.getLength());
+      return;
+    }
+    long count = data.getLength();
+    while (count > 0 && compression != null) {
+      count -= readBlock(count);
+    }
+    while (count > 0) {
+      int i = in.read(transfer,0,(int) Math.min(transfer.length,count));
+      if (i < 0) {
+        throw new EOFException();
+      }
+      count -= i;
+    }
+  }
+
+  /**
+   * Sends bytes of a file straight from the file to the socket with FileChannel.transferTo.
+   * The frame announcing them must have been flushed. If the socket has no channel, the bytes are copied.
+   * @param source - The file.
+   * @param position - The position of the first byte to send.
+   * @param count - The number of bytes to send.
+   * @throws IOException - If the file is shorter than expected or the bytes could not be sent.
+   */
+  private void sendRange(FileChannel source, long position, long count) throws IOException {
+    SocketChannel channel = compression == null ? socket.getChannel() : null;
+    while (count > 0) {
+      long i;
+      if (channel != null) {
+        i = source.transferTo(position,count,channel);
+      }
+      else {
+        if (output == null) {
+          output = new byte[BUFFER_SIZE];
+        }
+        i = source.read(ByteBuffer.wrap(output,0,(int) Math.min(output.length,count)),position);
+        if (i > 0 && compression != null) {
+          compression.write(out,output,0,(int) i);
+        }
+        else if (i > 0) {
+          out.write(output,0,(int) i);
+        }
+      }
+      if (i <= 0 && position >= source.size()) {
+        throw new EOFException("The file was truncated while it was sent.");
+      }
+      position += i;
+      count -= i;
+    }
+    out.flush();
+  }
+
+  /**
+   * Sends bytes held in memory straight to the socket channel. The frame announcing them must have been flushed.
+   * If the socket has no channel, the bytes are copied.
+   * @param content - The bytes, from the position of the buffer.
+   * @param count - The number of bytes to send.
+   * @throws IOException - If the bytes could not be sent.
+   */
+  private void sendContent(ByteBuffer content, int count) throws IOException {
+    SocketChannel channel = compression == null ? socket.getChannel() : null;
+    while (count > 0) {
+      int i;
+      if (channel != null) {
+        i = channel.write(content);
+      }
+      else {
+        if (output == null) {
+          output = new byte[BUFFER_SIZE];
+        }
+        i = Math.min(output.length,count);
+        content.get(output,0,i);
+        if (compression != null) {
+          compression.write(out,output,0,i);
+        }
+        else {
+          out.write(output,0,i);
+        }
+      }
+      count -= i;
+    }
+    out.flush();
+  }
+
+  /**
+   * Receives bytes of a file and writes them at a position of the file.
+   * The bytes already buffered by the input stream are written first, the rest goes from the socket to the file with FileChannel.transferFrom.
+   * @param target - The file.
+   * @param position - The position of the first byte to write.
+   * @param count - The number of bytes to receive.
+   * @throws IOException - If the connection ended before all bytes were received.
+   */
+  private void receiveRange(FileChannel target, long position, long count) throws IOException {
+    while (count > 0 && compression != null) {
+      int i = readBlock(count);
+      target.write(ByteBuffer.wrap(compression.getBlock(),0,i),position);
+      position += i;
+      count -= i;
+    }
+    int buffered;
+    while (count > 0 && (buffered = in.available()) > 0) {
+      int i = in.read(transfer,0,(int) Math.min(Math.min(transfer.length,buffered),count));
+      if (i < 0) {
+        throw new EOFException();
+      }
+      target.write(ByteBuffer.wrap(transfer,0,i),position);
+      position += i;
+      count -= i;
+    }
+    SocketChannel channel = socket.getChannel();
+    while (count > 0) {
+      long i;
+      if (channel != null) {
+        i = target.transferFrom(channel,position,count);
+      }
+      else {
+        i = in.read(transfer,0,(int) Math.min(transfer.length,count));
+        if (i > 0) {
+          target.write(ByteBuffer.wrap(transfer,0,(int) i),position);
+        }
+      }
+      if (i <= 0) {
+        throw new EOFException();
+      }
+      position += i;
+      count -= i;
+    }
+  }
+
+  /**
+   * Reads a compressed block of a file.
+   * @param count - The number of bytes of the file left.
+   * @return length - The number of bytes of the block, in compression.getBlock().
+   * @throws IOException - If the block could not be read or goes beyond the file.
+   */
+  private int readBlock(long count) throws IOException {
+    int i = compression.read(in);
+    if (i > count) {
+      throw new IOException("Malformed compressed block.");
+    }
+    return i;
+  }
+
+  public String getProtocol() {
+    return Constant.PROTOCOL_BINARY;
+  }
+
+  /**
+   * Writes a frame without flushing it.
+   * @param message - The message.
+   * @throws IOException - If the frame could not be written.
+   */
+  private void write(Message message) throws IOException {
+    codec.encode(message);
+    out.write(codec.buffer(),codec.offset(),codec.length());
+  }
+
+  private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      int i = in.read(buffer,offset,length);
+      if (i < 0) {
+        throw new EOFException();
+      }
+      offset += i;
+      length -= i;
+    }
+  }
+}
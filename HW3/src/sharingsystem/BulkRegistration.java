@@ -0,0 +1,182 @@
+package sharingsystem;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registers files in batches instead of one round trip per file.
+ * The registrations are grouped by the server owning their key, and sent to it in BAT# messages of up to batchSize
+ * registrations. Up to batchWindow batches are sent to a server before its answers are read, each batch being
+ * answered by one success message giving the number of files registered.
+ * Servers connected with the legacy protocol get the registrations one by one.
+ */
+public class BulkRegistration {
+
+  /**
+   * The registrations sent or to send together to a server.
+   */
+  private static final class Batch {
+    private final List<File> files = new ArrayList<File>();
+    private final List<Message> messages = new ArrayList<Message>();
+  }
+
+  /**
+   * The action used to build the registrations and replicate the files.
+   */
+  private final Action action;
+  /**
+   * The connections to the servers, taken from the pool when first needed and given back once the files are registered.
+   */
+  private final MessageStream streams[];
+  private final int batchSize;
+  private final int batchWindow;
+  /**
+   * The batch being filled for each server.
+   */
+  private final Batch pending[];
+  /**
+   * The batches sent to each server and not answered yet, in the order they were sent.
+   */
+  private final List<ArrayDeque<Batch>> sent;
+  /**
+   * The files registered.
+   */
+  private final List<File> registered = new ArrayList<File>();
+
+  /**
+   * Constructor of a bulk registration.
+   * @param action - The action of the peer.
+   */
+  public BulkRegistration(Action action) {
+    this.action = action;
+    this.batchSize = Math.max(1,ConfigurationFile.getBatchSize());
+    this.batchWindow = Math.max(1,ConfigurationFile.getBatchWindow());
+    this.streams = new MessageStream[ConfigurationFile.getClientNumber()];
+    this.pending = new Batch[streams.length];
+    this.sent = new ArrayList<ArrayDeque<Batch>>();
+    for (int i = 0; i < pending.length; i++) {
+      pending[i] = new Batch();
+      sent.add(new ArrayDeque<Batch>());
+    }
+  }
+
+  /**
+   * Registers files.
+   * @param files - The files.
+   * @return registered - The files registered.
+   */
+  public List<File> run(List<File> files) {
+    try {
+      for (File file : files) {
+        add(file);
+      }
+      for (int server = 1; server <= pending.length; server++) {
+        send(server);
+      }
+      for (int server = 1; server <= pending.length; server++) {
+        while (!sent.get(server-1).isEmpty()) {
+          acknowledge(server);
+        }
+      }
+    }
+    finally {
+      for (int server = 1; server <= streams.length; server++) {
+        action.release(server,streams[server-1]);
+      }
+    }
+    return registered;
+  }
+
+  /**
+   * Adds a file to the batch of its server, sending the batch once full.
+   * @param file - The file.
+   */
+  private void add(File file) {
+    Message registration;
+    try {
+      registration = action.registration(file);
+    } catch (RegistrationException e) {
+      System.out.println("Some files were not registered.");
+      return;
+    }
+    int server = action.getServer(registration.getKey());
+    if (server == 0 || server > pending.length) {
+      System.out.println("A server could not be found.");
+      return;
+    }
+    Batch batch = pending[server-1];
+    batch.files.add(file);
+    batch.messages.add(registration);
+    if (batch.files.size() >= batchSize) {
+      send(server);
+    }
+  }
+
+  /**
+   * Sends the batch being filled for a server. The oldest batch sent to the server is answered first
+   * if the window of the server is full.
+   * @param server - The number of the server.
+   */
+  private void send(int server) {
+    Batch batch = pending[server-1];
+    if (batch.files.isEmpty()) {
+      return;
+    }
+    pending[server-1] = new Batch();
+    if (streams[server-1] == null) {
+      streams[server-1] = action.acquire(server);
+    }
+    MessageStream stream = streams[server-1];
+    if (stream == null) {
+      System.out.println("Some files were not registered.");
+    }
+    else if (stream.getProtocol().equals(Constant.PROTOCOL_LEGACY)) {
+      for (int i = 0; i < batch.files.size(); i++) {
+        if (action.sendMessage(stream,batch.messages.get(i)) && action.receiveMessage(stream).isSuccess()) {
+          registered.add(batch.files.get(i));
+        }
+        else {
+          System.out.println("Some files were not registered.");
+        }
+      }
+    }
+    else {
+      while (sent.get(server-1).size() >= batchWindow) {
+        acknowledge(server);
+      }
+      Message messages[] = batch.messages.toArray(new Message[batch.messages.size()]);
+      if (action.sendMessage(stream,new Message(Constant.BATCH_HEADER,null,null).withBatch(messages))) {
+        sent.get(server-1).add(batch);
+      }
+      else {
+        System.out.println("Some files were not registered.");
+      }
+    }
+  }
+
+  /**
+   * Reads the answer of the oldest batch sent to a server.
+   * The files of the batch are kept for replication only if all of them were registered.
+   * @param server - The number of the server.
+   */
+  private void acknowledge(int server) {
+    Batch batch = sent.get(server-1).poll();
+    Message answer = action.receiveMessage(streams[server-1]);
+    int count = -1;
+    if (answer.isSuccess()) {
+      try {
+        count = Integer.parseInt(answer.getValue());
+      } catch (NumberFormatException e) {
+        ;
+      }
+    }
+    if (count == batch.files.size()) {
+      registered.addAll(batch.files);
+    }
+    else {
+      System.out.println("Some files were not registered.");
+    }
+  }
+}
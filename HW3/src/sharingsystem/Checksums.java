@@ -0,0 +1,335 @@
+package sharingsystem;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32C;
+
+/**
+ * The checksums of a file: the CRC32C of each chunk of CHECKSUM_CHUNK bytes and the XXHash64 digest of the whole file,
+ * which is the key of its content in the 'content' key mode. They are computed piece by piece while the file is read.
+ * A peer answers a SUM# message with the checksums of a file, so that a file downloaded is checked chunk by chunk and
+ * a chunk which differs is downloaded again alone. A replica keeps the checksums of the files it stores in the checksum
+ * directory of the replica directory, with their length and modification time, for ReplicaScrubber to check them.
+ */
+public class Checksums {
+
+  private static final int MAGIC = 0x4446534B;
+
+  /**
+   * The checksums computed for the SUM# messages, by file, dropped when the file changes.
+   */
+  private static final Map<File,Checksums> cache = new LinkedHashMap<File,Checksums>(16,0.75f,true) {
+    private static final long serialVersionUID = 1L;
+
+    protected boolean removeEldestEntry(Map.Entry<File,Checksums> eldest) {
+      return size() > Constant.CHECKSUM_CACHE_SIZE;
+    }
+  };
+
+  private final CRC32C crc = new CRC32C();
+  private final XXHash64 hash = new XXHash64();
+  /**
+   * The CRC32C of the chunks, of which count are used.
+   */
+  private int chunks[] = new int[16];
+  private int count;
+  private long length;
+  private long modified;
+  private long digest;
+
+  /**
+   * Adds bytes of the file.
+   * @param b - The bytes.
+   * @param off - The position of the first byte.
+   * @param len - The number of bytes.
+   */
+  public void update(byte b[], int off, int len) {
+    hash.update(b,off,len);
+    while (len > 0) {
+      int n = (int) Math.min(len,Constant.CHECKSUM_CHUNK-length%Constant.CHECKSUM_CHUNK);
+      crc.update(b,off,n);
+      length += n;
+      off += n;
+      len -= n;
+      if (length%Constant.CHECKSUM_CHUNK == 0) {
+        endChunk();
+      }
+    }
+  }
+
+  /**
+   * Ends the file once all its bytes were added.
+   * @return checksums - This.
+   */
+  public Checksums finish() {
+    if (length%Constant.CHECKSUM_CHUNK != 0) {
+      endChunk();
+    }
+    digest = hash.digest();
+    return this;
+  }
+
+  private void endChunk() {
+    if (count == chunks.length) {
+      chunks = Arrays.copyOf(chunks,count*2);
+    }
+    chunks[count++] = (int) crc.getValue();
+    crc.reset();
+  }
+
+  /**
+   * Computes the checksums of a file.
+   * @param file - The file.
+   * @return checksums - The checksums.
+   * @throws IOException - If the file could not be read.
+   */
+  public static Checksums of(File file) throws IOException {
+    Checksums checksums = new Checksums();
+    checksums.modified = file.lastModified();
+    byte buffer[] = new byte[64*1024];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        checksums.update(buffer,0,n);
+      }
+    }
+    return checksums.finish();
+  }
+
+  /**
+   * Returns the checksums of a file asked by a SUM# message, the shared directory being searched first.
+   * Those of a replica are the ones stored when it was received, as long as it did not change since, so that a replica
+   * damaged on the disk is found by the peer downloading it. The others are computed and kept in a cache.
+   * @param filename - The name of the file.
+   * @return checksums - The checksums, or null if the peer does not have the file.
+   * @throws IOException - If the file could not be read.
+   */
+  public static Checksums lookup(String filename) throws IOException {
+    File file = Connection.getRangeFile(filename);
+    if (file == null) {
+      return null;
+    }
+    if (!Connection.getSharedFile(filename,Constant.DOWNLOAD_HEADER).isFile()) {
+      Checksums stored = stored(filename,file);
+      if (stored != null) {
+        return stored;
+      }
+    }
+    synchronized (cache) {
+      Checksums checksums = cache.get(file);
+      if (checksums != null && checksums.describes(file)) {
+        return checksums;
+      }
+    }
+    Checksums checksums = of(file);
+    synchronized (cache) {
+      cache.put(file,checksums);
+    }
+    return checksums;
+  }
+
+  /**
+   * Computes the CRC32C of a chunk of a file.
+   * @param file - The file.
+   * @param chunk - The number of the chunk.
+   * @return crc - The CRC32C of the chunk, or -1 if the file is too short.
+   * @throws IOException - If the file could not be read.
+   */
+  public static long crc(File file, int chunk) throws IOException {
+    long offset = (long) chunk*Constant.CHECKSUM_CHUNK;
+    CRC32C crc = new CRC32C();
+    ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+    try (FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+      long end = Math.min(channel.size(),offset+Constant.CHECKSUM_CHUNK);
+      if (end <= offset) {
+        return -1;
+      }
+      while (offset < end) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(),end-offset));
+        int n = channel.read(buffer,offset);
+        if (n < 0) {
+          return -1;
+        }
+        crc.update(buffer.array(),0,n);
+        offset += n;
+      }
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Compares the checksums of a file with the ones expected.
+   * @param received - The checksums of the file.
+   * @return chunks - The numbers of the chunks which differ, or null if the file does not have the length expected.
+   */
+  public int[] compare(Checksums received) {
+    if (received.length != length) {
+      return null;
+    }
+    int differ[] = new int[count];
+    int n = 0;
+    for (int i = 0; i < count; i++) {
+      if (chunks[i] != received.chunks[i]) {
+        differ[n++] = i;
+      }
+    }
+    return Arrays.copyOf(differ,n);
+  }
+
+  /**
+   * @return length - The length of the file.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * @return digest - The XXHash64 digest of the file.
+   */
+  public long getDigest() {
+    return digest;
+  }
+
+  /**
+   * @return count - The number of chunks.
+   */
+  public int getChunks() {
+    return count;
+  }
+
+  /**
+   * @param chunk - The number of a chunk.
+   * @return crc - The CRC32C of the chunk.
+   */
+  public long getChunk(int chunk) {
+    return chunks[chunk] & 0xFFFFFFFFL;
+  }
+
+  /**
+   * @param file - A file.
+   * @return describes - True if the file has the length and the modification time the checksums were computed from.
+   */
+  public boolean describes(File file) {
+    return file.length() == length && file.lastModified() == modified;
+  }
+
+  /**
+   * Encodes the checksums as the value of a message: the length, the digest and the CRC32C of each chunk, in hexadecimal.
+   * @return value - The value.
+   */
+  public String encode() {
+    StringBuilder value = new StringBuilder(count*9+40);
+    value.append(Long.toHexString(length)).append(Constant.TOKEN).append(Long.toHexString(digest));
+    for (int i = 0; i < count; i++) {
+      value.append(Constant.TOKEN).append(Integer.toHexString(chunks[i]));
+    }
+    return value.toString();
+  }
+
+  /**
+   * Decodes the checksums sent in the value of a message.
+   * @param value - The value.
+   * @return checksums - The checksums.
+   * @throws IOException - If the value is not valid.
+   */
+  public static Checksums decode(String value) throws IOException {
+    try {
+      StringTokenizer st = new StringTokenizer(value,Constant.TOKEN);
+      Checksums checksums = new Checksums();
+      checksums.length = Long.parseUnsignedLong(st.nextToken(),16);
+      checksums.digest = Long.parseUnsignedLong(st.nextToken(),16);
+      checksums.chunks = new int[st.countTokens()];
+      while (st.hasMoreTokens()) {
+        checksums.chunks[checksums.count++] = Integer.parseUnsignedInt(st.nextToken(),16);
+      }
+      if (checksums.count != (checksums.length+Constant.CHECKSUM_CHUNK-1)/Constant.CHECKSUM_CHUNK) {
+        throw new IOException("Malformed checksums.");
+      }
+      return checksums;
+    } catch (RuntimeException e) {
+      throw new IOException("Malformed checksums.");
+    }
+  }
+
+  /**
+   * Returns the file keeping the checksums of a replica.
+   * @param name - The path of the replica in the replica directory.
+   * @return file - The file in the checksum directory of the replica directory.
+   */
+  public static File getStoredFile(String name) {
+    return new File(ConfigurationFile.getReplicaDirectory()+"/"+Constant.CHECKSUM_DIRECTORY+"/"+name);
+  }
+
+  /**
+   * Stores the checksums of a replica, with its modification time. They are written aside and renamed.
+   * @param name - The path of the replica in the replica directory.
+   * @param file - The replica.
+   * @throws IOException - If the checksums could not be written.
+   */
+  public void store(String name, File file) throws IOException {
+    modified = file.lastModified();
+    File stored = getStoredFile(name);
+    stored.getParentFile().mkdirs();
+    File temporary = new File(stored.getPath()+".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary))) {
+      out.writeInt(MAGIC);
+      out.writeLong(length);
+      out.writeLong(modified);
+      out.writeLong(digest);
+      out.writeInt(count);
+      for (int i = 0; i < count; i++) {
+        out.writeInt(chunks[i]);
+      }
+    }
+    Files.move(temporary.toPath(),stored.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Loads the checksums stored for a replica.
+   * @param name - The path of the replica in the replica directory.
+   * @param file - The replica.
+   * @return checksums - The checksums, or null if there are none or the replica was written since they were stored.
+   */
+  public static Checksums stored(String name, File file) {
+    File stored = getStoredFile(name);
+    if (!stored.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stored)))) {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+      Checksums checksums = new Checksums();
+      checksums.length = in.readLong();
+      checksums.modified = in.readLong();
+      checksums.digest = in.readLong();
+      checksums.count = in.readInt();
+      if (checksums.count != (checksums.length+Constant.CHECKSUM_CHUNK-1)/Constant.CHECKSUM_CHUNK) {
+        return null;
+      }
+      checksums.chunks = new int[checksums.count];
+      for (int i = 0; i < checksums.count; i++) {
+        checksums.chunks[i] = in.readInt();
+      }
+      return checksums.describes(file) ? checksums : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
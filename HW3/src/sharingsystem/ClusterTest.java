@@ -0,0 +1,495 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a cluster of peers in one JVM and drives a workload on it, so that performance runs can be repeated.
+ * Each peer is loaded by its own class loader, so that it has its own configuration, connections and caches. Its
+ * configuration file is written in a temporary directory, with its own share, replica and download directories, and
+ * its server listens on a loopback port. The files of the run are spread over the share directories and registered.
+ * Worker threads then search, download, register and replicate files from the live peers, each file being chosen with
+ * a Zipfian popularity. Peers can be killed during the run: their servers are shut down and the workload goes on with
+ * the others. The throughput and the p50, p99 and p99.9 latencies of each operation are reported.
+ * The options are: port, the port of peer 1; sizes, the sizes of the files as size:weight pairs; zipf, the exponent of
+ * the popularity of the files, 0 for a uniform one; mix, the operations as operation:weight pairs; kill, the number of
+ * peers killed; killAt, the second they are killed at; keep=1 to keep the directories. Any other option is written in
+ * the configuration file of each peer.
+ * Usage: ClusterTest peers files seconds threads [option=value ...]
+ */
+public class ClusterTest {
+
+  private static final String SEARCH = "search";
+  private static final String DOWNLOAD = "download";
+  private static final String REGISTER = "register";
+  private static final String REPLICATE = "replicate";
+
+  /**
+   * The settings written in the configuration file of each peer, unless given as options.
+   */
+  private static final String DEFAULTS[][] = {{"replica","1"},{"replicaNumber","1"},{"protocol",Constant.PROTOCOL_BINARY},
+      {"watchShare","0"},{"scrubRate","0"}};
+
+  /**
+   * A peer of the cluster: a Server and an Action of its own class loader.
+   */
+  private static final class Peer {
+    private final int id;
+    private final File directory;
+    private final Object server;
+    private final Object action;
+    private final Method hash;
+    private final Method find;
+    private final Method download;
+    private final Method register;
+    private final Method replicate;
+    private volatile boolean alive = true;
+
+    private Peer(int id, File directory, URL location) throws Exception {
+      this.id = id;
+      this.directory = directory;
+      ClassLoader loader = new URLClassLoader(new URL[] {location},ClassLoader.getSystemClassLoader().getParent());
+      loader.loadClass(ConfigurationFile.class.getName()).getMethod("setFile",String.class)
+          .invoke(null,new File(directory,"config.properties").getPath());
+      Class<?> serverClass = loader.loadClass(Server.class.getName());
+      server = serverClass.getConstructor(int.class).newInstance(id);
+      Thread thread = new Thread((Runnable) server,"peer-"+id);
+      thread.setDaemon(true);
+      thread.start();
+      Class<?> actionClass = loader.loadClass(Action.class.getName());
+      action = actionClass.getConstructor(int.class).newInstance(id);
+      hash = actionClass.getMethod("hash",String.class);
+      find = actionClass.getMethod("findPeerToDownload",String.class,String.class);
+      download = actionClass.getMethod("downloadFile",String.class,int[].class);
+      register = actionClass.getMethod("registerFile",File.class);
+      replicate = actionClass.getMethod("replicateFile",File.class);
+    }
+
+    private File getShareFile(String filename) {
+      return new File(directory,"share/"+filename);
+    }
+
+    private int[] find(String filename) throws Exception {
+      return (int[]) invoke(find,invoke(hash,filename),filename);
+    }
+
+    private boolean download(String filename, int peerId[]) throws Exception {
+      boolean downloaded = (Boolean) invoke(download,filename,peerId);
+      Files.deleteIfExists(new File(directory,"download/"+filename).toPath());
+      return downloaded;
+    }
+
+    private void register(File file) throws Exception {
+      invoke(register,file);
+    }
+
+    private void replicate(File file) throws Exception {
+      invoke(replicate,file);
+    }
+
+    /**
+     * Registers the share directory and waits for its files to be replicated.
+     */
+    private void registerAll() throws Exception {
+      action.getClass().getMethod("register").invoke(action);
+      Object queue = action.getClass().getMethod("getReplicationQueue").invoke(action);
+      if(queue != null) {
+        queue.getClass().getMethod("await",long.class).invoke(queue,60000L);
+      }
+    }
+
+    /**
+     * Kills the peer: its server stops accepting connections and closes the ones it has.
+     */
+    private void kill() throws Exception {
+      alive = false;
+      server.getClass().getMethod("shutdown").invoke(server);
+    }
+
+    private Object invoke(Method method, Object... args) throws Exception {
+      try {
+        return method.invoke(action,args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
+  }
+
+  /**
+   * The latencies of an operation measured by a worker.
+   */
+  private static final class Latencies {
+    private long values[] = new long[1024];
+    private int count;
+    private int failures;
+
+    private void add(long latency, boolean success) {
+      if(count == values.length) {
+        values = Arrays.copyOf(values,count*2);
+      }
+      values[count++] = latency;
+      if(!success) {
+        failures++;
+      }
+    }
+
+    private void addAll(Latencies latencies) {
+      for(int i=0;i<latencies.count;i++) {
+        add(latencies.values[i],true);
+      }
+      failures += latencies.failures;
+    }
+
+    private double percentile(double p) {
+      return count == 0 ? 0 : values[(int) Math.min(count-1,Math.ceil(p*count)-1)]/1e6;
+    }
+  }
+
+  private final List<Peer> peers = new ArrayList<Peer>();
+  private final List<String> files = new ArrayList<String>();
+  private final List<Peer> owners = new ArrayList<Peer>();
+  private final long sizes[];
+  private final double sizeWeights[];
+  private final String operations[];
+  private final double operationWeights[];
+  private final double popularity[];
+  /**
+   * The downloads and replications in progress, by peer and file, so that a peer does not write a file twice at once.
+   */
+  private final Set<String> busy = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+  private final AtomicInteger registered = new AtomicInteger();
+
+  private ClusterTest(Map<String,String> options, int fileCount) {
+    List<String> sizeList = new ArrayList<String>();
+    sizeWeights = weights(options.get("sizes"),sizeList);
+    sizes = new long[sizeList.size()];
+    for(int i=0;i<sizes.length;i++) {
+      sizes[i] = parseSize(sizeList.get(i));
+    }
+    List<String> operationList = new ArrayList<String>();
+    operationWeights = weights(options.get("mix"),operationList);
+    operations = operationList.toArray(new String[0]);
+    double exponent = Double.parseDouble(options.get("zipf"));
+    popularity = new double[fileCount];
+    double total = 0;
+    for(int i=0;i<fileCount;i++) {
+      total += 1/Math.pow(i+1,exponent);
+      popularity[i] = total;
+    }
+    for(int i=0;i<fileCount;i++) {
+      popularity[i] /= total;
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    if(args.length < 4) {
+      System.out.println("Usage: ClusterTest <peers> <files> <seconds> <threads> [option=value ...]");
+      return;
+    }
+    int peerCount = Integer.parseInt(args[0]);
+    int fileCount = Integer.parseInt(args[1]);
+    final int seconds = Integer.parseInt(args[2]);
+    int threads = Integer.parseInt(args[3]);
+    if(peerCount < 1 || peerCount > Constant.MAX_SERVER) {
+      System.out.println("The number of peers must be between 1 and "+Constant.MAX_SERVER+".");
+      return;
+    }
+    Map<String,String> options = new LinkedHashMap<String,String>();
+    options.put("port","27100");
+    options.put("sizes","4096:70,65536:25,1048576:5");
+    options.put("zipf","1.0");
+    options.put("mix",SEARCH+":60,"+DOWNLOAD+":30,"+REGISTER+":5,"+REPLICATE+":5");
+    options.put("kill","0");
+    options.put("killAt",""+seconds/2);
+    options.put("keep","0");
+    Map<String,String> settings = new LinkedHashMap<String,String>();
+    for(String setting[] : DEFAULTS) {
+      settings.put(setting[0],setting[1]);
+    }
+    for(int i=4;i<args.length;i++) {
+      int equals = args[i].indexOf('=');
+      if(equals < 0) {
+        System.out.println("The option "+args[i]+" is not of the form option=value.");
+        return;
+      }
+      String name = args[i].substring(0,equals);
+      (options.containsKey(name) ? options : settings).put(name,args[i].substring(equals+1));
+    }
+
+    ClusterTest test = new ClusterTest(options,fileCount);
+    PrintStream out = System.out;
+    Path root = Files.createTempDirectory("cluster");
+    System.setOut(new PrintStream(new OutputStream() {
+      public void write(int b) {
+      }
+
+      public void write(byte b[], int off, int len) {
+      }
+    }));
+    try {
+      long start = System.nanoTime();
+      test.start(root.toFile(),peerCount,Integer.parseInt(options.get("port")),settings);
+      test.createFiles(fileCount);
+      for(Peer peer : test.peers) {
+        peer.registerAll();
+      }
+      out.println(String.format("%d peers started and %d files registered and replicated in %d ms.",peerCount,fileCount,
+          (System.nanoTime()-start)/1000000));
+      Map<String,Latencies> results = test.run(threads,seconds*1000L,Integer.parseInt(options.get("kill")),
+          Integer.parseInt(options.get("killAt"))*1000L,out);
+      test.report(results,seconds,threads,out);
+    } finally {
+      System.setOut(out);
+      if(!"1".equals(options.get("keep"))) {
+        delete(root.toFile());
+      }
+      else {
+        out.println("The directories of the peers were kept in "+root+".");
+      }
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Writes the configuration files of the peers and starts them.
+   */
+  private void start(File root, int count, int port, Map<String,String> settings) throws Exception {
+    StringBuilder common = new StringBuilder("numberOfClient="+count+"\n");
+    for(int i=1;i<=count;i++) {
+      common.append("client"+i+"=127.0.0.1\nclient"+i+"port="+(port+i-1)+"\n");
+    }
+    for(Map.Entry<String,String> setting : settings.entrySet()) {
+      common.append(setting.getKey()+"="+setting.getValue()+"\n");
+    }
+    URL location = ClusterTest.class.getProtectionDomain().getCodeSource().getLocation();
+    for(int i=1;i<=count;i++) {
+      File directory = new File(root,"peer"+i);
+      StringBuilder config = new StringBuilder(common);
+      for(String name : new String[] {"share","replica","download"}) {
+        new File(directory,name).mkdirs();
+        config.append(name+"Directory="+new File(directory,name).getPath().replace('\\','/')+"\n");
+      }
+      if(settings.containsKey("indexDirectory")) {
+        config.append("indexDirectory="+new File(directory,"index").getPath().replace('\\','/')+"\n");
+      }
+      Files.write(new File(directory,"config.properties").toPath(),config.toString().getBytes("UTF-8"));
+      peers.add(new Peer(i,directory,location));
+    }
+    Thread.sleep(500);
+  }
+
+  /**
+   * Writes the files of the run in the share directories of the peers, one peer after the other.
+   */
+  private void createFiles(int count) throws IOException {
+    Random random = new Random(1);
+    for(int i=0;i<count;i++) {
+      Peer owner = peers.get(i%peers.size());
+      String filename = "f"+i+".bin";
+      write(owner.getShareFile(filename),sizes[pick(sizeWeights,random.nextDouble())],random);
+      files.add(filename);
+      owners.add(owner);
+    }
+  }
+
+  /**
+   * Runs the workload from several threads, and kills peers on the way.
+   * @return latencies - The latencies of each operation.
+   */
+  private Map<String,Latencies> run(int threads, long duration, int kill, long killAt, PrintStream out)
+      throws Exception {
+    final long start = System.nanoTime();
+    final long end = start+duration*1000000;
+    final List<Map<String,Latencies>> measured = new ArrayList<Map<String,Latencies>>();
+    Thread workers[] = new Thread[threads];
+    for(int t=0;t<threads;t++) {
+      final Map<String,Latencies> latencies = new LinkedHashMap<String,Latencies>();
+      for(String operation : operations) {
+        latencies.put(operation,new Latencies());
+      }
+      measured.add(latencies);
+      final Random random = new Random(t+1);
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          while(System.nanoTime() < end) {
+            String operation = operations[pick(operationWeights,random.nextDouble())];
+            long begin = System.nanoTime();
+            Boolean success = operate(operation,random);
+            if(success != null) {
+              latencies.get(operation).add(System.nanoTime()-begin,success);
+            }
+          }
+        }
+      },"worker-"+t);
+      workers[t].start();
+    }
+    if(kill > 0) {
+      Thread.sleep(Math.max(0,killAt-(System.nanoTime()-start)/1000000));
+      List<Peer> victims = new ArrayList<Peer>(peers);
+      Collections.shuffle(victims,new Random(kill));
+      for(Peer peer : victims.subList(0,Math.min(kill,peers.size()-1))) {
+        peer.kill();
+        out.println(String.format("Peer %d killed at %.1f s.",peer.id,(System.nanoTime()-start)/1e9));
+      }
+    }
+    for(Thread worker : workers) {
+      worker.join();
+    }
+    Map<String,Latencies> results = new LinkedHashMap<String,Latencies>();
+    for(String operation : operations) {
+      Latencies merged = new Latencies();
+      for(Map<String,Latencies> latencies : measured) {
+        merged.addAll(latencies.get(operation));
+      }
+      Arrays.sort(merged.values,0,merged.count);
+      results.put(operation,merged);
+    }
+    return results;
+  }
+
+  /**
+   * Runs an operation from a live peer.
+   * @return success - True if it succeeded, or null if it could not be run at this time.
+   */
+  private Boolean operate(String operation, Random random) {
+    Peer peer = peers.get(random.nextInt(peers.size()));
+    int file = pick(popularity,random.nextDouble());
+    String filename = files.get(file);
+    if(operation.equals(REPLICATE)) {
+      peer = owners.get(file);
+    }
+    if(!peer.alive) {
+      return null;
+    }
+    String task = operation.equals(DOWNLOAD) || operation.equals(REPLICATE) ? peer.id+"/"+filename : null;
+    if(task != null && !busy.add(task)) {
+      return null;
+    }
+    try {
+      if(operation.equals(SEARCH)) {
+        return peer.find(filename)[0] != 0;
+      }
+      else if(operation.equals(DOWNLOAD)) {
+        int peerId[] = peer.find(filename);
+        return peerId[0] != 0 && peer.download(filename,peerId);
+      }
+      else if(operation.equals(REGISTER)) {
+        File created = peer.getShareFile("r"+registered.incrementAndGet()+".bin");
+        write(created,sizes[pick(sizeWeights,random.nextDouble())],random);
+        peer.register(created);
+        return true;
+      }
+      else if(operation.equals(REPLICATE)) {
+        peer.replicate(peer.getShareFile(filename));
+        return true;
+      }
+      return null;
+    } catch (Exception e) {
+      return false;
+    } finally {
+      if(task != null) {
+        busy.remove(task);
+      }
+    }
+  }
+
+  /**
+   * Prints the throughput and the latencies of each operation.
+   */
+  private void report(Map<String,Latencies> results, int seconds, int threads, PrintStream out) {
+    out.println(String.format("%d threads for %d s.",threads,seconds));
+    out.println(String.format("%-10s %9s %8s %10s %10s %10s %10s","operation","count","failed","ops/s","p50 ms",
+        "p99 ms","p99.9 ms"));
+    long total = 0;
+    for(Map.Entry<String,Latencies> result : results.entrySet()) {
+      Latencies latencies = result.getValue();
+      total += latencies.count;
+      out.println(String.format("%-10s %9d %8d %10.1f %10.2f %10.2f %10.2f",result.getKey(),latencies.count,
+          latencies.failures,(double) latencies.count/seconds,latencies.percentile(0.5),latencies.percentile(0.99),
+          latencies.percentile(0.999)));
+    }
+    out.println(String.format("%-10s %9d %8s %10.1f","all",total,"",(double) total/seconds));
+  }
+
+  /**
+   * Parses a list of value:weight pairs.
+   * @param list - The list.
+   * @param values - The values, in their order.
+   * @return cumulative - The cumulative weights of the values, the last one being 1.
+   */
+  private static double[] weights(String list, List<String> values) {
+    String pairs[] = list.split(",");
+    double cumulative[] = new double[pairs.length];
+    double total = 0;
+    for(int i=0;i<pairs.length;i++) {
+      int colon = pairs[i].lastIndexOf(':');
+      values.add(colon < 0 ? pairs[i] : pairs[i].substring(0,colon));
+      total += colon < 0 ? 1 : Double.parseDouble(pairs[i].substring(colon+1));
+      cumulative[i] = total;
+    }
+    for(int i=0;i<cumulative.length;i++) {
+      cumulative[i] /= total;
+    }
+    return cumulative;
+  }
+
+  /**
+   * @param cumulative - Cumulative weights, the last one being 1.
+   * @param p - A number between 0 and 1.
+   * @return index - The first index whose cumulative weight is p or more.
+   */
+  private static int pick(double cumulative[], double p) {
+    int i = Arrays.binarySearch(cumulative,p);
+    return Math.min(cumulative.length-1,i < 0 ? -i-1 : i);
+  }
+
+  /**
+   * Parses a size in bytes, which can end with K or M.
+   */
+  private static long parseSize(String size) {
+    char unit = Character.toUpperCase(size.charAt(size.length()-1));
+    if(unit == 'K' || unit == 'M') {
+      return Long.parseLong(size.substring(0,size.length()-1))*(unit == 'K' ? 1024 : 1024*1024);
+    }
+    return Long.parseLong(size);
+  }
+
+  private static void write(File file, long size, Random random) throws IOException {
+    byte buffer[] = new byte[(int) Math.min(size,64*1024)];
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      for(long written = 0;written < size;written += buffer.length) {
+        random.nextBytes(buffer);
+        out.write(buffer,0,(int) Math.min(buffer.length,size-written));
+      }
+    }
+  }
+
+  private static void delete(File file) {
+    File children[] = file.listFiles();
+    if(children != null) {
+      for(File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
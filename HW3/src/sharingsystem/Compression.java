@@ -0,0 +1,199 @@
+package sharingsystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of the files sent over a connection of the binary protocol, once both peers agreed on it.
+ * The bytes following a DAT# frame are sent as blocks of up to BLOCK_SIZE bytes, each one being the varint length of its
+ * bytes, the varint length of its compressed bytes and the bytes themselves, compressed with Deflater at its fastest level
+ * or stored as they are if the compressed length is 0. The length of the DAT# frame is still the length of the file.
+ * A block which does not save an eighth of its length is stored. After such a block the next blocks are stored without
+ * trying, one then twice as many each time up to MAX_SKIP, so that a file which does not compress costs little.
+ * A connection has one compressor for the blocks it sends and one for the blocks it receives.
+ */
+public class Compression {
+
+  /**
+   * The name of the codec, agreed on by the CMP# message.
+   */
+  public static final String DEFLATE = "deflate";
+  /**
+   * The largest number of bytes in a block.
+   */
+  public static final int BLOCK_SIZE = 64*1024;
+  /**
+   * The largest number of blocks stored without trying to compress them.
+   */
+  private static final int MAX_SKIP = 64;
+
+  /**
+   * The statistics of all the connections of the peer.
+   */
+  private static final AtomicLong bytesIn = new AtomicLong();
+  private static final AtomicLong bytesOut = new AtomicLong();
+  private static final AtomicLong compressTime = new AtomicLong();
+  private static final AtomicLong compressedBlocks = new AtomicLong();
+  private static final AtomicLong storedBlocks = new AtomicLong();
+  private static final AtomicLong bytesDecompressed = new AtomicLong();
+  private static final AtomicLong decompressTime = new AtomicLong();
+
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED,true);
+  private final Inflater inflater = new Inflater(true);
+  /**
+   * The compressed bytes of the block sent, the bytes of the block received and its compressed bytes.
+   */
+  private final byte encoded[] = new byte[BLOCK_SIZE];
+  private final byte block[] = new byte[BLOCK_SIZE];
+  private final byte input[] = new byte[BLOCK_SIZE];
+  /**
+   * The number of blocks left to store without trying, and the number stored after the last block which did not compress.
+   */
+  private int skip;
+  private int backoff;
+
+  /**
+   * Writes bytes as blocks.
+   * @param out - The stream.
+   * @param b - The bytes.
+   * @param off - The position of the first byte.
+   * @param len - The number of bytes.
+   * @throws IOException - If the blocks could not be written.
+   */
+  public void write(OutputStream out, byte b[], int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(BLOCK_SIZE,len);
+      int compressed = skip > 0 ? 0 : compress(b,off,n);
+      if (skip > 0) {
+        skip--;
+      }
+      writeVarint(out,n);
+      writeVarint(out,compressed);
+      if (compressed > 0) {
+        out.write(encoded,0,compressed);
+        compressedBlocks.incrementAndGet();
+      }
+      else {
+        out.write(b,off,n);
+        storedBlocks.incrementAndGet();
+      }
+      bytesIn.addAndGet(n);
+      bytesOut.addAndGet(compressed > 0 ? compressed : n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Reads a block. Its bytes are then in getBlock().
+   * @param in - The stream.
+   * @return length - The number of bytes of the block.
+   * @throws IOException - If the block could not be read or is not valid.
+   */
+  public int read(InputStream in) throws IOException {
+    long n = readVarint(in);
+    long compressed = readVarint(in);
+    if (n <= 0 || n > BLOCK_SIZE || compressed < 0 || compressed > BLOCK_SIZE) {
+      throw new IOException("Malformed compressed block.");
+    }
+    if (compressed == 0) {
+      readFully(in,block,(int) n);
+      return (int) n;
+    }
+    readFully(in,input,(int) compressed);
+    long start = System.nanoTime();
+    inflater.reset();
+    inflater.setInput(input,0,(int) compressed);
+    int length = 0;
+    try {
+      while (length < n && !inflater.finished()) {
+        int i = inflater.inflate(block,length,(int) n-length);
+        if (i == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        length += i;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Malformed compressed block.");
+    }
+    if (length != n) {
+      throw new IOException("Malformed compressed block.");
+    }
+    decompressTime.addAndGet(System.nanoTime()-start);
+    bytesDecompressed.addAndGet(n);
+    return length;
+  }
+
+  /**
+   * @return block - The bytes of the block read last.
+   */
+  public byte[] getBlock() {
+    return block;
+  }
+
+  /**
+   * @return report - The bytes saved by the compression of the files sent, and the time it cost per byte.
+   */
+  public static String report() {
+    long in = bytesIn.get();
+    long out = bytesOut.get();
+    long decompressed = bytesDecompressed.get();
+    return String.format("Compression: %d bytes sent as %d (%.1f%% saved), %d blocks compressed, %d stored, "
+        +"%.2f ns per byte compressed, %.2f ns per byte decompressed.",in,out,in == 0 ? 0 : (in-out)*100.0/in,
+        compressedBlocks.get(),storedBlocks.get(),in == 0 ? 0 : (double) compressTime.get()/in,
+        decompressed == 0 ? 0 : (double) decompressTime.get()/decompressed);
+  }
+
+  /**
+   * Compresses a block into the encoded buffer.
+   * @return compressed - The length of the compressed block, or 0 if it does not save an eighth of the block.
+   */
+  private int compress(byte b[], int off, int n) {
+    long start = System.nanoTime();
+    deflater.reset();
+    deflater.setInput(b,off,n);
+    deflater.finish();
+    int limit = n-n/8;
+    int length = 0;
+    while (!deflater.finished() && length < limit) {
+      length += deflater.deflate(encoded,length,limit-length);
+    }
+    compressTime.addAndGet(System.nanoTime()-start);
+    if (!deflater.finished()) {
+      backoff = Math.min(MAX_SKIP,Math.max(1,backoff*2));
+      skip = backoff;
+      return 0;
+    }
+    backoff = 0;
+    return length;
+  }
+
+  private static void writeVarint(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarint(InputStream in) throws IOException {
+    return FrameCodec.readVarint(in);
+  }
+
+  private static void readFully(InputStream in, byte buffer[], int length) throws IOException {
+    int offset = 0;
+    while (offset < length) {
+      int i = in.read(buffer,offset,length-offset);
+      if (i < 0) {
+        throw new EOFException();
+      }
+      offset += i;
+    }
+  }
+}
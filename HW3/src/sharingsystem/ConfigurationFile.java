@@ -4,155 +4,608 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ConfigurationFile {
 
   /**
-   * The number of clients
+   * The name of the configuration file.
    */
-  private static int clientNumber;
+  private static final String FILENAME = "config.properties";
+
+  /**
+   * The path of the configuration file read, FILENAME unless another one was set.
+   */
+  private static volatile String filename = FILENAME;
+
+  /**
+   * The time waited after a change of the file before reloading it, so that several events are coalesced.
+   */
+  private static final long RELOAD_DELAY = 100;
+
   /**
-   * Clients' IP addresses.
+   * The configuration currently in use. It is never modified, a reload replaces it as a whole.
    */
-  private static String clientIp[];
+  private static volatile Snapshot snapshot;
+
   /**
-   * Clients' port numbers.
+   * The number of times the file was loaded.
    */
-  private static int clientPort[];
-  
+  private static final AtomicLong reloadCount = new AtomicLong();
+
   /**
-   * The three directories used to share and download files.
+   * The number of reads answered by the cached configuration.
    */
-  private static String downloadDirectory;
-  private static String shareDirectory;
-  private static String replicaDirectory;
-  
+  private static final LongAdder cacheHitCount = new LongAdder();
+
   /**
-   * The status of replication.
-   * true if enabled.
-   * false if disabled.
+   * The thread watching the configuration file.
    */
-  private static boolean replica;
-  
+  private static Thread watcher;
+
+  /**
+   * An immutable view of the parsed configuration file.
+   */
+  private static final class Snapshot {
+    /**
+     * The number of clients
+     */
+    private final int clientNumber;
+    /**
+     * Clients' IP addresses.
+     */
+    private final String clientIp[];
+    /**
+     * Clients' port numbers.
+     */
+    private final int clientPort[];
+    /**
+     * The three directories used to share and download files.
+     */
+    private final String downloadDirectory;
+    private final String shareDirectory;
+    private final String replicaDirectory;
+    /**
+     * The status of replication.
+     * true if enabled.
+     * false if disabled.
+     */
+    private final boolean replica;
+    /**
+     * The number of replica
+     */
+    private final int replicaNumber;
+    /**
+     * The protocol used to connect to other peers.
+     */
+    private final String protocol;
+    /**
+     * The kind of server answering other peers.
+     */
+    private final String serverMode;
+    /**
+     * The maximum number of connections handled at once by the server. 0 for no limit.
+     */
+    private final int maxConnections;
+    /**
+     * True if files are downloaded from all the peers having them at once.
+     */
+    private final boolean parallelDownload;
+    /**
+     * The number of points of each peer on the consistent-hash ring.
+     */
+    private final int virtualNodes;
+    /**
+     * What the replicas are placed and stored by.
+     */
+    private final String keyMode;
+    /**
+     * The directory of the durable index, or null if the index lives in memory only.
+     */
+    private final String indexDirectory;
+    /**
+     * The time between two checks of the size of the index log for a snapshot, in seconds.
+     */
+    private final int snapshotInterval;
+    /**
+     * The number of registrations sent in a batch, and the number of batches sent to a server before its answers are read.
+     */
+    private final int batchSize;
+    private final int batchWindow;
+    /**
+     * True if the shared directory is watched and its changes registered while the peer runs.
+     */
+    private final boolean watchShare;
+    /**
+     * True if searches and downloads are sent as requests answered in any order over one connection per server.
+     */
+    private final boolean multiplex;
+    /**
+     * The number of searches cached by a client, and the time in seconds their answers are kept.
+     */
+    private final int lookupCacheSize;
+    private final int lookupCacheTtl;
+    /**
+     * The size in MB of the contents of the files kept in memory by the server.
+     */
+    private final int fileCacheSize;
+    /**
+     * The number of threads replicating the files registered in the background. 0 replicates them during the registration.
+     */
+    private final int replicationThreads;
+    /**
+     * True if a replicated file is sent to its first replica only, which forwards it along the other replicas.
+     */
+    private final boolean replicationChain;
+    /**
+     * True if the files sent over the binary protocol are compressed, when the other peer agrees.
+     */
+    private final boolean compression;
+    /**
+     * True if the files downloaded are checked against the checksums of the peer sending them.
+     */
+    private final boolean checksums;
+    /**
+     * The number of bytes per second read by ReplicaScrubber. 0 if the replicas are not scrubbed.
+     */
+    private final long scrubRate;
+    /**
+     * True if the replicas holding an older copy of a file are sent a delta instead of the whole file.
+     */
+    private final boolean deltaReplication;
+
+    /**
+     * The default snapshot used when the file could not be read.
+     */
+    private Snapshot() {
+      this(0,new String[0],new int[0],0,new Properties());
+    }
+
+    /**
+     * Constructor taking the settings that must be in the file, the optional ones being read from the properties.
+     * @param clientNumber - The number of clients.
+     * @param clientIp - Clients' IP addresses.
+     * @param clientPort - Clients' port numbers.
+     * @param replicaNumber - The number of replica.
+     * @param prop - The properties read from the file.
+     */
+    private Snapshot(int clientNumber, String clientIp[], int clientPort[], int replicaNumber, Properties prop) {
+      this.clientNumber = clientNumber;
+      this.clientIp = clientIp;
+      this.clientPort = clientPort;
+      this.replicaNumber = replicaNumber;
+      this.downloadDirectory = prop.getProperty("downloadDirectory");
+      this.shareDirectory = prop.getProperty("shareDirectory");
+      this.replicaDirectory = prop.getProperty("replicaDirectory");
+      this.replica = "1".equals(prop.getProperty("replica"));
+      this.protocol = choice(prop,"protocol",Constant.PROTOCOL_AUTO,Constant.PROTOCOL_LEGACY,Constant.PROTOCOL_BINARY);
+      this.serverMode = choice(prop,"serverMode",Constant.SERVER_BLOCKING,Constant.SERVER_NIO,Constant.SERVER_VIRTUAL);
+      this.maxConnections = Integer.parseInt(prop.getProperty("maxConnections","0"));
+      this.parallelDownload = "1".equals(prop.getProperty("parallelDownload","1"));
+      this.virtualNodes = Integer.parseInt(prop.getProperty("virtualNodes",""+Constant.VIRTUAL_NODES));
+      this.keyMode = choice(prop,"keyMode",Constant.KEY_NAME,Constant.KEY_CONTENT);
+      this.indexDirectory = prop.getProperty("indexDirectory");
+      this.snapshotInterval = Integer.parseInt(prop.getProperty("snapshotInterval",""+Constant.SNAPSHOT_INTERVAL));
+      this.batchSize = Integer.parseInt(prop.getProperty("batchSize",""+Constant.BATCH_SIZE));
+      this.batchWindow = Integer.parseInt(prop.getProperty("batchWindow",""+Constant.BATCH_WINDOW));
+      this.watchShare = "1".equals(prop.getProperty("watchShare","1"));
+      this.multiplex = "1".equals(prop.getProperty("multiplex","1"));
+      this.lookupCacheSize = Integer.parseInt(prop.getProperty("lookupCacheSize",""+Constant.LOOKUP_CACHE_SIZE));
+      this.lookupCacheTtl = Integer.parseInt(prop.getProperty("lookupCacheTtl",""+Constant.LOOKUP_CACHE_TTL));
+      this.fileCacheSize = Integer.parseInt(prop.getProperty("fileCacheSize",""+Constant.FILE_CACHE_SIZE));
+      this.replicationThreads = Integer.parseInt(prop.getProperty("replicationThreads",""+Constant.REPLICATION_THREADS));
+      this.replicationChain = "1".equals(prop.getProperty("replicationChain","1"));
+      this.compression = "1".equals(prop.getProperty("compression","0"));
+      this.checksums = "1".equals(prop.getProperty("checksums","1"));
+      this.scrubRate = Long.parseLong(prop.getProperty("scrubRate",""+Constant.SCRUB_RATE));
+      this.deltaReplication = "1".equals(prop.getProperty("deltaReplication","1"));
+    }
+  }
+
   /**
-   * The number of replica
+   * Reads a property which can only take some values.
+   * @param prop - The properties.
+   * @param name - The name of the property.
+   * @param def - The value used if the property is missing or has another value.
+   * @param values - The other values allowed.
+   * @return value - The value of the property.
    */
-  private static int replicaNumber;
+  private static String choice(Properties prop, String name, String def, String... values) {
+    String value = prop.getProperty(name);
+    for(String allowed : values) {
+      if(allowed.equals(value)) {
+        return allowed;
+      }
+    }
+    return def;
+  }
+
   /**
-   * The function loads the 'config.properties' file and sets the static attributes.
+   * The function loads the 'config.properties' file and replaces the cached configuration.
+   * If the file could not be read, the previous configuration is kept.
    */
   public static void loadFile() {
-    String filename = "config.properties";
     Properties prop = new Properties();
     try {
       InputStream in = new FileInputStream(filename);
-      prop.load(in);
-      clientNumber=Integer.parseInt(prop.getProperty("numberOfClient"));
+      try {
+        prop.load(in);
+      }
+      finally {
+        in.close();
+      }
+      int clientNumber=Integer.parseInt(prop.getProperty("numberOfClient"));
       if(clientNumber < 1) {
         clientNumber=1;
       }
-      replicaNumber=Integer.parseInt(prop.getProperty("replicaNumber"));
-      clientIp=new String[clientNumber];
-      clientPort = new int[clientNumber];
+      int replicaNumber=Integer.parseInt(prop.getProperty("replicaNumber"));
+      String clientIp[]=new String[clientNumber];
+      int clientPort[] = new int[clientNumber];
       for(int i=0;i<clientNumber;i++) {
         clientIp[i]=prop.getProperty("client"+(i+1));
         clientPort[i]=Integer.parseInt(prop.getProperty("client"+(i+1)+"port"));
       }
-      downloadDirectory=prop.getProperty("downloadDirectory");
-      shareDirectory=prop.getProperty("shareDirectory");
-      replicaDirectory=prop.getProperty("replicaDirectory");
-      if(prop.getProperty("replica")!=null) {
-        if(prop.getProperty("replica").equals("1")) {
-          replica=true;
-        }
-        else {
-          replica=false;
-        }
-      }
-      else {
-        replica=false;
-      }
+      snapshot=new Snapshot(clientNumber,clientIp,clientPort,replicaNumber,prop);
+      reloadCount.incrementAndGet();
     } catch (FileNotFoundException e) {
       System.out.println("Configuration file was not found.");
     } catch (IOException e) {
       System.out.println("Configuration file could not be opened");
     } catch(NullPointerException e) {
       System.out.println("Something in the configuration file could not be read");
+    } catch(NumberFormatException e) {
+      System.out.println("Something in the configuration file could not be read");
+    }
+  }
+
+  /**
+   * Returns the cached configuration. The file is loaded and watched the first time only.
+   * @return snapshot - The configuration currently in use.
+   */
+  private static Snapshot snapshot() {
+    Snapshot current = snapshot;
+    if(current == null) {
+      synchronized(ConfigurationFile.class) {
+        if(snapshot == null) {
+          loadFile();
+          if(snapshot == null) {
+            snapshot = new Snapshot();
+          }
+          startWatcher();
+        }
+        return snapshot;
+      }
+    }
+    cacheHitCount.increment();
+    return current;
+  }
+
+  /**
+   * Reads the configuration from another file. It must be called before the configuration is first read.
+   * ClusterTest loads each peer of a cluster run in one JVM with its own class loader, and gives each one its own file.
+   * @param name - The path of the file.
+   */
+  public static synchronized void setFile(String name) {
+    filename = name;
+  }
+
+  /**
+   * Starts a daemon thread reloading the configuration each time the file is created or modified.
+   */
+  private static void startWatcher() {
+    final Path file = Paths.get(filename).toAbsolutePath();
+    final WatchService service;
+    try {
+      service = FileSystems.getDefault().newWatchService();
+      file.getParent().register(service,StandardWatchEventKinds.ENTRY_CREATE,StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException e) {
+      System.out.println("Configuration file will not be reloaded. It could not be watched.");
+      return;
     }
+    watcher = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while(true) {
+            WatchKey watchKey = service.take();
+            boolean changed = false;
+            for(WatchEvent<?> event : watchKey.pollEvents()) {
+              if(file.getFileName().equals(event.context())) {
+                changed = true;
+              }
+            }
+            watchKey.reset();
+            if(changed) {
+              Thread.sleep(RELOAD_DELAY);
+              WatchKey pending;
+              while((pending = service.poll()) != null) {
+                pending.pollEvents();
+                pending.reset();
+              }
+              loadFile();
+              System.out.println("Configuration file reloaded. "+report());
+            }
+          }
+        } catch (InterruptedException e) {
+          ;
+        } catch (ClosedWatchServiceException e) {
+          ;
+        }
+      }
+    }, "config-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
 
+  /**
+   * Returns the number of times the configuration file was loaded.
+   * @return reloadCount - The number of loads.
+   */
+  public static long getReloadCount() {
+    return reloadCount.get();
+  }
+
+  /**
+   * Returns the number of reads answered from the cached configuration without touching the file.
+   * @return cacheHitCount - The number of cached reads.
+   */
+  public static long getCacheHitCount() {
+    return cacheHitCount.sum();
+  }
 
+  /**
+   * @return report - The number of loads of the file and of reads answered from the cached configuration.
+   */
+  public static String report() {
+    return "Configuration: "+getReloadCount()+" loads, "+getCacheHitCount()+" cached reads.";
   }
+
   /**
-   * Load the file to return the clients' IP addresses.
+   * Return the clients' IP addresses from the cached configuration.
    * @return clientIp - The clients' IP addresses.
    */
   public static String[] getClientIp(){
-    loadFile();
-    return clientIp;
+    return snapshot().clientIp.clone();
   }
 
   /**
-   * Load the file to return the clients' port numbers.
+   * Return the clients' port numbers from the cached configuration.
    * @return clientPort - The clients' port numbers.
    */
   public static int[] getClientPort() {
-    loadFile();
-    return clientPort;
+    return snapshot().clientPort.clone();
   }
-  
+
   /**
-   * Load the file to return the name of the directory where downloaded files should be stored.
+   * Return the name of the directory where downloaded files should be stored.
    * @return downloadDirectory - The name of the directory
    */
   public static String getDownloadDirectory() {
-    loadFile();
-    return downloadDirectory;
+    return snapshot().downloadDirectory;
   }
-  
+
   /**
-   * Load the file to return the name of the directory containing the files to be shared.
+   * Return the name of the directory containing the files to be shared.
    * @return shareDirectory - The name of the directory.
    */
   public static String getShareDirectory() {
-    loadFile();
-    return shareDirectory;
+    return snapshot().shareDirectory;
   }
-  
+
   /**
-   * Load the file to return the name of the directory containing the replicated files to be shared.
+   * Return the name of the directory containing the replicated files to be shared.
    * @return replicaDirectory - The name of the directory.
    */
   public static String getReplicaDirectory() {
-    loadFile();
-    return replicaDirectory;
+    return snapshot().replicaDirectory;
   }
-  
+
   /**
-   * Load the file to return the status of replication (Enabled/Disabled)
+   * Return the status of replication (Enabled/Disabled)
    * @return replica - True if enabled, false if disabled.
    */
   public static boolean isReplicaEnabled() {
-    loadFile();
-    return replica;
+    return snapshot().replica;
   }
-  
+
   /**
-   * Load the file to return the number of replica
+   * Return the number of replica
    * @return replicaNumber - The number of replica
    */
   public static int getReplicaNumber() {
-    loadFile();
-    return replicaNumber;
+    return snapshot().replicaNumber;
   }
-  
+
   /**
-   * Load the file to return the number of clients.
+   * Return the number of clients.
    * @return clientNumber - The number of clients
    */
   public static int getClientNumber() {
-    loadFile();
-    return clientNumber;
+    return snapshot().clientNumber;
+  }
+
+  /**
+   * Return the protocol used to connect to other peers.
+   * 'binary', 'legacy', or 'auto' to try the binary protocol first and fall back to the legacy one.
+   * @return protocol - The protocol
+   */
+  public static String getProtocol() {
+    return snapshot().protocol;
+  }
+
+  /**
+   * Return the kind of server answering other peers.
+   * 'blocking' for a thread per connection, 'virtual' for a virtual thread per connection,
+   * 'nio' for event loops on non-blocking channels (binary protocol only).
+   * @return serverMode - The server mode
+   */
+  public static String getServerMode() {
+    return snapshot().serverMode;
+  }
+
+  /**
+   * Return the maximum number of connections handled at once by the server.
+   * @return maxConnections - The maximum number of connections, 0 for no limit
+   */
+  public static int getMaxConnections() {
+    return snapshot().maxConnections;
+  }
+
+  /**
+   * Return the status of parallel downloads (Enabled/Disabled)
+   * @return parallelDownload - True if files are downloaded from all the peers having them at once.
+   */
+  public static boolean isParallelDownload() {
+    return snapshot().parallelDownload;
+  }
+
+  /**
+   * Return the number of points of each peer on the consistent-hash ring.
+   * @return virtualNodes - The number of virtual nodes per peer
+   */
+  public static int getVirtualNodes() {
+    return snapshot().virtualNodes;
+  }
+
+  /**
+   * Return what the replicas are placed and stored by.
+   * 'name' for the key of the file name, 'content' for the key of the bytes of the file,
+   * so that identical files are replicated to the same peers and stored there once.
+   * @return keyMode - The key mode
+   */
+  public static String getKeyMode() {
+    return snapshot().keyMode;
+  }
+
+  /**
+   * Return the directory of the durable index. Each server keeps its index in its own directory in it.
+   * @return indexDirectory - The index directory, or null if the index lives in memory only
+   */
+  public static String getIndexDirectory() {
+    return snapshot().indexDirectory;
+  }
+
+  /**
+   * Return the time between two checks of the size of the index log. A snapshot is written if the log reached
+   * a quarter of the size of the last snapshot.
+   * @return snapshotInterval - The interval in seconds
+   */
+  public static int getSnapshotInterval() {
+    return snapshot().snapshotInterval;
+  }
+
+  /**
+   * Return the number of registrations sent together when the shared directory is registered.
+   * 1 registers the files one by one, each one waiting for the answer of the server.
+   * @return batchSize - The number of registrations of a batch
+   */
+  public static int getBatchSize() {
+    return snapshot().batchSize;
+  }
+
+  /**
+   * Return the number of batches of registrations sent to a server before its answers are read.
+   * @return batchWindow - The number of batches in flight per server
+   */
+  public static int getBatchWindow() {
+    return snapshot().batchWindow;
+  }
+
+  /**
+   * Return the status of the watcher of the shared directory (Enabled/Disabled)
+   * @return watchShare - True if the files added, changed or deleted while the peer runs are registered or unregistered.
+   */
+  public static boolean isWatchShare() {
+    return snapshot().watchShare;
+  }
+
+  /**
+   * Return the status of request multiplexing (Enabled/Disabled)
+   * @return multiplex - True if searches and downloads are multiplexed over one connection per server.
+   */
+  public static boolean isMultiplex() {
+    return snapshot().multiplex;
+  }
+
+  /**
+   * Return the number of searches whose answers are cached by a client. 0 disables the cache.
+   * @return lookupCacheSize - The number of files cached
+   */
+  public static int getLookupCacheSize() {
+    return snapshot().lookupCacheSize;
+  }
+
+  /**
+   * Return the time the answer of a search is cached, when the file was found.
+   * @return lookupCacheTtl - The time in seconds
+   */
+  public static int getLookupCacheTtl() {
+    return snapshot().lookupCacheTtl;
+  }
+
+  /**
+   * Return the size of the cache of the files downloaded most often. 0 disables the cache.
+   * @return fileCacheSize - The size in MB
+   */
+  public static int getFileCacheSize() {
+    return snapshot().fileCacheSize;
+  }
+
+  /**
+   * Return the number of threads replicating the files in the background. 0 replicates them during the registration.
+   * @return replicationThreads - The number of threads
+   */
+  public static int getReplicationThreads() {
+    return snapshot().replicationThreads;
+  }
+
+  /**
+   * Return the status of chain replication (Enabled/Disabled)
+   * @return replicationChain - True if a replicated file is forwarded from replica to replica instead of sent to each of them.
+   */
+  public static boolean isReplicationChain() {
+    return snapshot().replicationChain;
+  }
+
+  /**
+   * Return the status of the compression of the files sent (Enabled/Disabled)
+   * @return compression - True if the files sent over the binary protocol are compressed when the other peer agrees.
+   */
+  public static boolean isCompression() {
+    return snapshot().compression;
+  }
+
+  /**
+   * Return the status of the checking of the files downloaded (Enabled/Disabled)
+   * @return checksums - True if the files downloaded are checked against the checksums of the peer sending them.
+   */
+  public static boolean isChecksums() {
+    return snapshot().checksums;
   }
-  
+
+  /**
+   * Return the rate at which the replicas are scrubbed.
+   * @return scrubRate - The number of bytes per second read by ReplicaScrubber, or 0 if the replicas are not scrubbed.
+   */
+  public static long getScrubRate() {
+    return snapshot().scrubRate;
+  }
+
+  /**
+   * Return the status of delta replication (Enabled/Disabled)
+   * @return deltaReplication - True if the replicas holding an older copy of a file are sent a delta instead of the whole file.
+   */
+  public static boolean isDeltaReplication() {
+    return snapshot().deltaReplication;
+  }
+
 }
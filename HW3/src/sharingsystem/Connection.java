@@ -1,59 +1,180 @@
 package sharingsystem;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Arrays;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
+/**
+ * A connection of a client to the server.
+ * Messages without a request id are answered one after the other. Messages with one are requests answered
+ * concurrently by a thread pool, their answers carrying the same id and coming back in any order. A file asked by
+ * a request is sent in chunks, so that the answers to other requests are not held up by a large transfer.
+ */
 public class Connection implements Runnable {
+  /**
+   * The threads answering the requests of all connections.
+   */
+  private static final ExecutorService requests = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable,"request");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
   /**
    * The socket connected to the server.
    */
   private Socket socket;
   /**
-   * The table containing the keys and values.
+   * The message stream of the socket. Opened by run() once the protocol of the client is known.
+   */
+  private MessageStream stream;
+  /**
+   * The index containing the keys and values.
+   */
+  private Index index;
+  /**
+   * The id of the request answered, or -1 for the messages answered in order.
    */
-  private Hashtable<String,String> hashtable;
+  private long request = -1;
+  /**
+   * The requests of the connection which may still be answered. Limits the requests answered at once.
+   */
+  private Semaphore pending;
   
   /**
-   * The constructor associating the socket and hashtable to existing ones.
+   * The constructor associating the socket and index to existing ones.
    * @param socket - A socket 
-   * @param hashtable - A hashtable
+   * @param index - An index
    */
-  public Connection(Socket socket, Hashtable<String,String> hashtable) {
+  public Connection(Socket socket, Index index) {
     this.socket = socket;
-    this.hashtable=hashtable;
+    this.index=index;
   }
+
   /**
-   * Put an item in the indexing hashtable represented by its key and value.
+   * The constructor of the connection answering a request.
+   * @param connection - The connection receiving the request.
+   * @param request - The id of the request.
+   */
+  private Connection(Connection connection, long request) {
+    this.socket = connection.socket;
+    this.stream = connection.stream;
+    this.index = connection.index;
+    this.request = request;
+  }
+  /**
+   * Put an item in the index represented by its key and value.
    * Sends an error message to the client in case the item could not be added.
    * Sends a success message if the item could be added.
    * @param key - The key of the item to be added.
+   * @param name - The name of the file, checked on lookup. Can be null.
    * @param value - The value of the item to be added.
    */
-  public void register(String key, String value) {
+  public void register(String key, String name, String value) {
     if(key == null || value == null) {
       returnError();
     }
     else {
-      this.hashtable.put(key, value);
-      returnSuccess(""+value);
+      try {
+        this.index.put(Key.parse(key),name,value);
+        returnSuccess(""+value);
+      } catch (NumberFormatException e) {
+        returnError();
+      } catch (IOException e) {
+        returnError();
+      }
+    }
+  }
+  
+  /**
+   * Put the items of a batch of registrations in the index, and sends one message for the whole batch.
+   * The success message gives the number of items added. Items which could not be added are skipped.
+   * @param batch - The registrations.
+   */
+  public void registerBatch(Message batch[]) {
+    try {
+      returnSuccess(""+putBatch(index,batch));
+    } catch (IOException e) {
+      returnError();
+    }
+  }
+
+  /**
+   * Puts the items of a batch of registrations in an index.
+   * @param index - The index.
+   * @param batch - The registrations.
+   * @return registered - The number of items added.
+   * @throws IOException - If the registrations could not be written to the index log.
+   */
+  public static int putBatch(Index index, Message batch[]) throws IOException {
+    long keys[] = new long[batch.length];
+    String names[] = new String[batch.length];
+    String values[] = new String[batch.length];
+    int count = 0;
+    for (Message message : batch) {
+      if (message.getHeader().equals(Constant.REGISTER_HEADER) && message.getKey() != null && message.getValue() != null) {
+        try {
+          keys[count] = Key.parse(message.getKey());
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        names[count] = message.getName();
+        values[count] = message.getValue();
+        count++;
+      }
+    }
+    return index.put(keys,names,values,count);
+  }
+  
+  /**
+   * Removes an item from the index, if it was registered by the peer given as its original holder.
+   * Sends an error message to the client in case the item could not be removed.
+   * @param key - The key of the item to be removed.
+   * @param name - The name of the file. Can be null.
+   * @param value - The id of the peer.
+   */
+  public void unregister(String key, String name, String value) {
+    try {
+      if(key != null && value != null && index.remove(Key.parse(key),name,Integer.parseInt(value))) {
+        returnSuccess();
+      }
+      else {
+        returnError();
+      }
+    } catch (NumberFormatException e) {
+      returnError();
+    } catch (IOException e) {
+      returnError();
     }
   }
   
   /**
-   * Sends the value of a String in the hashtable represented by a key to the client.
-   * Sends an error message if their is no value.
+   * Sends the value of a String in the index represented by a key to the client.
+   * Sends an error message if their is no value, or if the value was registered for another file name.
    * @param key - The key of the value to be sent.
+   * @param name - The name of the file. Null to accept any name.
    */
-  public void get(String key) {
-    String value =hashtable.get(key);
+  public void get(String key, String name) {
+    String value = null;
+    try {
+      value = key == null ? null : index.get(Key.parse(key),name);
+    } catch (NumberFormatException e) {
+      ;
+    }
     if(value != null) {
       returnSuccess(""+value);
     }
@@ -66,14 +187,8 @@ public class Connection implements Runnable {
    * Sends a message to tell that the operation did not succeed.
    */
   public void returnError() {
-    ObjectOutputStream out;
-    String msg_out=Constant.ERROR_HEADER;
-    try {
-      out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-      byte[] message = new byte[1024];
-      message=msg_out.getBytes();
-      out.write(message);
-      out.flush();
+    try {
+      send(new Message(Constant.ERROR_HEADER,null,null));
     } catch (IOException e) {
       ;
     }
@@ -81,24 +196,11 @@ public class Connection implements Runnable {
   
   /**
    * Sends a message to tell the operation was a success with an added another message to the message.
-   * The added message is separated by a token.
+   * The added message is sent as the value.
    */
   public void returnSuccess(String msg) {
-    ObjectOutputStream out;
-    try {
-      out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-      byte[] header = new byte[4];
-      byte[] key = new byte[20];
-      byte[] value = new byte[1000];
-      byte[] message = new byte[1024];
-      header=Constant.SUCCESS_HEADER.getBytes();
-      key="nokey".getBytes();
-      value=msg.getBytes();
-      System.arraycopy(header, 0, message, 0, header.length);
-      System.arraycopy(key, 0, message, 4, key.length);
-      System.arraycopy(value, 0, message, 24, value.length);
-      out.write(message);
-      out.flush();
+    try {
+      send(new Message(Constant.SUCCESS_HEADER,"nokey",msg));
     } catch (IOException e) {
       ;
     }
@@ -113,11 +215,47 @@ public class Connection implements Runnable {
   
   /**
    * The function used to transfer an owned file to another peer.
+   * The file is sent from the FileCache if it is kept there.
    * @param filename - The name of the file
    * @param header - The header of the message issuing the download.
    */
   public void upload(String filename, String header) {
-    ObjectOutputStream out;
+    try {
+      File file = getSharedFile(filename,header);
+      ByteBuffer content = FileCache.get().get(file);
+      if (request >= 0) {
+        if (content != null) {
+          sendChunks(content);
+        }
+        else {
+          sendChunks(file,0,-1);
+        }
+      }
+      else {
+        stream.getWriteLock().lock();
+        try {
+          if (content != null) {
+            stream.sendContent(content);
+          }
+          else {
+            stream.sendFile(file);
+          }
+        } finally {
+          stream.getWriteLock().unlock();
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("An error occurred trying to share a file.");
+    }
+  }
+
+  /**
+   * The function returns the file asked by a download request.
+   * @param filename - The name of the file
+   * @param header - The header of the message issuing the download.
+   * @return file - The file in the shared directory, or in the replica directory for a replica.
+   */
+  public static File getSharedFile(String filename, String header) {
     String directory="";
     if (header.equals(Constant.DOWNLOAD_HEADER)) {
       directory=ConfigurationFile.getShareDirectory();
@@ -125,17 +263,68 @@ public class Connection implements Runnable {
     else if (header.equals(Constant.DOWNLOAD_REPLICA_HEADER)) {
       directory=ConfigurationFile.getReplicaDirectory();
     }
+    return new File(directory+"/"+filename);
+  }
+
+  /**
+   * The function returns the file asked by a range request.
+   * The shared directory is searched first, then the replica directory.
+   * @param filename - The name of the file
+   * @return file - The file, or null if the peer does not have it.
+   */
+  public static File getRangeFile(String filename) {
+    File file = getSharedFile(filename,Constant.DOWNLOAD_HEADER);
+    if (!file.isFile()) {
+      file = getSharedFile(filename,Constant.DOWNLOAD_REPLICA_HEADER);
+    }
+    return file.isFile() ? file : null;
+  }
+
+  /**
+   * The function answers a range request, used to download parts of a file from several peers.
+   * Without a length, the size of the file is sent in a success message. Otherwise the range is sent.
+   * @param filename - The name of the file
+   * @param offset - The position of the range.
+   * @param length - The length of the range, or -1 to ask for the size of the file.
+   */
+  public void range(String filename, long offset, long length) {
+    File file = filename == null ? null : getRangeFile(filename);
+    if (file == null) {
+      returnError();
+      return;
+    }
     try {
-      File file = new File(directory+"/"+filename);
-      FileInputStream inf=new FileInputStream(file);
-      out = new ObjectOutputStream(socket.getOutputStream());
-      byte buffer[] = new byte[1024];
-      int i;
-      while((i=inf.read(buffer))!=-1){
-         out.write(buffer,0,i);
+      if (length < 0) {
+        send(new Message(Constant.SUCCESS_HEADER,"nokey",null,file.length()));
+      }
+      else {
+        ByteBuffer content = FileCache.get().get(file);
+        if (content != null) {
+          content.position((int) Math.min(Math.max(offset,0),content.limit()));
+          content.limit((int) Math.min(content.limit(),content.position()+length));
+        }
+        if (request >= 0) {
+          if (content != null) {
+            sendChunks(content);
+          }
+          else {
+            sendChunks(file,Math.max(offset,0),length);
+          }
+        }
+        else {
+          stream.getWriteLock().lock();
+          try {
+            if (content != null) {
+              stream.sendChunk(content,content.position(),-1);
+            }
+            else {
+              stream.sendRange(file,Math.max(offset,0),length);
+            }
+          } finally {
+            stream.getWriteLock().unlock();
+          }
+        }
       }
-      inf.close();
-      out.flush();
     } catch (IOException e) {
       System.out.println("An error occurred trying to share a file.");
     }
@@ -146,25 +335,305 @@ public class Connection implements Runnable {
    * @param filename - The name of the file
    */
   public void downloadReplicate(String filename) {
-    ObjectInputStream in;
     try {
       returnSuccess();
-      in=new ObjectInputStream(socket.getInputStream());
-      File file = new File(ConfigurationFile.getReplicaDirectory()+"/"+filename);
-      FileOutputStream outf =new FileOutputStream(file);
-      byte buffer[] = new byte[1024];
-      int i;
-      while((i=in.read(buffer))!=-1){
-          outf.write(buffer,0,i);
-          if (i<1024 ) {
-            break;
-          }
+      stream.receiveFile(new File(ConfigurationFile.getReplicaDirectory()+"/"+filename));
+      storeReplica(filename,null,null);
+    } catch (IOException e) {
+      
+    }
+  }
+
+  /**
+   * The function used to download a replicate of a file designed by its name and the key of its content.
+   * The content is stored once and the name is linked to it, so identical files are only stored and received once.
+   * If the content is already stored, the success message gives its length and nothing is received.
+   * A content damaged on its way is dropped and the connection closed.
+   * @param filename - The name of the file
+   * @param content - The key of the content
+   */
+  public void downloadReplicate(String filename, String content) {
+    try {
+      File stored = getContentFile(content);
+      if (stored.isFile() && storeReplica(filename,content,null)) {
+        send(new Message(Constant.SUCCESS_HEADER,"nokey","Stored",stored.length()));
+        return;
+      }
+      returnSuccess();
+      stored.getParentFile().mkdirs();
+      stream.receiveFile(stored);
+      if (!storeReplica(filename,content,null)) {
+        stream.close();
       }
-      outf.close();
     } catch (IOException e) {
       
     }
   }
+
+  /**
+   * The function used to download a replicate of a file sent along a ReplicaChain, forwarding it to the next replica
+   * while it is written. The content is stored once if its key is given, and forwarded from the disk if it was already stored.
+   * Once done, the number of replicas which stored the file, this one included, is sent back. It is 0 if the file
+   * was damaged on its way to this replica, which is found by the checksums computed while the file is written.
+   * @param filename - The name of the file
+   * @param content - The key of the content, or null
+   * @param chain - The id of the peer holding the file followed by the replicas left after this one
+   * @param key - The key of the name of the file
+   */
+  public void downloadChain(String filename, String content, String chain, String key) {
+    File file = new File(ConfigurationFile.getReplicaDirectory()+"/"+filename);
+    File stored = content == null ? file : getContentFile(content);
+    int ids[];
+    try {
+      ids = ReplicaChain.parse(chain);
+    } catch (NumberFormatException e) {
+      returnError();
+      return;
+    }
+    int next[] = new int[Math.max(0,ids.length-1)];
+    System.arraycopy(ids,1,next,0,next.length);
+    ReplicaChain replicas = new ReplicaChain(key,filename,content,ids.length == 0 ? 0 : ids[0],next);
+    if (!replicas.open()) {
+      replicas = null;
+    }
+    try {
+      boolean intact;
+      if (content != null && stored.isFile() && storeReplica(filename,content,null)) {
+        intact = true;
+        send(new Message(Constant.SUCCESS_HEADER,"nokey","Stored",stored.length()));
+        if (replicas != null) {
+          replicas.send(stored);
+        }
+      }
+      else {
+        returnSuccess();
+        Message data = stream.receive();
+        Checksums checksums = new Checksums();
+        stored.getParentFile().mkdirs();
+        try (InputStream in = stream.receiveStream(data); OutputStream out = new FileOutputStream(stored)) {
+          if (replicas != null) {
+            replicas.start(data.getLength());
+          }
+          byte buffer[] = new byte[64*1024];
+          int i;
+          while ((i = in.read(buffer)) > 0) {
+            out.write(buffer,0,i);
+            checksums.update(buffer,0,i);
+            if (replicas != null) {
+              replicas.write(buffer,0,i);
+            }
+          }
+        }
+        intact = storeReplica(filename,content,checksums.finish());
+      }
+      int forwarded = replicas == null ? 0 : replicas.finish();
+      send(new Message(Constant.SUCCESS_HEADER,"nokey",""+(intact ? 1+forwarded : 0)));
+    } catch (IOException e) {
+      if (replicas != null) {
+        replicas.close();
+      }
+      stream.close();
+    }
+  }
+
+  /**
+   * The function used to update the replicate of a file with a delta, as sent by DeltaReplication.
+   * The signatures of the blocks of the replicate are sent, after a success message giving the size of the blocks and
+   * its length. The file is rebuilt aside from the blocks and the bytes of the delta, and renamed over the replicate once
+   * its digest is checked. An error message is sent if there is no replicate, so that the whole file is sent instead.
+   * @param filename - The name of the file
+   */
+  public void downloadDelta(String filename) {
+    File file = new File(ConfigurationFile.getReplicaDirectory()+"/"+filename);
+    if (filename == null || !file.isFile() || !(stream instanceof BinaryMessageStream)) {
+      returnError();
+      return;
+    }
+    File temporary = new File(file.getParent()+"/."+filename+".delta");
+    try {
+      ByteBuffer signatures = DeltaReplication.signatures(file,Constant.DELTA_BLOCK);
+      stream.getWriteLock().lock();
+      try {
+        send(new Message(Constant.SUCCESS_HEADER,"nokey",""+Constant.DELTA_BLOCK,file.length()));
+        stream.sendContent(signatures);
+      } finally {
+        stream.getWriteLock().unlock();
+      }
+      Message data = stream.receive();
+      Checksums checksums;
+      try (InputStream in = stream.receiveStream(data)) {
+        checksums = DeltaReplication.apply(file,in,temporary,Constant.DELTA_BLOCK);
+      }
+      if (checksums == null) {
+        Files.deleteIfExists(temporary.toPath());
+        System.out.println("A delta was damaged on its way and was dropped.");
+        returnError();
+        return;
+      }
+      Files.move(temporary.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+      storeReplica(filename,null,checksums);
+      returnSuccess("Stored");
+    } catch (IOException e) {
+      try {
+        Files.deleteIfExists(temporary.toPath());
+      } catch (IOException f) {
+        ;
+      }
+      stream.close();
+    }
+  }
+
+  /**
+   * The function keeps the checksums of a replica once received, so that the peers downloading it and ReplicaScrubber
+   * can check it. A replica stored by content is checked first: the digest of a content is its key, so a content whose
+   * digest differs was damaged on its way and is deleted. The name of the replica is then linked to its content.
+   * @param filename - The name of the file
+   * @param content - The key of the content, or null
+   * @param checksums - The checksums computed while the replica was written, or null to read them from the disk.
+   * @return intact - False if the replica was damaged and deleted.
+   * @throws IOException - If the replica could not be read or linked.
+   */
+  public static boolean storeReplica(String filename, String content, Checksums checksums) throws IOException {
+    File file = new File(ConfigurationFile.getReplicaDirectory()+"/"+filename);
+    File stored = content == null ? file : getContentFile(content);
+    String name = content == null ? filename : Constant.CONTENT_DIRECTORY+"/"+content;
+    if (checksums == null) {
+      checksums = Checksums.stored(name,stored);
+    }
+    if (checksums == null) {
+      checksums = Checksums.of(stored);
+    }
+    if (content != null && !Key.format(checksums.getDigest()).equals(content)) {
+      Files.deleteIfExists(stored.toPath());
+      Files.deleteIfExists(Checksums.getStoredFile(name).toPath());
+      System.out.println("A replica was damaged on its way and was dropped.");
+      return false;
+    }
+    checksums.store(name,stored);
+    if (content != null) {
+      link(stored,file);
+      checksums.store(filename,file);
+    }
+    return true;
+  }
+
+  /**
+   * The function answers a checksum request with the checksums of a file, so that the peer downloading it can check it.
+   * The legacy protocol can not carry them.
+   * @param filename - The name of the file
+   */
+  public void checksums(String filename) {
+    try {
+      Checksums checksums = filename == null || !(stream instanceof BinaryMessageStream) ? null : Checksums.lookup(filename);
+      if (checksums == null) {
+        returnError();
+        return;
+      }
+      send(new Message(Constant.SUCCESS_HEADER,"nokey",checksums.encode(),checksums.getLength()));
+    } catch (IOException e) {
+      returnError();
+    }
+  }
+
+  /**
+   * Sends a message, with the id of the request answered if any.
+   * The stream is shared by the threads answering the requests of the connection, so that a frame is written at once.
+   * @param message - The message.
+   * @throws IOException - If the message could not be sent.
+   */
+  private void send(Message message) throws IOException {
+    stream.getWriteLock().lock();
+    try {
+      stream.send(request >= 0 ? message.withId(request) : message);
+    } finally {
+      stream.getWriteLock().unlock();
+    }
+  }
+
+  /**
+   * Sends a part of a file answering a request, in chunks which the answers to other requests can come between.
+   * Each chunk is a DAT# message giving its position and length, followed by its bytes.
+   * The transfer ends with a success message giving the length sent, or an error message if the file can not be read.
+   * @param file - The file.
+   * @param offset - The position of the part.
+   * @param length - The length of the part, or -1 for the rest of the file.
+   * @throws IOException - If the file could not be sent.
+   */
+  private void sendChunks(File file, long offset, long length) throws IOException {
+    FileChannel source;
+    try {
+      source = FileChannel.open(file.toPath(),StandardOpenOption.READ);
+    } catch (IOException e) {
+      returnError();
+      throw e;
+    }
+    try {
+      long end = source.size();
+      if (length >= 0) {
+        end = Math.min(end,offset+length);
+      }
+      for (long position = offset; position < end; position += Constant.CHUNK_SIZE) {
+        long count = Math.min(Constant.CHUNK_SIZE,end-position);
+        stream.getWriteLock().lock();
+        try {
+          stream.sendChunk(source,position,count,request);
+        } finally {
+          stream.getWriteLock().unlock();
+        }
+      }
+      send(new Message(Constant.SUCCESS_HEADER,"nokey",null,Math.max(0,end-offset)));
+    }
+    finally {
+      source.close();
+    }
+  }
+
+  /**
+   * Sends a file held in memory answering a request, in chunks, the way sendChunks(File,long,long) does.
+   * @param content - The content of the file, the part sent being between its position and its limit.
+   * @throws IOException - If the file could not be sent.
+   */
+  private void sendChunks(ByteBuffer content) throws IOException {
+    int end = content.limit();
+    for (int position = content.position(); position < end; position += Constant.CHUNK_SIZE) {
+      ByteBuffer chunk = content.duplicate();
+      chunk.position(position);
+      chunk.limit(Math.min(end,position+Constant.CHUNK_SIZE));
+      stream.getWriteLock().lock();
+      try {
+        stream.sendChunk(chunk,position,request);
+      } finally {
+        stream.getWriteLock().unlock();
+      }
+    }
+    send(new Message(Constant.SUCCESS_HEADER,"nokey",null,content.remaining()));
+  }
+
+  /**
+   * The function returns the file storing a replicated content, whatever the names it is shared under.
+   * @param content - The key of the content
+   * @return file - The file in the content directory of the replica directory.
+   */
+  public static File getContentFile(String content) {
+    return new File(ConfigurationFile.getReplicaDirectory()+"/"+Constant.CONTENT_DIRECTORY+"/"+content);
+  }
+
+  /**
+   * The function makes a file name point to a stored content, with a hard link or a copy if links are not supported.
+   * @param stored - The stored content
+   * @param file - The file name to link
+   * @throws IOException - If the file could not be linked or copied.
+   */
+  public static void link(File stored, File file) throws IOException {
+    Files.deleteIfExists(file.toPath());
+    try {
+      Files.createLink(file.toPath(),stored.toPath());
+    } catch (IOException e) {
+      Files.copy(stored.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+    } catch (UnsupportedOperationException e) {
+      Files.copy(stored.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
   
   /**
    * This function converts the string used as an input with an abnormal size to the same string with an optimal size.
@@ -185,41 +654,107 @@ public class Connection implements Runnable {
   /**
    * The run() function of the thread. It reads an incoming message and takes the right decision (put, get or del).
    * It returns an error message if the message received could not be decrypted.
+   * The protocol of the client is detected from the first bytes it sends.
+   * A request is handed to the thread pool, and the next message is read while it is answered.
    */
   public void run() {
-    ObjectInputStream in=null;
-    while(true) {
-      try {
-        in = new ObjectInputStream(socket.getInputStream());
-        byte buffer[] = new byte[1024];
-        in.read(buffer);
-        String header=new String(Arrays.copyOfRange(buffer,0,4));
-        String keyR=new String(Arrays.copyOfRange(buffer,4,24));
-        String valueR=new String(Arrays.copyOfRange(buffer,24,1024));
-        String key = convertString(keyR);
-        String value = convertString(valueR);
-        if (header.equals(Constant.REGISTER_HEADER)) {
-          register(key,value);
-        }
-        else if(header.equals(Constant.SEARCH_HEADER)) {
-          get(key);
-        }
-        else if(header.equals(Constant.DOWNLOAD_HEADER) || header.equals(Constant.DOWNLOAD_REPLICA_HEADER)) {
-          upload(value,header);
-        }
-        else if(header.equals(Constant.REPLICATE_HEADER)) {
-          downloadReplicate(value);
-        }
-        else {
-          returnError();
-        }
-      } catch (IOException e) {
-        try {
-          socket.close();
-        } catch (IOException e1) {
+    try {
+      stream = MessageStream.accept(socket);
+      pending = new Semaphore(Constant.MAX_REQUESTS);
+      while(true) {
+        final Message message = stream.receive();
+        if(message.getId() < 0) {
+          handle(message);
+          continue;
         }
-        break;
+        pending.acquireUninterruptibly();
+        requests.execute(new Runnable() {
+          public void run() {
+            try {
+              new Connection(Connection.this,message.getId()).handle(message);
+            }
+            finally {
+              pending.release();
+            }
+          }
+        });
       }
+    } catch (IOException e) {
+      try {
+        socket.close();
+      } catch (IOException e1) {
+      }
+    }
+  }
+
+  /**
+   * Answers the compression asked by a client. The files sent on the connection, both ways, are compressed from the
+   * answer on if the server compresses them too and knows the codec asked. The answer gives the codec.
+   * @param codec - The codec asked.
+   */
+  private void compress(String codec) {
+    if (!ConfigurationFile.isCompression() || !Compression.DEFLATE.equals(codec) || !(stream instanceof BinaryMessageStream)) {
+      returnError();
+      return;
+    }
+    stream.getWriteLock().lock();
+    try {
+      returnSuccess(codec);
+      ((BinaryMessageStream) stream).setCompressed(true);
+    } finally {
+      stream.getWriteLock().unlock();
+    }
+  }
+
+  /**
+   * Answers a message.
+   * A replication can not be a request: the file following it is not in chunks.
+   * @param message - The message.
+   */
+  private void handle(Message message) {
+    String header = message.getHeader();
+    String key = message.getKey();
+    String value = message.getValue();
+    if (header.equals(Constant.REGISTER_HEADER)) {
+      register(key,message.getName(),value);
+    }
+    else if(header.equals(Constant.BATCH_HEADER) && message.getBatch() != null) {
+      registerBatch(message.getBatch());
+    }
+    else if(header.equals(Constant.UNREGISTER_HEADER)) {
+      unregister(key,message.getName(),value);
+    }
+    else if(header.equals(Constant.SEARCH_HEADER)) {
+      get(key,message.getName());
+    }
+    else if(header.equals(Constant.DOWNLOAD_HEADER) || header.equals(Constant.DOWNLOAD_REPLICA_HEADER)) {
+      upload(value,header);
+    }
+    else if(header.equals(Constant.REPLICATE_HEADER) && request < 0) {
+      if(message.getName() != null && value != null) {
+        downloadChain(message.getName(),message.getContent(),value,key);
+      }
+      else if(message.getContent() != null) {
+        downloadReplicate(value,message.getContent());
+      }
+      else {
+        downloadReplicate(value);
+      }
+    }
+    else if(header.equals(Constant.RANGE_HEADER)) {
+      range(value,message.getOffset(),message.getLength());
+    }
+    else if(header.equals(Constant.CHECKSUM_HEADER)) {
+      checksums(value);
+    }
+    else if(header.equals(Constant.COMPRESS_HEADER) && request < 0) {
+      compress(value);
+    }
+    else if(header.equals(Constant.DELTA_HEADER) && request < 0) {
+      downloadDelta(value);
+    }
+    else {
+      returnError();
     }
   }
 
@@ -9,7 +9,57 @@ public class Constant {
   public static final String DOWNLOAD_HEADER ="DOW#";
   public static final String DOWNLOAD_REPLICA_HEADER="DLR#";
   public static final String REPLICATE_HEADER ="RPL#";
+  public static final String DATA_HEADER ="DAT#";
+  public static final String RANGE_HEADER ="RNG#";
+  public static final String BATCH_HEADER ="BAT#";
+  public static final String UNREGISTER_HEADER ="UNR#";
+  public static final String COMPRESS_HEADER ="CMP#";
+  public static final String CHECKSUM_HEADER ="SUM#";
+  public static final String DELTA_HEADER ="DLT#";
   public static final String TOKEN="@[|(";
   public static final int MAX_SERVER = 8;
   public static final int MAX = 800000;
+  public static final int VIRTUAL_NODES = 128;
+  public static final String KEY_NAME = "name";
+  public static final String KEY_CONTENT = "content";
+  public static final String CONTENT_DIRECTORY = ".content";
+  public static final int SNAPSHOT_INTERVAL = 60;
+  public static final int BATCH_SIZE = 256;
+  public static final int BATCH_WINDOW = 4;
+  public static final String MANIFEST = "share.manifest";
+  public static final long WATCH_DELAY = 200;
+  public static final long WATCH_MAX_DELAY = 2000;
+  public static final int CHUNK_SIZE = 256*1024;
+  public static final int MAX_REQUESTS = 64;
+  public static final int POOL_SIZE = 4;
+  public static final int CONNECT_TIMEOUT = 3000;
+  public static final int RANGE_TIMEOUT = 30000;
+  public static final long CONNECT_BACKOFF = 100;
+  public static final long CONNECT_MAX_BACKOFF = 10000;
+  public static final long CONNECTION_CHECK_DELAY = 5000;
+  public static final long CONNECTION_IDLE_TIMEOUT = 60000;
+  public static final int LOOKUP_CACHE_SIZE = 10000;
+  public static final int LOOKUP_CACHE_TTL = 30;
+  public static final long LOOKUP_NEGATIVE_TTL = 2000;
+  public static final int FILE_CACHE_SIZE = 0;
+  public static final int FILE_CACHE_SAMPLE = 1000;
+  public static final int REPLICATION_THREADS = 4;
+  public static final int REPLICATION_BACKLOG = 10000;
+  public static final int REPLICATION_RETRIES = 5;
+  public static final long REPLICATION_RETRY_DELAY = 1000;
+  public static final String REPLICATION_JOURNAL = "replication.queue";
+  public static final long DOWNLOAD_CHECKPOINT = 8*1024*1024;
+  public static final int CHECKSUM_CHUNK = 256*1024;
+  public static final String CHECKSUM_DIRECTORY = ".checksums";
+  public static final int CHECKSUM_CACHE_SIZE = 256;
+  public static final long SCRUB_RATE = 4*1024*1024;
+  public static final long SCRUB_INTERVAL = 60000;
+  public static final int DELTA_BLOCK = 8*1024;
+  public static final long DELTA_MIN_SIZE = 1024*1024;
+  public static final String PROTOCOL_LEGACY = "legacy";
+  public static final String PROTOCOL_BINARY = "binary";
+  public static final String PROTOCOL_AUTO = "auto";
+  public static final String SERVER_BLOCKING = "blocking";
+  public static final String SERVER_NIO = "nio";
+  public static final String SERVER_VIRTUAL = "virtual";
 }
@@ -0,0 +1,493 @@
+package sharingsystem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Delta replication, the way rsync does it: a replica holding an older copy of a file sends the signatures of the
+ * blocks of its copy, and the peer holding the file sends only the bytes which are not in one of those blocks.
+ * The signature of a block is its rolling checksum, which is found at any position of the file in one pass, and its
+ * XXHash64, which tells the blocks apart when their rolling checksums are the same.
+ * The DLT# message gives the name of the file. The replica answers with the size of its blocks and the length of its
+ * copy, followed by a DAT# of the signatures, or an error if it has no copy. The delta is then sent as a DAT# of
+ * operations: COPY gives a run of blocks of the copy, LITERAL gives bytes, and END gives the length and the digest of
+ * the file. The replica rebuilds the file aside, checks its digest and renames it over its copy, and answers.
+ * Only the files stored under their name are updated with deltas: a file stored by content is a new content.
+ */
+public class DeltaReplication {
+
+  private static final int COPY = 0;
+  private static final int LITERAL = 1;
+  private static final int END = 2;
+  /**
+   * The bytes of a signature: the rolling checksum and the XXHash64 of the block.
+   */
+  private static final int SIGNATURE_SIZE = 12;
+  /**
+   * The largest number of bytes of a LITERAL operation.
+   */
+  private static final int MAX_LITERAL = 1024*1024;
+
+  /**
+   * The statistics of all the deltas sent by the peer.
+   */
+  private static long updated;
+  private static long fileBytes;
+  private static long signatureBytes;
+  private static long deltaBytes;
+
+  /**
+   * An operation of a delta. A run of blocks of the copy, or bytes of the file from an offset.
+   */
+  private static final class Operation {
+    private final int type;
+    private final long position;
+    private long count;
+
+    private Operation(int type, long position, long count) {
+      this.type = type;
+      this.position = position;
+      this.count = count;
+    }
+  }
+
+  private final int block;
+  /**
+   * The signatures of the blocks of the copy, and a hash table of their rolling checksums: head gives the first block of
+   * a bucket plus one, next the following block of the same bucket plus one.
+   */
+  private final int weak[];
+  private final long strong[];
+  private final int head[];
+  private final int next[];
+
+  private DeltaReplication(int block, ByteBuffer signatures) {
+    this.block = block;
+    int count = signatures.remaining()/SIGNATURE_SIZE;
+    weak = new int[count];
+    strong = new long[count];
+    head = new int[Integer.highestOneBit(Math.max(1,count*2-1))*2];
+    next = new int[count];
+    for (int i = 0; i < count; i++) {
+      weak[i] = signatures.getInt();
+      strong[i] = signatures.getLong();
+      int bucket = bucket(weak[i]);
+      next[i] = head[bucket];
+      head[bucket] = i+1;
+    }
+  }
+
+  /**
+   * @param file - A file to replicate.
+   * @return applies - True if the replicas of the file are updated with deltas: it is large enough for the signatures
+   * to cost less than the file, and delta replication is enabled.
+   */
+  public static boolean applies(File file) {
+    return ConfigurationFile.isDeltaReplication() && file.length() >= Constant.DELTA_MIN_SIZE
+        && !ConfigurationFile.getKeyMode().equals(Constant.KEY_CONTENT);
+  }
+
+  /**
+   * Updates the older copies of a file held by its replicas, each one with its own delta.
+   * @param key - The key of the name of the file.
+   * @param filename - The name of the file.
+   * @param file - The file.
+   * @param myId - The id of the peer holding the file.
+   * @param replicas - The replicas.
+   * @return left - The replicas which were not updated, because they have no copy, do not use the binary protocol or
+   * failed. They get the whole file.
+   */
+  public static int[] replicate(String key, String filename, File file, int myId, int replicas[]) {
+    int left[] = new int[replicas.length];
+    int n = 0;
+    for (int id : replicas) {
+      if (id != 0 && !replicate(id,key,filename,file,myId)) {
+        left[n++] = id;
+      }
+    }
+    return Arrays.copyOf(left,n);
+  }
+
+  /**
+   * Updates the copy of a file held by a replica, which registers the file first as for a whole file.
+   * @return updated - True if the replica rebuilt the file from the delta.
+   */
+  private static boolean replicate(int id, String key, String filename, File file, int myId) {
+    MessageStream stream;
+    try {
+      stream = PeerConnections.get().acquire(id);
+    } catch (IOException e) {
+      return false;
+    }
+    try {
+      if (stream.getProtocol().equals(Constant.PROTOCOL_LEGACY)) {
+        return false;
+      }
+      stream.send(new Message(Constant.REGISTER_HEADER,key,""+myId).withName(filename));
+      if (!stream.receive().isSuccess()) {
+        return false;
+      }
+      stream.send(new Message(Constant.DELTA_HEADER,key,filename));
+      Message answer = stream.receive();
+      if (!answer.isSuccess()) {
+        return false;
+      }
+      int block = Integer.parseInt(answer.getValue());
+      Message data = stream.receive();
+      if (block <= 0 || data.getLength() < 0 || data.getLength()%SIGNATURE_SIZE != 0
+          || data.getLength()/SIGNATURE_SIZE > Math.max(0,answer.getLength())/block) {
+        throw new IOException("Malformed signatures.");
+      }
+      ByteBuffer signatures = ByteBuffer.allocate((int) data.getLength());
+      try (InputStream in = stream.receiveStream(data)) {
+        readFully(in,signatures.array(),signatures.capacity());
+      }
+      XXHash64 hash = new XXHash64();
+      List<Operation> operations = new DeltaReplication(block,signatures).scan(file,hash);
+      long length = length(operations);
+      OutputStream out = stream.sendFile(length);
+      write(operations,file,block,hash.digest(),new DataOutputStream(out));
+      out.close();
+      answer = stream.receive();
+      if (answer.isSuccess()) {
+        synchronized (DeltaReplication.class) {
+          updated++;
+          fileBytes += file.length();
+          signatureBytes += signatures.capacity();
+          deltaBytes += length;
+        }
+      }
+      return answer.isSuccess();
+    } catch (IOException e) {
+      stream.close();
+      return false;
+    } catch (NumberFormatException e) {
+      stream.close();
+      return false;
+    } finally {
+      PeerConnections.get().release(id,stream);
+    }
+  }
+
+  /**
+   * Writes the delta of a file against the signatures of a copy, the way it is sent to a replica.
+   * @param file - The file.
+   * @param block - The size of the blocks.
+   * @param signatures - The signatures of the blocks of the copy.
+   * @param out - The stream receiving the delta.
+   * @return length - The length of the delta announced to the replica.
+   * @throws IOException - If the file could not be read or the delta written.
+   */
+  static long delta(File file, int block, ByteBuffer signatures, OutputStream out) throws IOException {
+    XXHash64 hash = new XXHash64();
+    List<Operation> operations = new DeltaReplication(block,signatures).scan(file,hash);
+    long length = length(operations);
+    write(operations,file,block,hash.digest(),new DataOutputStream(out));
+    return length;
+  }
+
+  /**
+   * Computes the length of a delta as write() writes it: a LITERAL operation is split in pieces of MAX_LITERAL bytes,
+   * each one with its own header.
+   * @param operations - The operations of the delta.
+   * @return length - The number of bytes of the delta.
+   */
+  private static long length(List<Operation> operations) {
+    long length = 0;
+    for (Operation operation : operations) {
+      if (operation.type == COPY) {
+        length += 9;
+      }
+      else {
+        length += operation.count+5*((operation.count+MAX_LITERAL-1)/MAX_LITERAL);
+      }
+    }
+    return length+17;
+  }
+
+  /**
+   * Finds the blocks of the copy in a file, rolling the checksum of a window of a block over the file.
+   * @param file - The file.
+   * @param hash - The hash receiving all the bytes of the file.
+   * @return operations - The operations rebuilding the file.
+   * @throws IOException - If the file could not be read.
+   */
+  private List<Operation> scan(File file, XXHash64 hash) throws IOException {
+    List<Operation> operations = new ArrayList<Operation>();
+    try (FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+      long size = channel.size();
+      byte buffer[] = new byte[Math.max(4*block,1024*1024)];
+      long start = 0;
+      int buffered = 0;
+      long position = 0;
+      long literal = 0;
+      boolean rolling = false;
+      int a = 0;
+      int b = 0;
+      while (position+block <= size) {
+        if (position+block >= start+buffered && start+buffered < size) {
+          int shift = (int) (position-start);
+          System.arraycopy(buffer,shift,buffer,0,buffered-shift);
+          start = position;
+          buffered -= shift;
+          buffered += fill(channel,buffer,start+buffered,buffered,hash);
+        }
+        int offset = (int) (position-start);
+        if (!rolling) {
+          a = 0;
+          b = 0;
+          for (int i = 0; i < block; i++) {
+            a += buffer[offset+i] & 0xFF;
+            b += (block-i)*(buffer[offset+i] & 0xFF);
+          }
+          rolling = true;
+        }
+        int match = find((a & 0xFFFF) | (b << 16),buffer,offset);
+        if (match >= 0) {
+          if (literal < position) {
+            operations.add(new Operation(LITERAL,literal,position-literal));
+          }
+          Operation last = operations.isEmpty() ? null : operations.get(operations.size()-1);
+          if (last != null && last.type == COPY && last.position+last.count == match) {
+            last.count++;
+          }
+          else {
+            operations.add(new Operation(COPY,match,1));
+          }
+          position += block;
+          literal = position;
+          rolling = false;
+          continue;
+        }
+        if (position+block < size) {
+          int out = buffer[offset] & 0xFF;
+          a += (buffer[offset+block] & 0xFF)-out;
+          b += a-block*out;
+        }
+        position++;
+      }
+      if (literal < size) {
+        operations.add(new Operation(LITERAL,literal,size-literal));
+      }
+      while (start+buffered < size) {
+        start += buffered;
+        buffered = fill(channel,buffer,start,0,hash);
+        if (buffered == 0) {
+          throw new EOFException("The file was truncated while it was read.");
+        }
+      }
+    }
+    return operations;
+  }
+
+  /**
+   * Reads the file after the bytes buffered, until the buffer is full or the file ends.
+   * @return read - The number of bytes read.
+   */
+  private static int fill(FileChannel channel, byte buffer[], long position, int offset, XXHash64 hash) throws IOException {
+    int read = 0;
+    int i;
+    while (offset+read < buffer.length
+        && (i = channel.read(ByteBuffer.wrap(buffer,offset+read,buffer.length-offset-read),position+read)) > 0) {
+      read += i;
+    }
+    hash.update(buffer,offset,read);
+    return read;
+  }
+
+  /**
+   * Finds a block of the copy with the signature of a window of the file.
+   * @param checksum - The rolling checksum of the window.
+   * @param buffer - The bytes of the file.
+   * @param offset - The position of the window in the buffer.
+   * @return block - The number of the block, or -1 if none has the same signature.
+   */
+  private int find(int checksum, byte buffer[], int offset) {
+    boolean hashed = false;
+    long hash = 0;
+    for (int i = head[bucket(checksum)]-1; i >= 0; i = next[i]-1) {
+      if (weak[i] == checksum) {
+        if (!hashed) {
+          hash = XXHash64.hash(buffer,offset,block);
+          hashed = true;
+        }
+        if (strong[i] == hash) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private int bucket(int checksum) {
+    return (checksum*0x9E3779B1 >>> 16) & (head.length-1);
+  }
+
+  /**
+   * Writes the operations of a delta, reading the bytes of the LITERAL operations from the file.
+   */
+  private static void write(List<Operation> operations, File file, int block, long digest, DataOutputStream out)
+      throws IOException {
+    byte buffer[] = new byte[64*1024];
+    try (FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+      for (Operation operation : operations) {
+        if (operation.type == COPY) {
+          out.write(COPY);
+          out.writeInt((int) operation.position);
+          out.writeInt((int) operation.count);
+          continue;
+        }
+        long position = operation.position;
+        long end = position+operation.count;
+        while (position < end) {
+          int length = (int) Math.min(MAX_LITERAL,end-position);
+          out.write(LITERAL);
+          out.writeInt(length);
+          while (length > 0) {
+            int i = channel.read(ByteBuffer.wrap(buffer,0,Math.min(buffer.length,length)),position);
+            if (i <= 0) {
+              throw new EOFException("The file was truncated while it was sent.");
+            }
+            out.write(buffer,0,i);
+            position += i;
+            length -= i;
+          }
+        }
+      }
+      out.write(END);
+      out.writeLong(file.length());
+      out.writeLong(digest);
+      out.flush();
+    }
+  }
+
+  /**
+   * Computes the signatures of the whole blocks of the copy of a file.
+   * @param file - The copy.
+   * @param block - The size of the blocks.
+   * @return signatures - The rolling checksum and the XXHash64 of each block.
+   * @throws IOException - If the copy could not be read.
+   */
+  public static ByteBuffer signatures(File file, int block) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+      int count = (int) (channel.size()/block);
+      ByteBuffer signatures = ByteBuffer.allocate(count*SIGNATURE_SIZE);
+      byte buffer[] = new byte[block];
+      for (int n = 0; n < count; n++) {
+        ByteBuffer wrap = ByteBuffer.wrap(buffer);
+        while (wrap.hasRemaining()) {
+          if (channel.read(wrap,(long) n*block+wrap.position()) < 0) {
+            throw new EOFException("The file was truncated while it was read.");
+          }
+        }
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < block; i++) {
+          a += buffer[i] & 0xFF;
+          b += (block-i)*(buffer[i] & 0xFF);
+        }
+        signatures.putInt((a & 0xFFFF) | (b << 16));
+        signatures.putLong(XXHash64.hash(buffer,0,block));
+      }
+      signatures.flip();
+      return signatures;
+    }
+  }
+
+  /**
+   * Rebuilds a file from the copy held and a delta.
+   * @param copy - The copy.
+   * @param delta - The delta.
+   * @param target - The file rebuilt.
+   * @param block - The size of the blocks.
+   * @return checksums - The checksums of the file rebuilt, or null if it does not have the length or the digest given
+   * by the delta.
+   * @throws IOException - If the delta is not valid or the file could not be written.
+   */
+  public static Checksums apply(File copy, InputStream delta, File target, int block) throws IOException {
+    DataInputStream in = new DataInputStream(delta);
+    Checksums checksums = new Checksums();
+    byte buffer[] = new byte[64*1024];
+    try (FileChannel source = FileChannel.open(copy.toPath(),StandardOpenOption.READ);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target),64*1024)) {
+      while (true) {
+        int operation = in.read();
+        if (operation == COPY) {
+          long position = (long) in.readInt()*block;
+          long length = (long) in.readInt()*block;
+          if (position < 0 || length < 0 || position+length > source.size()) {
+            throw new IOException("Malformed delta.");
+          }
+          while (length > 0) {
+            int i = source.read(ByteBuffer.wrap(buffer,0,(int) Math.min(buffer.length,length)),position);
+            if (i <= 0) {
+              throw new EOFException();
+            }
+            out.write(buffer,0,i);
+            checksums.update(buffer,0,i);
+            position += i;
+            length -= i;
+          }
+        }
+        else if (operation == LITERAL) {
+          int length = in.readInt();
+          if (length < 0) {
+            throw new IOException("Malformed delta.");
+          }
+          while (length > 0) {
+            int i = in.read(buffer,0,Math.min(buffer.length,length));
+            if (i < 0) {
+              throw new EOFException();
+            }
+            out.write(buffer,0,i);
+            checksums.update(buffer,0,i);
+            length -= i;
+          }
+        }
+        else if (operation == END) {
+          long length = in.readLong();
+          long digest = in.readLong();
+          checksums.finish();
+          return checksums.getLength() == length && checksums.getDigest() == digest ? checksums : null;
+        }
+        else {
+          throw new IOException("Malformed delta.");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return report - The bytes sent to update the replicas, compared with the bytes of the files.
+   */
+  public static synchronized String report() {
+    long sent = signatureBytes+deltaBytes;
+    return String.format("Delta replication: %d replicas updated with %d bytes of deltas and %d bytes of signatures "
+        +"instead of %d bytes (%.1f%% of a full copy).",updated,deltaBytes,signatureBytes,fileBytes,
+        fileBytes == 0 ? 0 : sent*100.0/fileBytes);
+  }
+
+  private static void readFully(InputStream in, byte buffer[], int length) throws IOException {
+    int offset = 0;
+    while (offset < length) {
+      int i = in.read(buffer,offset,length-offset);
+      if (i < 0) {
+        throw new EOFException();
+      }
+      offset += i;
+    }
+  }
+}
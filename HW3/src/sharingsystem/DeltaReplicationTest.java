@@ -0,0 +1,77 @@
+package sharingsystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that a delta rebuilds the file it was computed from, and that it has the length announced to the replica.
+ * Each case writes a copy and a file, computes the signatures of the copy and the delta of the file, then applies the
+ * delta to the copy. The appends longer than a LITERAL operation check the pieces it is split in.
+ * Usage: DeltaReplicationTest
+ */
+public class DeltaReplicationTest {
+
+  private static final int MB = 1024*1024;
+
+  public static void main(String args[]) throws Exception {
+    Random random = new Random(1);
+    byte copy[] = new byte[MB];
+    random.nextBytes(copy);
+    byte append[] = new byte[3*MB];
+    random.nextBytes(append);
+
+    byte appended[] = Arrays.copyOf(copy,copy.length+append.length);
+    System.arraycopy(append,0,appended,copy.length,append.length);
+    byte changed[] = appended.clone();
+    for (int i = 0; i < 16; i++) {
+      changed[random.nextInt(changed.length)] ^= 0x55;
+    }
+    byte truncated[] = Arrays.copyOf(appended,2*MB+17);
+
+    boolean ok = check("Append of 3 MB",copy,appended);
+    ok &= check("Bytes changed",appended,changed);
+    ok &= check("Truncated",appended,truncated);
+    ok &= check("No copy",new byte[0],appended);
+    ok &= check("Same file",appended,appended);
+    System.out.println(ok ? "All the deltas rebuilt their file." : "A delta did not rebuild its file.");
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+   * Computes the delta of a file against a copy and applies it.
+   * @param name - The name of the case.
+   * @param copy - The copy held by the replica.
+   * @param content - The file.
+   * @return ok - True if the delta has the length announced and rebuilds the file.
+   */
+  private static boolean check(String name, byte copy[], byte content[]) throws IOException {
+    File directory = Files.createTempDirectory("delta").toFile();
+    File held = new File(directory,"copy");
+    File file = new File(directory,"file");
+    File target = new File(directory,"target");
+    try {
+      Files.write(held.toPath(),copy);
+      Files.write(file.toPath(),content);
+      ByteBuffer signatures = DeltaReplication.signatures(held,Constant.DELTA_BLOCK);
+      ByteArrayOutputStream delta = new ByteArrayOutputStream();
+      long length = DeltaReplication.delta(file,Constant.DELTA_BLOCK,signatures,delta);
+      Checksums checksums = DeltaReplication.apply(held,new ByteArrayInputStream(delta.toByteArray()),target,
+          Constant.DELTA_BLOCK);
+      boolean ok = length == delta.size() && checksums != null
+          && Arrays.equals(content,Files.readAllBytes(target.toPath()));
+      System.out.println(String.format("%-20s %9d bytes announced, %9d written, ok=%b",name,length,delta.size(),ok));
+      return ok;
+    } finally {
+      held.delete();
+      file.delete();
+      target.delete();
+      directory.delete();
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the content of the files downloaded most often in direct buffers, so that the server sends them without
+ * reading the disk. The cache has a size budget in MB, set by fileCacheSize in the configuration file (0 disables it),
+ * and holds no file larger than an eighth of the budget.
+ * The requests of each file are counted, the counts being halved every FILE_CACHE_SAMPLE requests so that old
+ * popularity fades. A file is cached from its second request, and takes the place of the files requested less often
+ * than itself only. A cached file is checked against the size and the modification time of the file on disk,
+ * and read again if it changed.
+ * Requests for a file being read wait for that read instead of reading the file themselves.
+ */
+public class FileCache {
+
+  /**
+   * The cache of the peer.
+   */
+  private static final FileCache cache = new FileCache();
+
+  /**
+   * The content of a file, with the size and the modification time it was read at.
+   */
+  private static final class Content {
+    private final ByteBuffer data;
+    private final long size;
+    private final long modified;
+
+    private Content(ByteBuffer data, long size, long modified) {
+      this.data = data;
+      this.size = size;
+      this.modified = modified;
+    }
+  }
+
+  /**
+   * The files cached, by path.
+   */
+  private final Map<String,Content> contents = new HashMap<String,Content>();
+  /**
+   * The number of recent requests of the files, cached or not, by path.
+   */
+  private final Map<String,Integer> frequencies = new HashMap<String,Integer>();
+  /**
+   * The reads of files in progress, by path.
+   */
+  private final ConcurrentHashMap<String,CompletableFuture<Content>> reads = new ConcurrentHashMap<String,CompletableFuture<Content>>();
+  private int samples;
+  private long used;
+  private long requests;
+  private long hits;
+  private long bytesSaved;
+  private long loads;
+  private long sharedLoads;
+  private long evictions;
+  private long invalidations;
+
+  /**
+   * @return cache - The file cache of the peer.
+   */
+  public static FileCache get() {
+    return cache;
+  }
+
+  /**
+   * Returns the content of a file to send, from the cache or read once for all the requests asking it at the same time.
+   * @param file - The file.
+   * @return content - A buffer holding the whole file, to be read by the caller only, or null if the file is not cached
+   * and must be read from the disk.
+   */
+  public ByteBuffer get(File file) {
+    long budget = ConfigurationFile.getFileCacheSize()*1024L*1024L;
+    long size = file.length();
+    long modified = file.lastModified();
+    if (budget <= 0 || modified == 0 || size > budget/8 || size > Integer.MAX_VALUE) {
+      return null;
+    }
+    String path = file.getPath();
+    synchronized (this) {
+      requests++;
+      int frequency = count(path);
+      Content content = contents.get(path);
+      if (content != null) {
+        if (content.size == size && content.modified == modified) {
+          hits++;
+          bytesSaved += size;
+          return content.data.duplicate();
+        }
+        contents.remove(path);
+        used -= content.size;
+        invalidations++;
+      }
+      if (frequency < 2) {
+        return null;
+      }
+    }
+    CompletableFuture<Content> read = new CompletableFuture<Content>();
+    CompletableFuture<Content> shared = reads.putIfAbsent(path,read);
+    if (shared != null) {
+      Content content = shared.join();
+      if (content == null) {
+        return null;
+      }
+      synchronized (this) {
+        hits++;
+        sharedLoads++;
+        bytesSaved += content.size;
+      }
+      return content.data.duplicate();
+    }
+    Content content = null;
+    try {
+      content = read(file,size,modified);
+      if (content != null) {
+        admit(path,content,budget);
+      }
+    } finally {
+      read.complete(content);
+      reads.remove(path);
+    }
+    return content == null ? null : content.data.duplicate();
+  }
+
+  /**
+   * Returns the content of a file to send if it is cached and unchanged, without ever reading the file.
+   * A hit is counted as a request of the file. A miss is not, as the request then goes on with get.
+   * @param file - The file.
+   * @return content - A buffer holding the whole file, to be read by the caller only, or null if the file is not cached.
+   */
+  public ByteBuffer hit(File file) {
+    long size = file.length();
+    long modified = file.lastModified();
+    String path = file.getPath();
+    synchronized (this) {
+      Content content = contents.get(path);
+      if (content == null || content.size != size || content.modified != modified) {
+        return null;
+      }
+      requests++;
+      count(path);
+      hits++;
+      bytesSaved += size;
+      return content.data.duplicate();
+    }
+  }
+
+  /**
+   * @return enabled - True if the cache has a size budget, and get could read files.
+   */
+  public boolean isEnabled() {
+    return ConfigurationFile.getFileCacheSize() > 0;
+  }
+
+  /**
+   * @return report - The size of the cache, its hit ratio and the bytes it saved reading.
+   */
+  public synchronized String report() {
+    return String.format("File cache: %d files, %d of %d MB, %d requests, %.1f%% hit ratio, %d bytes saved, "
+        +"%d reads (%d shared), %d evicted, %d invalidated.",contents.size(),used/(1024*1024),
+        ConfigurationFile.getFileCacheSize(),requests,requests == 0 ? 0 : hits*100.0/requests,bytesSaved,loads,sharedLoads,
+        evictions,invalidations);
+  }
+
+  /**
+   * Counts a request of a file, and halves the counts of all files every FILE_CACHE_SAMPLE requests.
+   * @param path - The path of the file.
+   * @return frequency - The count of the file.
+   */
+  private int count(String path) {
+    Integer frequency = frequencies.get(path);
+    int count = frequency == null ? 1 : frequency+1;
+    frequencies.put(path,count);
+    if (++samples >= Constant.FILE_CACHE_SAMPLE) {
+      samples = 0;
+      Iterator<Map.Entry<String,Integer>> i = frequencies.entrySet().iterator();
+      while (i.hasNext()) {
+        Map.Entry<String,Integer> entry = i.next();
+        if (entry.getValue() <= 1) {
+          i.remove();
+        }
+        else {
+          entry.setValue(entry.getValue()/2);
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reads a file into a direct buffer.
+   * @return content - The content, or null if the file could not be read or changed while it was read.
+   */
+  private Content read(File file, long size, long modified) {
+    ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+    try (FileChannel in = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+      while (data.hasRemaining()) {
+        if (in.read(data,data.position()) < 0) {
+          return null;
+        }
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    if (file.length() != size || file.lastModified() != modified) {
+      return null;
+    }
+    data.flip();
+    synchronized (this) {
+      loads++;
+    }
+    return new Content(data.asReadOnlyBuffer(),size,modified);
+  }
+
+  /**
+   * Puts a file in the cache if it has room for it, once the files requested less often are evicted.
+   * The files to evict are chosen first, the least requested first, and none is evicted unless they make enough room.
+   */
+  private synchronized void admit(String path, Content content, long budget) {
+    if (contents.containsKey(path)) {
+      return;
+    }
+    int frequency = frequency(path);
+    List<String> victims = new ArrayList<String>();
+    for (String cached : contents.keySet()) {
+      if (frequency(cached) <= frequency) {
+        victims.add(cached);
+      }
+    }
+    Collections.sort(victims,new Comparator<String>() {
+      public int compare(String a, String b) {
+        return Integer.compare(frequency(a),frequency(b));
+      }
+    });
+    long freed = 0;
+    int count = 0;
+    while (used-freed+content.size > budget) {
+      if (count == victims.size()) {
+        return;
+      }
+      freed += contents.get(victims.get(count++)).size;
+    }
+    for (String victim : victims.subList(0,count)) {
+      used -= contents.remove(victim).size;
+      evictions++;
+    }
+    contents.put(path,content);
+    used += content.size;
+  }
+
+  private int frequency(String path) {
+    Integer frequency = frequencies.get(path);
+    return frequency == null ? 0 : frequency;
+  }
+}
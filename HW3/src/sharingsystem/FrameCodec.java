@@ -0,0 +1,428 @@
+package sharingsystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the frames of the binary protocol.
+ * A frame starts with the length of the rest of the frame as a varint, followed by the version, the opcode,
+ * a byte of flags telling which fields are present, and the fields themselves in a fixed order.
+ * A frame belonging to a request has the version REQUEST_VERSION instead, followed by the id of the request as a varint.
+ * Strings are sent as a varint length followed by their UTF-8 bytes, and keys as 8 bytes.
+ * A batch is sent as the number of its messages followed by each of them as an opcode, flags and fields.
+ * A codec keeps its buffer between calls, so encoding does not allocate once the buffer has grown.
+ */
+public class FrameCodec {
+
+  /**
+   * The version of the protocol.
+   */
+  public static final byte VERSION = 1;
+  /**
+   * The version of the frames carrying the id of a request.
+   */
+  public static final byte REQUEST_VERSION = 2;
+  /**
+   * The bytes sent by both sides when a binary connection is opened.
+   * The first byte can not be mistaken with the header of an ObjectOutputStream.
+   */
+  public static final byte[] MAGIC = {'D','F','S',VERSION};
+  /**
+   * The longest frame accepted.
+   */
+  public static final int MAX_FRAME = 1<<24;
+  /**
+   * The room left in front of an encoded frame for its length.
+   */
+  private static final int PREFIX = 5;
+
+  /**
+   * The flags telling which fields are in the frame.
+   */
+  private static final int FLAG_KEY = 1;
+  private static final int FLAG_VALUE = 2;
+  private static final int FLAG_LENGTH = 4;
+  private static final int FLAG_OFFSET = 8;
+  private static final int FLAG_KEY64 = 16;
+  private static final int FLAG_NAME = 32;
+  private static final int FLAG_CONTENT = 64;
+  private static final int FLAG_BATCH = 128;
+
+  /**
+   * The headers, indexed by their opcode.
+   */
+  private static final String[] OPCODE = {Constant.ERROR_HEADER,Constant.SUCCESS_HEADER,Constant.REGISTER_HEADER,
+      Constant.SEARCH_HEADER,Constant.DOWNLOAD_HEADER,Constant.DOWNLOAD_REPLICA_HEADER,Constant.REPLICATE_HEADER,
+      Constant.DATA_HEADER,Constant.RANGE_HEADER,Constant.BATCH_HEADER,
+      Constant.UNREGISTER_HEADER,Constant.COMPRESS_HEADER,
+      Constant.CHECKSUM_HEADER,Constant.DELTA_HEADER};
+
+  /**
+   * The buffer holding the last encoded frame.
+   */
+  private byte[] buffer = new byte[256];
+  /**
+   * The position of the first byte of the last encoded frame in the buffer.
+   */
+  private int start;
+  /**
+   * The position following the last byte written in the buffer.
+   */
+  private int position;
+
+  /**
+   * Encodes a message in the buffer of the codec.
+   * The frame can then be read from buffer() between offset() and offset()+length().
+   * @param message - The message to encode.
+   * @throws IOException - If the header has no opcode.
+   */
+  public void encode(Message message) throws IOException {
+    position = PREFIX;
+    ensure(1);
+    if (message.getId() >= 0) {
+      buffer[position++] = REQUEST_VERSION;
+      putVarint(message.getId());
+    }
+    else {
+      buffer[position++] = VERSION;
+    }
+    putMessage(message,true);
+    int bodyLength = position - PREFIX;
+    start = PREFIX - varintSize(bodyLength);
+    int end = position;
+    position = start;
+    putVarint(bodyLength);
+    position = end;
+  }
+
+  /**
+   * Writes the opcode, the flags and the fields of a message in the buffer.
+   * @param message - The message.
+   * @param batch - True if the message can hold a batch.
+   * @throws IOException - If the header has no opcode, or a batch holds a batch.
+   */
+  private void putMessage(Message message, boolean batch) throws IOException {
+    int flags = 0;
+    if (Key.isKey(message.getKey())) {
+      flags |= FLAG_KEY64;
+    }
+    else if (message.getKey() != null) {
+      flags |= FLAG_KEY;
+    }
+    if (message.getValue() != null) {
+      flags |= FLAG_VALUE;
+    }
+    if (message.getLength() >= 0) {
+      flags |= FLAG_LENGTH;
+    }
+    if (message.getOffset() >= 0) {
+      flags |= FLAG_OFFSET;
+    }
+    if (message.getName() != null) {
+      flags |= FLAG_NAME;
+    }
+    if (message.getContent() != null) {
+      if (!Key.isKey(message.getContent())) {
+        throw new IOException("Malformed content key.");
+      }
+      flags |= FLAG_CONTENT;
+    }
+    if (message.getBatch() != null) {
+      if (!batch) {
+        throw new IOException("A batch can not hold a batch.");
+      }
+      flags |= FLAG_BATCH;
+    }
+    ensure(2);
+    buffer[position++] = (byte) opcode(message.getHeader());
+    buffer[position++] = (byte) flags;
+    if ((flags & FLAG_KEY) != 0) {
+      putString(message.getKey());
+    }
+    if ((flags & FLAG_KEY64) != 0) {
+      putLong(Key.parse(message.getKey()));
+    }
+    if ((flags & FLAG_VALUE) != 0) {
+      putString(message.getValue());
+    }
+    if ((flags & FLAG_LENGTH) != 0) {
+      putVarint(message.getLength());
+    }
+    if ((flags & FLAG_OFFSET) != 0) {
+      putVarint(message.getOffset());
+    }
+    if ((flags & FLAG_NAME) != 0) {
+      putString(message.getName());
+    }
+    if ((flags & FLAG_CONTENT) != 0) {
+      putLong(Key.parse(message.getContent()));
+    }
+    if ((flags & FLAG_BATCH) != 0) {
+      putVarint(message.getBatch().length);
+      for (Message m : message.getBatch()) {
+        putMessage(m,false);
+      }
+    }
+  }
+
+  /**
+   * @return buffer - The buffer holding the last encoded frame.
+   */
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * @return offset - The position of the last encoded frame in the buffer.
+   */
+  public int offset() {
+    return start;
+  }
+
+  /**
+   * @return length - The length of the last encoded frame, its length prefix included.
+   */
+  public int length() {
+    return position - start;
+  }
+
+  /**
+   * Decodes the body of a frame, the length prefix excluded.
+   * @param frame - The array holding the frame.
+   * @param offset - The position of the body in the array.
+   * @param length - The length of the body.
+   * @return message - The decoded message.
+   * @throws IOException - If the frame is not valid.
+   */
+  public static Message decode(byte[] frame, int offset, int length) throws IOException {
+    return decode(ByteBuffer.wrap(frame,offset,length));
+  }
+
+  /**
+   * Decodes the body of a frame, the length prefix excluded, from the position to the limit of a buffer.
+   * @param frame - The buffer holding the frame.
+   * @return message - The decoded message.
+   * @throws IOException - If the frame is not valid.
+   */
+  public static Message decode(ByteBuffer frame) throws IOException {
+    try {
+      byte version = frame.get();
+      if (version == REQUEST_VERSION) {
+        long id = getVarint(frame);
+        return getMessage(frame,true).withId(id);
+      }
+      if (version != VERSION) {
+        throw new IOException("Unsupported protocol version.");
+      }
+      return getMessage(frame,true);
+    }
+    catch (RuntimeException e) {
+      throw new IOException("Malformed frame.");
+    }
+  }
+
+  /**
+   * Reads the opcode, the flags and the fields of a message.
+   * @param frame - The buffer holding the message.
+   * @param batch - True if the message can hold a batch.
+   * @return message - The message read.
+   * @throws IOException - If the message is not valid.
+   */
+  private static Message getMessage(ByteBuffer frame, boolean batch) throws IOException {
+    int opcode = frame.get() & 0xFF;
+    if (opcode >= OPCODE.length) {
+      throw new IOException("Unknown opcode "+opcode+".");
+    }
+    int flags = frame.get() & 0xFF;
+    String key = null;
+    String value = null;
+    long length = -1;
+    long offset = -1;
+    String name = null;
+    String content = null;
+    Message messages[] = null;
+    if ((flags & FLAG_KEY) != 0) {
+      key = getString(frame);
+    }
+    if ((flags & FLAG_KEY64) != 0) {
+      key = Key.format(frame.getLong());
+    }
+    if ((flags & FLAG_VALUE) != 0) {
+      value = getString(frame);
+    }
+    if ((flags & FLAG_LENGTH) != 0) {
+      length = getVarint(frame);
+    }
+    if ((flags & FLAG_OFFSET) != 0) {
+      offset = getVarint(frame);
+    }
+    if ((flags & FLAG_NAME) != 0) {
+      name = getString(frame);
+    }
+    if ((flags & FLAG_CONTENT) != 0) {
+      content = Key.format(frame.getLong());
+    }
+    if ((flags & FLAG_BATCH) != 0) {
+      long count = getVarint(frame);
+      if (!batch || count > frame.remaining()) {
+        throw new IOException("Malformed batch.");
+      }
+      messages = new Message[(int) count];
+      for (int i = 0; i < messages.length; i++) {
+        messages[i] = getMessage(frame,false);
+      }
+    }
+    return new Message(OPCODE[opcode],key,value,offset,length).withName(name).withContent(content).withBatch(messages);
+  }
+
+  /**
+   * Reads a varint from a stream.
+   * @param in - The stream.
+   * @return value - The value read.
+   * @throws IOException - If the stream ended or the varint is too long.
+   */
+  public static long readVarint(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint.");
+  }
+
+  /**
+   * Reads a varint from a buffer without consuming it if it is not complete.
+   * @param in - The buffer.
+   * @return value - The value read, or -1 if the buffer does not hold the whole varint.
+   * @throws IOException - If the varint is too long.
+   */
+  public static long readVarint(ByteBuffer in) throws IOException {
+    int mark = in.position();
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!in.hasRemaining()) {
+        in.position(mark);
+        return -1;
+      }
+      int b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint.");
+  }
+
+  /**
+   * Returns the opcode of a header.
+   * @param header - The header.
+   * @return opcode - The opcode.
+   * @throws IOException - If the header has no opcode.
+   */
+  private static int opcode(String header) throws IOException {
+    for (int i = 0; i < OPCODE.length; i++) {
+      if (OPCODE[i].equals(header)) {
+        return i;
+      }
+    }
+    throw new IOException("Unknown header "+header+".");
+  }
+
+  /**
+   * Returns the number of bytes needed to write a value as a varint.
+   * @param value - The value.
+   * @return size - The number of bytes.
+   */
+  private static int varintSize(long value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) {
+      size++;
+    }
+    return size;
+  }
+
+  private void putVarint(long value) {
+    ensure(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  /**
+   * Writes a long in the buffer, most significant byte first.
+   * @param value - The value.
+   */
+  private void putLong(long value) {
+    ensure(8);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      buffer[position++] = (byte) (value >>> shift);
+    }
+  }
+
+  private static long getVarint(ByteBuffer in) throws IOException {
+    long value = readVarint(in);
+    if (value < 0) {
+      throw new IOException("Truncated varint.");
+    }
+    return value;
+  }
+
+  /**
+   * Writes a string in the buffer. ASCII strings are copied without allocating.
+   * @param str - The string.
+   */
+  private void putString(String str) {
+    int length = str.length();
+    boolean ascii = true;
+    for (int i = 0; i < length && ascii; i++) {
+      ascii = str.charAt(i) < 0x80;
+    }
+    if (ascii) {
+      putVarint(length);
+      ensure(length);
+      for (int i = 0; i < length; i++) {
+        buffer[position++] = (byte) str.charAt(i);
+      }
+    }
+    else {
+      byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+      putVarint(bytes.length);
+      ensure(bytes.length);
+      System.arraycopy(bytes,0,buffer,position,bytes.length);
+      position += bytes.length;
+    }
+  }
+
+  private static String getString(ByteBuffer in) throws IOException {
+    int length = (int) getVarint(in);
+    if (length > in.remaining()) {
+      throw new IOException("Truncated string.");
+    }
+    String str = new String(in.array(),in.arrayOffset()+in.position(),length,StandardCharsets.UTF_8);
+    in.position(in.position()+length);
+    return str;
+  }
+
+  /**
+   * Grows the buffer so that it can hold a number of additional bytes.
+   * @param size - The number of additional bytes.
+   */
+  private void ensure(int size) {
+    if (position + size > buffer.length) {
+      byte[] grown = new byte[Math.max(buffer.length*2,position+size)];
+      System.arraycopy(buffer,0,grown,0,position);
+      buffer = grown;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package sharingsystem;
+
+import java.util.Arrays;
+
+/**
+ * A consistent-hash ring placing the peers at several points, their virtual nodes.
+ * A key belongs to the first point found clockwise from its position, and its replicas to the next distinct peers.
+ * Adding or removing a peer only moves the keys between its points and the previous ones.
+ * The points are kept in a sorted array so that a lookup is a binary search.
+ */
+public class HashRing {
+
+  /**
+   * The ring built from the current configuration.
+   */
+  private static volatile HashRing current;
+
+  /**
+   * The number of peers and of virtual nodes per peer.
+   */
+  private final int clientNumber;
+  private final int virtualNodes;
+  /**
+   * The positions of the points, sorted, and the peer owning each point.
+   */
+  private final long positions[];
+  private final int owners[];
+
+  /**
+   * Constructor of a ring with the peers 1 to clientNumber.
+   * @param clientNumber - The number of peers.
+   * @param virtualNodes - The number of points per peer.
+   */
+  public HashRing(int clientNumber, int virtualNodes) {
+    this(peers(clientNumber),virtualNodes);
+  }
+
+  /**
+   * Constructor of a ring with the given peers.
+   * @param peers - The ids of the peers.
+   * @param virtualNodes - The number of points per peer.
+   */
+  public HashRing(int peers[], int virtualNodes) {
+    this.clientNumber = peers.length;
+    this.virtualNodes = Math.max(1,virtualNodes);
+    int size = peers.length*this.virtualNodes;
+    long points[] = new long[size];
+    int i = 0;
+    for (int peer : peers) {
+      for (int v = 0; v < this.virtualNodes; v++) {
+        points[i++] = mix(((long) peer << 32) | v);
+      }
+    }
+    Arrays.sort(points);
+    positions = points;
+    owners = new int[size];
+    for (int peer : peers) {
+      for (int v = 0; v < this.virtualNodes; v++) {
+        owners[Arrays.binarySearch(positions,mix(((long) peer << 32) | v))] = peer;
+      }
+    }
+  }
+
+  /**
+   * Returns the ring of the current configuration. It is built again when the number of peers or of virtual nodes changes.
+   * @return ring - The ring.
+   */
+  public static HashRing get() {
+    HashRing ring = current;
+    int clientNumber = ConfigurationFile.getClientNumber();
+    int virtualNodes = ConfigurationFile.getVirtualNodes();
+    if (ring == null || ring.clientNumber != clientNumber || ring.virtualNodes != virtualNodes) {
+      ring = new HashRing(clientNumber,virtualNodes);
+      current = ring;
+    }
+    return ring;
+  }
+
+  /**
+   * Returns the position of a key on the ring.
+   * @param key - The key.
+   * @return position - The position.
+   */
+  public static long position(long key) {
+    return mix(key);
+  }
+
+  /**
+   * Returns the peer owning a position.
+   * @param position - The position.
+   * @return peer - The id of the peer, or 0 if the ring is empty.
+   */
+  public int owner(long position) {
+    if (positions.length == 0) {
+      return 0;
+    }
+    return owners[index(position)];
+  }
+
+  /**
+   * Walks the ring clockwise from a position and returns the first distinct peers met.
+   * @param position - The position.
+   * @param count - The number of peers wanted.
+   * @param exclude - The id of a peer to skip, or 0.
+   * @return peers - The ids of the peers. Shorter than count if the ring does not have enough peers.
+   */
+  public int[] walk(long position, int count, int exclude) {
+    int found[] = new int[count];
+    int n = 0;
+    if (positions.length > 0) {
+      int start = index(position);
+      for (int i = 0; i < positions.length && n < count; i++) {
+        int peer = owners[(start+i) % positions.length];
+        boolean seen = peer == exclude;
+        for (int j = 0; j < n && !seen; j++) {
+          seen = found[j] == peer;
+        }
+        if (!seen) {
+          found[n++] = peer;
+        }
+      }
+    }
+    return n == count ? found : Arrays.copyOf(found,n);
+  }
+
+  /**
+   * Returns the index of the first point at or after a position, going back to the first point after the last one.
+   * @param position - The position.
+   * @return index - The index of the point.
+   */
+  private int index(long position) {
+    int i = Arrays.binarySearch(positions,position);
+    if (i < 0) {
+      i = -i-1;
+    }
+    return i == positions.length ? 0 : i;
+  }
+
+  private static int[] peers(int clientNumber) {
+    int peers[] = new int[clientNumber];
+    for (int i = 0; i < clientNumber; i++) {
+      peers[i] = i+1;
+    }
+    return peers;
+  }
+
+  /**
+   * Spreads the bits of a value over 64 bits (the finalizer of SplitMix64).
+   * @param value - The value.
+   * @return mixed - The mixed value.
+   */
+  private static long mix(long value) {
+    long z = value + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,90 @@
+package sharingsystem;
+
+/**
+ * Reports how many keys move to another index server when a peer is added or removed,
+ * for the consistent-hash ring and for the fixed ranges used before it, and how evenly the keys are spread.
+ * The keys are made from generated file names the same way Action.hash does.
+ * Usage: HashRingReport keys peers virtualNodes
+ */
+public class HashRingReport {
+
+  public static void main(String args[]) {
+    if(args.length < 3) {
+      System.out.println("Usage: HashRingReport <keys> <peers> <virtual nodes>");
+      return;
+    }
+    int keys = Integer.parseInt(args[0]);
+    int peers = Integer.parseInt(args[1]);
+    int virtualNodes = Integer.parseInt(args[2]);
+    Action action = new Action();
+    long key[] = new long[keys];
+    for(int i=0;i<keys;i++) {
+      key[i] = Key.parse(action.hash("file"+i+".txt"));
+    }
+    HashRing ring = new HashRing(peers,virtualNodes);
+    HashRing added = new HashRing(peers+1,virtualNodes);
+    HashRing removed = new HashRing(peers-1,virtualNodes);
+    int load[] = new int[peers+1];
+    int rangeLoad[] = new int[peers+1];
+    int ringAdded = 0, ringRemoved = 0, rangeAdded = 0, rangeRemoved = 0;
+    for(int i=0;i<keys;i++) {
+      long position = HashRing.position(key[i]);
+      int owner = ring.owner(position);
+      load[owner]++;
+      if(added.owner(position) != owner) {
+        ringAdded++;
+      }
+      if(removed.owner(position) != owner) {
+        ringRemoved++;
+      }
+      int rangeOwner = range(key[i],peers);
+      rangeLoad[rangeOwner]++;
+      if(range(key[i],peers+1) != rangeOwner) {
+        rangeAdded++;
+      }
+      if(range(key[i],peers-1) != rangeOwner) {
+        rangeRemoved++;
+      }
+    }
+    System.out.println(keys+" keys, "+peers+" peers, "+virtualNodes+" virtual nodes per peer.");
+    System.out.println("                 peer added   peer removed   keys per peer (min/max, ideal "+keys/peers+")");
+    System.out.println(String.format("Hash ring     %12s %14s   %d/%d",percent(ringAdded,keys),percent(ringRemoved,keys),min(load),max(load)));
+    System.out.println(String.format("Fixed ranges  %12s %14s   %d/%d",percent(rangeAdded,keys),percent(rangeRemoved,keys),min(rangeLoad),max(rangeLoad)));
+  }
+
+  /**
+   * Returns the server of a key with fixed ranges of equal size, the way keys were placed before the ring.
+   * The ranges split the values of the top 32 bits of the key.
+   * @param key - The key.
+   * @param peers - The number of peers.
+   * @return serverNb - The number of the server.
+   */
+  private static int range(long key, int peers) {
+    for(int i=0;i<peers;i++) {
+      if((key >>> 32) < (i+1)*(1L << 32)/peers) {
+        return i+1;
+      }
+    }
+    return 0;
+  }
+
+  private static String percent(int moved, int keys) {
+    return String.format("%.1f%%",100.0*moved/keys);
+  }
+
+  private static int min(int load[]) {
+    int min = Integer.MAX_VALUE;
+    for(int i=1;i<load.length;i++) {
+      min = Math.min(min,load[i]);
+    }
+    return min;
+  }
+
+  private static int max(int load[]) {
+    int max = 0;
+    for(int i=1;i<load.length;i++) {
+      max = Math.max(max,load[i]);
+    }
+    return max;
+  }
+}
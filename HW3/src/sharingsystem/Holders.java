@@ -0,0 +1,123 @@
+package sharingsystem;
+
+import java.util.StringTokenizer;
+
+/**
+ * The peers holding a file, packed in a long so that the index stores them without any object.
+ * The original peer comes first, then the replicas. Up to 4 holders with ids below 32768 are kept as a list of 16-bit ids,
+ * in order. More holders are kept as the id of the original peer and a bitmask of the others, for ids up to 56.
+ * A packed value is never 0, which marks an empty slot of the index, nor NONE, which marks a file unregistered.
+ */
+public class Holders {
+
+  /**
+   * The value of a file unregistered. It can not be the value of holders, a bitmask having an original peer up to 56.
+   */
+  public static final long NONE = -1L;
+
+  /**
+   * The number of holders of a list, and the largest id of a bitmask.
+   */
+  private static final int LIST = 4;
+  private static final int MASK_PEERS = 56;
+  private static final long MASK_FLAG = 1L << 63;
+
+  /**
+   * Packs the holders sent by the peers: their ids separated by the token.
+   * @param holders - The holders.
+   * @return packed - The packed holders.
+   * @throws NumberFormatException - If an id is not a number, there is no id, or the holders can not be packed.
+   */
+  public static long pack(String holders) {
+    int ids[] = new int[MASK_PEERS+1];
+    int count = 0;
+    StringTokenizer st = new StringTokenizer(holders,Constant.TOKEN);
+    while (st.hasMoreTokens()) {
+      int id = Integer.parseInt(st.nextToken());
+      if (id <= 0 || count == ids.length) {
+        throw new NumberFormatException("Holders can not be indexed: "+holders);
+      }
+      ids[count++] = id;
+    }
+    if (count == 0) {
+      throw new NumberFormatException("No holder.");
+    }
+    return pack(ids,count);
+  }
+
+  /**
+   * Packs holders.
+   * @param ids - The ids, the original peer first.
+   * @param count - The number of ids.
+   * @return packed - The packed holders.
+   * @throws NumberFormatException - If the holders can not be packed.
+   */
+  public static long pack(int ids[], int count) {
+    boolean small = count <= LIST;
+    for (int i = 0; i < count && small; i++) {
+      small = ids[i] > 0 && ids[i] < 0x8000;
+    }
+    if (small) {
+      long packed = 0;
+      for (int i = 0; i < count; i++) {
+        packed |= (long) ids[i] << (48-16*i);
+      }
+      return packed;
+    }
+    long packed = MASK_FLAG | (long) ids[0] << MASK_PEERS;
+    for (int i = 0; i < count; i++) {
+      if (ids[i] <= 0 || ids[i] > MASK_PEERS) {
+        throw new NumberFormatException("Holders can not be indexed.");
+      }
+      if (i > 0 && ids[i] != ids[0]) {
+        packed |= 1L << (ids[i]-1);
+      }
+    }
+    return packed;
+  }
+
+  /**
+   * Returns the ids of packed holders.
+   * @param packed - The packed holders.
+   * @return ids - The ids, the original peer first.
+   */
+  public static int[] ids(long packed) {
+    if ((packed & MASK_FLAG) == 0) {
+      int count = 0;
+      while (count < LIST && ((packed >>> (48-16*count)) & 0xFFFF) != 0) {
+        count++;
+      }
+      int ids[] = new int[count];
+      for (int i = 0; i < count; i++) {
+        ids[i] = (int) ((packed >>> (48-16*i)) & 0xFFFF);
+      }
+      return ids;
+    }
+    int first = (int) ((packed >>> MASK_PEERS) & 0x7F);
+    int ids[] = new int[1+Long.bitCount(packed & ((1L << MASK_PEERS)-1))];
+    ids[0] = first;
+    int n = 1;
+    for (int id = 1; id <= MASK_PEERS; id++) {
+      if ((packed & (1L << (id-1))) != 0) {
+        ids[n++] = id;
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Writes packed holders the way the peers send them.
+   * @param packed - The packed holders.
+   * @return holders - The ids separated by the token.
+   */
+  public static String format(long packed) {
+    StringBuilder sb = new StringBuilder();
+    for (int id : ids(packed)) {
+      if (sb.length() > 0) {
+        sb.append(Constant.TOKEN);
+      }
+      sb.append(id);
+    }
+    return sb.toString();
+  }
+}
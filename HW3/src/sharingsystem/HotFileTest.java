@@ -0,0 +1,77 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the downloads of one popular file by many peers at once, and the FileCache serving them.
+ * A server is started as client 1 of the configuration file and a file is written in its shared directory.
+ * Each peer downloads the file again and again on its own connection. The cache is set by fileCacheSize.
+ * Usage: HotFileTest mode size peers downloads
+ */
+public class HotFileTest {
+
+  private static final String FILENAME = "hot.bin";
+
+  public static void main(String args[]) throws Exception {
+    if(args.length < 4) {
+      System.out.println("Usage: HotFileTest <blocking|virtual|nio> <file size in KB> <peers> <downloads per peer>");
+      return;
+    }
+    String mode = args[0];
+    int size = Integer.parseInt(args[1])*1024;
+    int peers = Integer.parseInt(args[2]);
+    final int downloads = Integer.parseInt(args[3]);
+    final InetAddress address = InetAddress.getByName(ConfigurationFile.getClientIp()[0]);
+    final int port = ConfigurationFile.getClientPort()[0];
+
+    new File(ConfigurationFile.getShareDirectory()).mkdirs();
+    new File(ConfigurationFile.getDownloadDirectory()).mkdirs();
+    byte data[] = new byte[size];
+    new Random(1).nextBytes(data);
+    FileOutputStream out = new FileOutputStream(ConfigurationFile.getShareDirectory()+"/"+FILENAME);
+    out.write(data);
+    out.close();
+
+    Server server = new Server(1,mode);
+    Thread serverThread = new Thread(server);
+    serverThread.setDaemon(true);
+    serverThread.start();
+    Thread.sleep(500);
+
+    final AtomicLong failures = new AtomicLong();
+    Thread threads[] = new Thread[peers];
+    long start = System.nanoTime();
+    for(int p=0;p<peers;p++) {
+      final File target = new File(ConfigurationFile.getDownloadDirectory()+"/"+FILENAME+"."+p);
+      threads[p] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            MessageStream stream = MessageStream.connect(address,port,ConfigurationFile.getProtocol());
+            for(int i=0;i<downloads;i++) {
+              stream.send(new Message(Constant.DOWNLOAD_HEADER,Key.format(Key.of(FILENAME)),FILENAME));
+              stream.receiveFile(target);
+            }
+            stream.close();
+          } catch (Exception e) {
+            failures.incrementAndGet();
+          }
+          target.delete();
+        }
+      });
+      threads[p].start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime()-start;
+    long bytes = (long) size*peers*downloads;
+    System.out.println(String.format("%d downloads of %d KB by %d peers in %d ms (%.0f MB/s), %d peers failed.",
+        peers*downloads,size/1024,peers,elapsed/1000000,bytes*1e9/Math.max(1,elapsed)/(1024*1024),failures.get()));
+    System.out.println(FileCache.get().report());
+    server.shutdown();
+  }
+}
@@ -0,0 +1,344 @@
+package sharingsystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the hot paths of the peer: the hash of a name, the owner and the replicas of a key, a frame sent and
+ * received by sendMessage and receiveMessage, convertString, the index put and get from several threads and the getters
+ * of ConfigurationFile. It is run from the directory of the configuration file, by the 'benchmark' target of build.xml.
+ * Each benchmark runs WARMUP iterations, then ITERATIONS measured ones, of one second each. Its score is the average
+ * time of an operation, with the error of the iterations at 99.9%. The results are written in the CSV format of JMH,
+ * and compared with the results of an earlier run if given: a score which grew by more than its errors is a regression.
+ * Usage: HotPathBenchmark [results.csv] [baseline.csv] [filter]
+ */
+public class HotPathBenchmark {
+
+  private static final int WARMUP = 3;
+  private static final int ITERATIONS = 5;
+  private static final long ITERATION_TIME = 1000000000L;
+  /**
+   * The quantile of the normal distribution giving the error at 99.9%.
+   */
+  private static final double QUANTILE = 3.29;
+  private static final int KEYS = 1024;
+
+  /**
+   * Keeps the results of the operations, so that they are not optimized away.
+   */
+  private static volatile long sink;
+
+  /**
+   * An operation of a benchmark, given a number which differs at each call.
+   */
+  private interface Operation {
+    long run(int i) throws Exception;
+  }
+
+  /**
+   * The result of a benchmark.
+   */
+  private static final class Result {
+    private final String name;
+    private final int threads;
+    private final double score;
+    private final double error;
+
+    private Result(String name, int threads, double score, double error) {
+      this.name = name;
+      this.threads = threads;
+      this.score = score;
+      this.error = error;
+    }
+  }
+
+  private final String filter;
+  private final List<Result> results = new ArrayList<Result>();
+
+  private HotPathBenchmark(String filter) {
+    this.filter = filter;
+  }
+
+  public static void main(String args[]) throws Exception {
+    String output = args.length > 0 ? args[0] : "benchmark.csv";
+    String baseline = args.length > 1 && !args[1].isEmpty() ? args[1] : null;
+    HotPathBenchmark benchmark = new HotPathBenchmark(args.length > 2 ? args[2] : "");
+    benchmark.runAll();
+    benchmark.write(new File(output));
+    System.out.println("The results were written to "+output+".");
+    if(baseline != null) {
+      benchmark.compare(new File(baseline));
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Runs all the benchmarks whose name contains the filter.
+   */
+  private void runAll() throws Exception {
+    final Action action = new Action(1);
+    final String names[] = new String[KEYS];
+    final String keys[] = new String[KEYS];
+    final long longKeys[] = new long[KEYS];
+    for(int i=0;i<KEYS;i++) {
+      names[i] = "file"+i+".txt";
+      keys[i] = action.hash(names[i]);
+      longKeys[i] = Key.of(names[i]);
+    }
+    int threads = Math.max(4,Runtime.getRuntime().availableProcessors());
+
+    run("Action.hash",1,new Operation() {
+      public long run(int i) {
+        return action.hash(names[i & (KEYS-1)]).length();
+      }
+    });
+    run("Action.getServer",1,new Operation() {
+      public long run(int i) {
+        return action.getServer(keys[i & (KEYS-1)]);
+      }
+    });
+    run("Action.getReplicaId",1,new Operation() {
+      public long run(int i) {
+        return action.getReplicaId(longKeys[i & (KEYS-1)],1).length;
+      }
+    });
+
+    final Message message = new Message(Constant.SEARCH_HEADER,keys[0],names[0]).withName(names[0]);
+    OutputStream discard = new OutputStream() {
+      public void write(int b) {
+      }
+
+      public void write(byte b[], int off, int len) {
+      }
+    };
+    final MessageStream out = BinaryMessageStream.handshake(null,new Frames(null),discard);
+    run("Action.sendMessage",1,new Operation() {
+      public long run(int i) {
+        return action.sendMessage(out,message) ? 1 : 0;
+      }
+    });
+    FrameCodec codec = new FrameCodec();
+    codec.encode(message);
+    byte frame[] = new byte[codec.length()];
+    System.arraycopy(codec.buffer(),codec.offset(),frame,0,frame.length);
+    final MessageStream in = BinaryMessageStream.handshake(null,new BufferedInputStream(new Frames(frame)),discard);
+    run("Action.receiveMessage",1,new Operation() {
+      public long run(int i) {
+        return action.receiveMessage(in).getValue().length();
+      }
+    });
+
+    final String legacy = names[0]+new String(new char[1024-names[0].length()]);
+    run("Action.convertString",1,new Operation() {
+      public long run(int i) {
+        return action.convertString(legacy).length();
+      }
+    });
+
+    final Index index = new Index();
+    final String holders = "1"+Constant.TOKEN+"2"+Constant.TOKEN+"3";
+    for(int i=0;i<KEYS;i++) {
+      index.put(longKeys[i],names[i],holders);
+    }
+    Operation get = new Operation() {
+      public long run(int i) {
+        return index.get(longKeys[i & (KEYS-1)],names[i & (KEYS-1)]).length();
+      }
+    };
+    Operation put = new Operation() {
+      public long run(int i) throws IOException {
+        index.put(longKeys[i & (KEYS-1)],names[i & (KEYS-1)],holders);
+        return 1;
+      }
+    };
+    run("Index.get",1,get);
+    run("Index.get",threads,get);
+    run("Index.put",1,put);
+    run("Index.put",threads,put);
+
+    run("ConfigurationFile.getReplicaNumber",1,new Operation() {
+      public long run(int i) {
+        return ConfigurationFile.getReplicaNumber();
+      }
+    });
+    run("ConfigurationFile.getClientNumber",threads,new Operation() {
+      public long run(int i) {
+        return ConfigurationFile.getClientNumber();
+      }
+    });
+    System.out.println(ConfigurationFile.report());
+  }
+
+  /**
+   * Runs a benchmark from several threads and keeps its result.
+   * @param name - The name of the benchmark.
+   * @param threads - The number of threads running the operation at once.
+   * @param operation - The operation.
+   */
+  private void run(String name, int threads, Operation operation) throws InterruptedException {
+    if(!name.contains(filter)) {
+      return;
+    }
+    for(int i=0;i<WARMUP;i++) {
+      iteration(threads,operation);
+    }
+    double scores[] = new double[ITERATIONS];
+    double mean = 0;
+    for(int i=0;i<ITERATIONS;i++) {
+      scores[i] = iteration(threads,operation);
+      mean += scores[i]/ITERATIONS;
+    }
+    double variance = 0;
+    for(double score : scores) {
+      variance += (score-mean)*(score-mean)/(ITERATIONS-1);
+    }
+    Result result = new Result(name,threads,mean,QUANTILE*Math.sqrt(variance/ITERATIONS));
+    results.add(result);
+    System.out.println(String.format("%-40s %3d threads %12.2f +- %.2f ns/op",name,threads,result.score,result.error));
+  }
+
+  /**
+   * Runs an operation from several threads for ITERATION_TIME.
+   * @return score - The average time of an operation in nanoseconds, for one thread.
+   * @throws IllegalStateException - If the operation failed.
+   */
+  private static double iteration(int threads, final Operation operation) throws InterruptedException {
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final AtomicLong total = new AtomicLong();
+    final AtomicLong time = new AtomicLong();
+    final long end = System.nanoTime()+ITERATION_TIME;
+    Thread workers[] = new Thread[threads];
+    for(int t=0;t<threads;t++) {
+      final int seed = t*7919;
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          long count = 0;
+          long result = 0;
+          long start = System.nanoTime();
+          long now;
+          try {
+            while((now = System.nanoTime()) < end) {
+              for(int i=0;i<KEYS;i++) {
+                result += operation.run(seed+i);
+              }
+              count += KEYS;
+            }
+          } catch (Exception e) {
+            failure.compareAndSet(null,e);
+            return;
+          }
+          sink += result;
+          total.addAndGet(count);
+          time.addAndGet(now-start);
+        }
+      });
+      workers[t].start();
+    }
+    for(Thread worker : workers) {
+      worker.join();
+    }
+    if(failure.get() != null) {
+      throw new IllegalStateException("The operation failed.",failure.get());
+    }
+    return (double) time.get()/Math.max(1,total.get());
+  }
+
+  /**
+   * Writes the results in the CSV format of JMH.
+   * @param file - The file.
+   * @throws IOException - If the file could not be written.
+   */
+  private void write(File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(file,"UTF-8")) {
+      out.println("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\",\"Unit\"");
+      for(Result result : results) {
+        out.println(String.format(Locale.ROOT,"\"%s\",\"avgt\",%d,%d,%.6f,%.6f,\"ns/op\"",
+            result.name,result.threads,ITERATIONS,result.score,result.error));
+      }
+    }
+  }
+
+  /**
+   * Compares the results with the ones of an earlier run.
+   * @param file - The results of the earlier run.
+   * @throws IOException - If the file could not be read.
+   */
+  private void compare(File file) throws IOException {
+    Map<String,double[]> baseline = new HashMap<String,double[]>();
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      in.readLine();
+      String line;
+      while((line = in.readLine()) != null) {
+        String fields[] = line.split(",");
+        if(fields.length == 7) {
+          baseline.put(fields[0].replace("\"","")+"/"+fields[2],
+              new double[] {Double.parseDouble(fields[4]),Double.parseDouble(fields[5])});
+        }
+      }
+    }
+    int regressions = 0;
+    for(Result result : results) {
+      double before[] = baseline.get(result.name+"/"+result.threads);
+      if(before == null) {
+        continue;
+      }
+      boolean regression = result.score-before[0] > result.error+before[1];
+      if(regression) {
+        regressions++;
+      }
+      System.out.println(String.format("%-40s %3d threads %12.2f -> %12.2f ns/op (%+.1f%%)%s",result.name,result.threads,
+          before[0],result.score,(result.score-before[0])*100/before[0],regression ? " REGRESSION" : ""));
+    }
+    System.out.println(regressions+" regressions compared with "+file+".");
+  }
+
+  /**
+   * The input of a stream: the magic bytes of the binary protocol, followed by a frame repeated forever.
+   */
+  private static final class Frames extends InputStream {
+    private final byte frame[];
+    private int position = -FrameCodec.MAGIC.length;
+
+    private Frames(byte frame[]) {
+      this.frame = frame;
+    }
+
+    public int read() {
+      byte b[] = new byte[1];
+      return read(b,0,1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    public int read(byte b[], int off, int len) {
+      if(position < 0) {
+        int n = Math.min(len,-position);
+        System.arraycopy(FrameCodec.MAGIC,FrameCodec.MAGIC.length+position,b,off,n);
+        position += n;
+        return n;
+      }
+      if(frame == null) {
+        return -1;
+      }
+      int n = 0;
+      while(n < len) {
+        int i = Math.min(len-n,frame.length-position);
+        System.arraycopy(frame,position,b,off+n,i);
+        n += i;
+        position = (position+i)%frame.length;
+      }
+      return n;
+    }
+  }
+}
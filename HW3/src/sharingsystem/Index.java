@@ -0,0 +1,325 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The index of the files whose key belongs to this peer. It maps a 64-bit key to the peers holding the file.
+ * The fingerprint of the name of the file is kept with the entry and checked on lookup, so two names sharing a key
+ * get two entries instead of one overwriting the other.
+ * The entries are kept off-heap in a LongHolderMap, the holders packed in a long by Holders.
+ * An index opened on a directory is durable: its registrations are written to an IndexLog before they are acknowledged.
+ * Its entries are then split between a memory-mapped IndexSnapshot and the map of the entries registered since,
+ * which is looked up first and emptied each time a snapshot is written. A file unregistered since the snapshot is kept in
+ * the map with the holders Holders.NONE, hiding the entry of the snapshot.
+ */
+public class Index {
+
+  /**
+   * The entries registered since the snapshot.
+   */
+  private final LongHolderMap entries = new LongHolderMap();
+  /**
+   * The locks keeping the records of the log of a key in the order of its updates.
+   */
+  private final Object stripes[] = new Object[64];
+  /**
+   * The entries of the last snapshot.
+   */
+  private volatile IndexSnapshot snapshot = IndexSnapshot.empty();
+  /**
+   * The log making the index durable, or null if it only lives in memory.
+   */
+  private IndexLog log;
+
+  /**
+   * Constructor of an empty index living in memory.
+   */
+  public Index() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  /**
+   * Opens the durable index of a directory. Its snapshot is mapped and its logs are loaded, and the new registrations
+   * are logged there.
+   * @param directory - The directory.
+   * @param interval - The time between two checks of the size of the log for a snapshot, in milliseconds.
+   * @return index - The index.
+   * @throws IOException - If the index could not be loaded.
+   */
+  public static Index open(File directory, long interval) throws IOException {
+    IndexLog log = new IndexLog(directory);
+    Index index = new Index();
+    log.recover(index);
+    index.log = log;
+    log.start(index,interval);
+    return index;
+  }
+
+  /**
+   * Registers the holders of a file, replacing the ones registered before under the same key and name.
+   * If the index is durable, it returns once the registration is written to the disk.
+   * @param key - The key.
+   * @param name - The name of the file. Null if the peer did not send it.
+   * @param holders - The ids of the peers holding the file, separated by the token.
+   * @throws IOException - If the registration could not be written to the log.
+   * @throws NumberFormatException - If the holders are not ids, or too many to be packed.
+   */
+  public void put(long key, String name, String holders) throws IOException {
+    long fingerprint = Key.fingerprint(name);
+    long packed = Holders.pack(holders);
+    IndexLog log = this.log;
+    if (log == null) {
+      entries.put(key,fingerprint,packed);
+      return;
+    }
+    long sequence;
+    log.beginWrite();
+    try {
+      synchronized (stripes[(int) (key >>> 58)]) {
+        sequence = log.append(key,fingerprint,packed);
+        entries.put(key,fingerprint,packed);
+      }
+    } finally {
+      log.endWrite();
+    }
+    log.await(sequence);
+  }
+
+  /**
+   * Registers the holders of several files, the way put does for each of them.
+   * If the index is durable, their records are logged together and it returns once the last one is written to the disk.
+   * The files whose holders are not ids, or too many to be packed, are skipped.
+   * @param keys - The keys.
+   * @param names - The names of the files. A name can be null.
+   * @param holders - The ids of the peers holding each file, separated by the token.
+   * @param count - The number of files.
+   * @return registered - The number of files registered.
+   * @throws IOException - If the registrations could not be written to the log.
+   */
+  public int put(long keys[], String names[], String holders[], int count) throws IOException {
+    IndexLog log = this.log;
+    long sequence = 0;
+    int registered = 0;
+    if (log != null) {
+      log.beginWrite();
+    }
+    try {
+      for (int i = 0; i < count; i++) {
+        long fingerprint = Key.fingerprint(names[i]);
+        long packed;
+        try {
+          packed = Holders.pack(holders[i]);
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        if (log == null) {
+          entries.put(keys[i],fingerprint,packed);
+        }
+        else {
+          synchronized (stripes[(int) (keys[i] >>> 58)]) {
+            sequence = log.append(keys[i],fingerprint,packed);
+            entries.put(keys[i],fingerprint,packed);
+          }
+        }
+        registered++;
+      }
+    } finally {
+      if (log != null) {
+        log.endWrite();
+      }
+    }
+    if (sequence != 0) {
+      log.await(sequence);
+    }
+    return registered;
+  }
+
+  /**
+   * Unregisters a file, if it was registered by a peer as its original holder.
+   * If the index is durable, it returns once the removal is written to the disk. Otherwise the file is dropped from the
+   * map, unless a snapshot holds it and the Holders.NONE entry must hide it.
+   * @param key - The key.
+   * @param name - The name of the file. Null if the peer did not send it.
+   * @param id - The id of the peer.
+   * @return true if the file was unregistered.
+   * @throws IOException - If the removal could not be written to the log.
+   */
+  public boolean remove(long key, String name, int id) throws IOException {
+    long fingerprint = Key.fingerprint(name);
+    IndexLog log = this.log;
+    long sequence = 0;
+    if (log != null) {
+      log.beginWrite();
+    }
+    try {
+      synchronized (stripes[(int) (key >>> 58)]) {
+        long holders = entries.get(key,fingerprint);
+        if (holders == 0) {
+          holders = snapshot.get(key,fingerprint);
+        }
+        if (holders == 0 || holders == Holders.NONE || Holders.ids(holders)[0] != id) {
+          return false;
+        }
+        if (log != null) {
+          sequence = log.append(key,fingerprint,Holders.NONE);
+        }
+        if (log == null && snapshot.get(key,fingerprint) == 0) {
+          entries.remove(key,fingerprint,holders);
+        }
+        else {
+          entries.put(key,fingerprint,Holders.NONE);
+        }
+      }
+    } finally {
+      if (log != null) {
+        log.endWrite();
+      }
+    }
+    if (sequence != 0) {
+      log.await(sequence);
+    }
+    return true;
+  }
+
+  /**
+   * Registers the holders of a file read back from the log, without logging it again.
+   * @param key - The key.
+   * @param fingerprint - The fingerprint of the name of the file, or 0.
+   * @param holders - The packed holders, or Holders.NONE if the file was unregistered.
+   */
+  void restore(long key, long fingerprint, long holders) {
+    entries.put(key,fingerprint,holders);
+  }
+
+  /**
+   * Replaces the snapshot, when the index is loaded.
+   * @param snapshot - The snapshot.
+   */
+  void load(IndexSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * Returns the holders of a file.
+   * @param key - The key.
+   * @param name - The name of the file. Null to accept any name.
+   * @return holders - The ids of the peers holding the file, or null if it is not registered.
+   */
+  public String get(long key, String name) {
+    long fingerprint = Key.fingerprint(name);
+    long holders = entries.get(key,fingerprint);
+    if (holders == 0) {
+      holders = snapshot.get(key,fingerprint);
+    }
+    return holders == 0 || holders == Holders.NONE ? null : Holders.format(holders);
+  }
+
+  /**
+   * @return size - The number of entries of the snapshot and of entries registered since. A file registered again since
+   * the snapshot is counted twice.
+   */
+  public long size() {
+    return snapshot.size()+entries.size();
+  }
+
+  /**
+   * Writes a snapshot of the index: the entries of the current snapshot merged with the ones registered since, sorted by key.
+   * The files unregistered are left out. The new snapshot then replaces the current one, and the entries it holds
+   * are removed from the map unless they were registered again meanwhile.
+   * @param temporary - The file to write.
+   * @param file - The file of the snapshot, the temporary file is renamed to it once written.
+   * @param generation - The generation of the snapshot.
+   * @return size - The size of the snapshot in bytes.
+   * @throws IOException - If the snapshot could not be written.
+   */
+  long compact(File temporary, File file, long generation) throws IOException {
+    final long keys[][] = {new long[(int) entries.size()+16]};
+    final int n[] = {0};
+    entries.forEach(new LongHolderMap.Visitor() {
+      public void visit(long key, long fingerprint, long holders) {
+        if (n[0] == keys[0].length) {
+          keys[0] = Arrays.copyOf(keys[0],n[0]*2);
+        }
+        keys[0][n[0]++] = key;
+      }
+    });
+    long sorted[] = keys[0];
+    int count = n[0];
+    Arrays.sort(sorted,0,count);
+    long written[][] = new long[count][];
+    IndexSnapshot old = snapshot;
+    IndexSnapshot.Writer out = new IndexSnapshot.Writer(temporary,generation);
+    long size;
+    try {
+      int j = 0;
+      for (int i = 0; i < count; i++) {
+        if (i > 0 && sorted[i] == sorted[i-1]) {
+          continue;
+        }
+        long key = sorted[i];
+        for (; j < old.size() && old.key(j) < key; j++) {
+          out.add(old.key(j),old.fingerprint(j),old.holders(j));
+        }
+        written[i] = entries.entries(key);
+        for (int e = 0; e < written[i].length; e += 2) {
+          if (written[i][e+1] != Holders.NONE) {
+            out.add(key,written[i][e],written[i][e+1]);
+          }
+        }
+        for (; j < old.size() && old.key(j) == key; j++) {
+          if (!registered(written[i],old.fingerprint(j))) {
+            out.add(key,old.fingerprint(j),old.holders(j));
+          }
+        }
+      }
+      for (; j < old.size(); j++) {
+        out.add(old.key(j),old.fingerprint(j),old.holders(j));
+      }
+      size = out.finish();
+    } catch (IOException e) {
+      out.abort();
+      throw e;
+    }
+    Files.move(temporary.toPath(),file.toPath(),StandardCopyOption.ATOMIC_MOVE);
+    snapshot = IndexSnapshot.open(file);
+    for (int i = 0; i < count; i++) {
+      if (written[i] != null) {
+        for (int e = 0; e < written[i].length; e += 2) {
+          entries.remove(sorted[i],written[i][e],written[i][e+1]);
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return log - The log making the index durable, or null if it only lives in memory.
+   */
+  public IndexLog getLog() {
+    return log;
+  }
+
+  /**
+   * Writes the registrations waiting to the log and closes it.
+   */
+  public void close() {
+    if (log != null) {
+      log.close();
+    }
+  }
+
+  private static boolean registered(long written[], long fingerprint) {
+    for (int e = 0; e < written.length; e += 2) {
+      if (written[e] == fingerprint) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
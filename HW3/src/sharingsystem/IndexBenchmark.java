@@ -0,0 +1,131 @@
+package sharingsystem;
+
+import java.util.Hashtable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the LongHolderMap of the index with the Hashtable of strings it replaces: the memory taken by an entry,
+ * the time of the registrations, and the lookups and the puts per second of concurrent threads.
+ * The lookups and the puts are spread at random over all the entries, so that they miss the processor caches the way
+ * the lookups of a large index do. A put registers an entry again. Every entry is held by 3 peers. Run it with a heap and a direct memory large enough for the entries,
+ * for example -Xmx3g -XX:MaxDirectMemorySize=2g for 10 million entries.
+ * Usage: IndexBenchmark entries threads
+ */
+public class IndexBenchmark {
+
+  private static final String HOLDERS = "1"+Constant.TOKEN+"2"+Constant.TOKEN+"3";
+
+  public static void main(String args[]) throws Exception {
+    if(args.length < 2) {
+      System.out.println("Usage: IndexBenchmark <entries> <threads>");
+      return;
+    }
+    final int entries = Integer.parseInt(args[0]);
+    int threads = Integer.parseInt(args[1]);
+
+    long before = usedMemory();
+    long start = System.nanoTime();
+    final Hashtable<String,String> table = new Hashtable<String,String>();
+    for(int i=0;i<entries;i++) {
+      table.put(Key.format(Key.of("file"+i+".txt")),new String(HOLDERS));
+    }
+    long elapsed = System.nanoTime()-start;
+    long memory = usedMemory()-before;
+    System.out.println(String.format("Hashtable<String,String>: %d entries put in %d ms, %.1f bytes per entry.",
+        entries,elapsed/1000000,(double) memory/entries));
+    final String keys[] = table.keySet().toArray(new String[0]);
+    measure("Hashtable<String,String>","lookups",threads,entries,new Operation() {
+      public boolean run(int i) {
+        return table.get(keys[i]) != null;
+      }
+    });
+    measure("Hashtable<String,String>","puts",threads,entries,new Operation() {
+      public boolean run(int i) {
+        return table.put(keys[i],HOLDERS) != null;
+      }
+    });
+    table.clear();
+
+    start = System.nanoTime();
+    final LongHolderMap map = new LongHolderMap();
+    final long holders = Holders.pack(HOLDERS);
+    for(int i=0;i<entries;i++) {
+      String name = "file"+i+".txt";
+      map.put(Key.of(name),Key.fingerprint(name),holders);
+    }
+    elapsed = System.nanoTime()-start;
+    System.out.println(String.format("LongHolderMap: %d entries put in %d ms, %.1f bytes per entry off-heap.",
+        entries,elapsed/1000000,(double) map.memory()/entries));
+    final long longKeys[] = new long[entries];
+    final long fingerprints[] = new long[entries];
+    for(int i=0;i<entries;i++) {
+      String name = "file"+i+".txt";
+      longKeys[i] = Key.of(name);
+      fingerprints[i] = Key.fingerprint(name);
+    }
+    measure("LongHolderMap","lookups",threads,entries,new Operation() {
+      public boolean run(int i) {
+        return map.get(longKeys[i],fingerprints[i]) != 0;
+      }
+    });
+    measure("LongHolderMap","puts",threads,entries,new Operation() {
+      public boolean run(int i) {
+        map.put(longKeys[i],fingerprints[i],holders);
+        return true;
+      }
+    });
+  }
+
+  /**
+   * A lookup or a put of the benchmark.
+   */
+  private interface Operation {
+    /**
+     * @param i - The number of the entry.
+     * @return found - False if the entry is missing.
+     */
+    boolean run(int i);
+  }
+
+  /**
+   * Runs operations on entries drawn at random from several threads for two seconds and prints their throughput.
+   */
+  private static void measure(String name, String operations, int threads, final int entries, final Operation operation)
+      throws InterruptedException {
+    final AtomicLong total = new AtomicLong();
+    final long end = System.nanoTime()+2000000000L;
+    Thread workers[] = new Thread[threads];
+    for(int t=0;t<threads;t++) {
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          long count = 0;
+          while(System.nanoTime() < end) {
+            for(int i=0;i<1024;i++) {
+              if(!operation.run(random.nextInt(entries))) {
+                throw new IllegalStateException("An entry is missing.");
+              }
+            }
+            count += 1024;
+          }
+          total.addAndGet(count);
+        }
+      });
+      workers[t].start();
+    }
+    for(Thread worker : workers) {
+      worker.join();
+    }
+    System.out.println(String.format("%s: %.0f %s per second with %d threads.",name,total.get()/2.0,operations,threads));
+  }
+
+  private static long usedMemory() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for(int i=0;i<3;i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory()-runtime.freeMemory();
+  }
+}
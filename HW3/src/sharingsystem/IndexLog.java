@@ -0,0 +1,523 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Makes an Index durable with an append-only log of the registrations and compacted snapshots.
+ * The log is written by one thread: registrations arriving while it writes are written and synced together (group commit),
+ * so a single fsync covers every registration of a batch.
+ * An IndexSnapshot holds every entry of the index and replaces the logs written before it. It is written by a background
+ * thread once the log reaches a quarter of the size of the last snapshot.
+ * At startup the snapshot is mapped and the logs following it are read through memory-mapped buffers. A torn record at the end
+ * of the log, left by a crash, is cut off.
+ * Record: length of the body (4 bytes), CRC32 of the body (4 bytes), then the key, the fingerprint of the name
+ * and the packed Holders, Holders.NONE for a file unregistered (8 bytes each).
+ */
+public class IndexLog {
+
+  private static final String SNAPSHOT = "snapshot.";
+  private static final String LOG = "log.";
+  /**
+   * The length of the body of a record.
+   */
+  private static final int RECORD = 24;
+
+  /**
+   * The directory of the files.
+   */
+  private final File directory;
+  /**
+   * The generation of the log being written. The snapshot of generation g replaces the logs older than g.
+   */
+  private long generation;
+  /**
+   * The channel of the log being written.
+   */
+  private FileChannel channel;
+  /**
+   * The records waiting to be written, and the buffer swapped with it by the writer.
+   */
+  private ByteBuffer pending = ByteBuffer.allocate(64*1024);
+  private ByteBuffer writing = ByteBuffer.allocate(64*1024);
+  /**
+   * The number of records appended and the number of records synced to the disk.
+   */
+  private long appended;
+  private long durable;
+  /**
+   * The error stopping the writer, or null.
+   */
+  private IOException failure;
+  private boolean closed;
+  /**
+   * The lock of the pending records, signalled when records are appended and when they are synced.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition work = lock.newCondition();
+  private final Condition synced = lock.newCondition();
+  /**
+   * Held in read mode while a registration updates the index and appends its record, and in write mode while the log is
+   * switched to a new generation, so that the snapshot sees every record of the older generations.
+   */
+  private final ReentrantReadWriteLock rotation = new ReentrantReadWriteLock();
+  /**
+   * The encoder of the records, used under the lock.
+   */
+  private final CRC32 crc = new CRC32();
+  /**
+   * The threads writing the log and the snapshots.
+   */
+  private Thread writer;
+  private Thread snapshotter;
+
+  /**
+   * The size of the log written since the last snapshot and the size of the last snapshot.
+   */
+  private volatile long logSize;
+  private volatile long snapshotSize;
+  /**
+   * The statistics: the bytes of the records appended, the bytes written to the disk (logs and snapshots),
+   * the number of syncs of the log, of snapshots, and the time of the recovery.
+   */
+  private volatile long recordBytes;
+  private final AtomicLong writtenBytes = new AtomicLong();
+  private volatile long syncs;
+  private volatile long snapshots;
+  private long recoveredEntries;
+  private long replayedRecords;
+  private long recoveryTime;
+
+  /**
+   * Constructor of the log of a directory. Nothing is read before recover is called.
+   * @param directory - The directory of the log and the snapshots. It is created if it does not exist.
+   * @throws IOException - If the directory could not be created.
+   */
+  public IndexLog(File directory) throws IOException {
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create the index directory "+directory+".");
+    }
+  }
+
+  /**
+   * Loads the snapshot and the logs following it in the index, then opens the log for the new registrations.
+   * @param index - The index to fill, without a log yet.
+   * @throws IOException - If the files could not be read, or the snapshot is damaged.
+   */
+  public void recover(Index index) throws IOException {
+    long start = System.nanoTime();
+    generation = 0;
+    boolean loaded = false;
+    List<Long> snapshots = generations(SNAPSHOT);
+    for (int i = snapshots.size()-1; i >= 0 && !loaded; i--) {
+      File file = new File(directory,SNAPSHOT+snapshots.get(i));
+      try {
+        IndexSnapshot snapshot = IndexSnapshot.open(file);
+        index.load(snapshot);
+        generation = snapshot.generation();
+        recoveredEntries = snapshot.size();
+        snapshotSize = file.length();
+        loaded = true;
+      } catch (IOException e) {
+        System.out.println(e.getMessage()+" An older snapshot is used.");
+      }
+    }
+    if (!snapshots.isEmpty() && !loaded) {
+      throw new IOException("No index snapshot of "+directory+" could be read.");
+    }
+    deleteOlder(SNAPSHOT,generation);
+    List<Long> logs = generations(LOG);
+    long last = generation;
+    for (long g : logs) {
+      last = Math.max(last,g);
+    }
+    deleteOlder(LOG,generation);
+    long valid = 0;
+    for (long g : logs) {
+      if (g >= generation) {
+        try (FileChannel in = FileChannel.open(logFile(g).toPath(),StandardOpenOption.READ,StandardOpenOption.WRITE)) {
+          MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY,0,in.size());
+          replayedRecords += replay(map,index);
+          valid = map.position();
+          if (valid < in.size()) {
+            System.out.println("The end of the index log "+logFile(g)+" was damaged and is cut off.");
+            in.truncate(valid);
+          }
+        }
+        logSize += valid;
+      }
+    }
+    generation = last;
+    channel = FileChannel.open(logFile(generation).toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+    channel.position(channel.size());
+    recoveryTime = System.nanoTime()-start;
+  }
+
+  /**
+   * Starts the threads writing the log and the snapshots of an index.
+   * @param index - The index.
+   * @param interval - The time between two checks of the size of the log, in milliseconds.
+   */
+  public void start(final Index index, final long interval) {
+    writer = new Thread(new Runnable() {
+      public void run() {
+        write();
+      }
+    },"index-log");
+    writer.setDaemon(true);
+    writer.start();
+    snapshotter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (!isClosed()) {
+            Thread.sleep(interval);
+            if (logSize > 0 && logSize >= snapshotSize/4) {
+              snapshot(index);
+            }
+          }
+        } catch (InterruptedException e) {
+          ;
+        } catch (IOException e) {
+          System.out.println("The index snapshot could not be written: "+e.getMessage());
+        }
+      }
+    },"index-snapshot");
+    snapshotter.setDaemon(true);
+    snapshotter.start();
+  }
+
+  /**
+   * Called before a registration updates the index and appends its record.
+   */
+  public void beginWrite() {
+    rotation.readLock().lock();
+  }
+
+  /**
+   * Called once a registration has updated the index and appended its record.
+   */
+  public void endWrite() {
+    rotation.readLock().unlock();
+  }
+
+  /**
+   * Appends the record of a registration. It is written later by the log thread.
+   * @param key - The key.
+   * @param fingerprint - The fingerprint of the name of the file, or 0.
+   * @param holders - The packed holders of the file.
+   * @return sequence - The number of the record, to wait for with await.
+   */
+  public long append(long key, long fingerprint, long holders) {
+    lock.lock();
+    try {
+      if (pending.remaining() < 8+RECORD) {
+        ByteBuffer grown = ByteBuffer.allocate(pending.capacity()*2);
+        pending.flip();
+        grown.put(pending);
+        pending = grown;
+      }
+      int start = pending.position();
+      pending.putInt(RECORD);
+      pending.putInt(0);
+      pending.putLong(key);
+      pending.putLong(fingerprint);
+      pending.putLong(holders);
+      crc.reset();
+      crc.update(pending.array(),start+8,RECORD);
+      pending.putInt(start+4,(int) crc.getValue());
+      recordBytes += 8+RECORD;
+      work.signal();
+      return ++appended;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until a record is synced to the disk.
+   * @param sequence - The number of the record returned by append.
+   * @throws IOException - If the log could not be written.
+   */
+  public void await(long sequence) throws IOException {
+    lock.lock();
+    try {
+      while (durable < sequence && failure == null) {
+        synced.awaitUninterruptibly();
+      }
+      if (durable < sequence) {
+        throw failure;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The loop of the log thread. It takes all the records appended, writes them, syncs the log and wakes up their registrations.
+   */
+  private void write() {
+    while (true) {
+      long batch;
+      FileChannel out;
+      lock.lock();
+      try {
+        while (pending.position() == 0 && !closed) {
+          work.awaitUninterruptibly();
+        }
+        if (pending.position() == 0) {
+          return;
+        }
+        ByteBuffer swap = writing;
+        writing = pending;
+        pending = swap;
+        batch = appended;
+        out = channel;
+      } finally {
+        lock.unlock();
+      }
+      IOException error = null;
+      try {
+        writing.flip();
+        int length = writing.remaining();
+        while (writing.hasRemaining()) {
+          out.write(writing);
+        }
+        out.force(false);
+        logSize += length;
+        writtenBytes.addAndGet(length);
+        syncs++;
+      } catch (IOException e) {
+        error = e;
+      }
+      writing.clear();
+      lock.lock();
+      try {
+        if (error != null) {
+          failure = error;
+        }
+        else {
+          durable = batch;
+        }
+        synced.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      if (error != null) {
+        System.out.println("The index log could not be written: "+error.getMessage());
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes a snapshot of the index. The log is switched to a new generation first, then the index writes the snapshot
+   * of that generation, and the logs and snapshots of the older generations are deleted.
+   * @param index - The index.
+   * @throws IOException - If the snapshot could not be written.
+   */
+  public void snapshot(Index index) throws IOException {
+    long next;
+    rotation.writeLock().lock();
+    try {
+      lock.lock();
+      try {
+        long last = appended;
+        while (durable < last && failure == null) {
+          synced.awaitUninterruptibly();
+        }
+        if (failure != null) {
+          throw failure;
+        }
+        next = generation+1;
+        FileChannel old = channel;
+        channel = FileChannel.open(logFile(next).toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+        generation = next;
+        logSize = 0;
+        old.close();
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      rotation.writeLock().unlock();
+    }
+    File file = new File(directory,SNAPSHOT+next);
+    long size = index.compact(new File(directory,SNAPSHOT+next+".tmp"),file,next);
+    snapshotSize = size;
+    writtenBytes.addAndGet(size);
+    syncDirectory();
+    deleteOlder(LOG,next);
+    deleteOlder(SNAPSHOT,next);
+    snapshots++;
+    System.out.println("Index snapshot written: "+index.size()+" entries, "+size+" bytes. "+report());
+  }
+
+  /**
+   * Writes the records waiting, stops the threads and closes the log.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      work.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      if (snapshotter != null) {
+        snapshotter.interrupt();
+      }
+      if (writer != null) {
+        writer.join();
+      }
+      lock.lock();
+      try {
+        channel.close();
+      } finally {
+        lock.unlock();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      ;
+    }
+  }
+
+  /**
+   * @return report - The recovery time and the write amplification, the bytes written to the disk for each byte of record.
+   */
+  public String report() {
+    long records = recordBytes;
+    return String.format("Recovered %d entries and %d log records in %d ms. Write amplification %.2f (%d bytes of records, "
+        + "%d bytes written, %d syncs, %d snapshots).",recoveredEntries,replayedRecords,recoveryTime/1000000,
+        records == 0 ? 0.0 : (double) writtenBytes.get()/records,records,writtenBytes.get(),syncs,snapshots);
+  }
+
+  /**
+   * @return time - The time taken by recover, in nanoseconds.
+   */
+  public long getRecoveryTime() {
+    return recoveryTime;
+  }
+
+  /**
+   * @return amplification - The bytes written to the disk for each byte of record appended.
+   */
+  public double getWriteAmplification() {
+    long records = recordBytes;
+    return records == 0 ? 0 : (double) writtenBytes.get()/records;
+  }
+
+  private boolean isClosed() {
+    lock.lock();
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads the records of a buffer into an index, until the end of the buffer or the first damaged record.
+   * The buffer is left at the end of the last valid record.
+   * @param in - The buffer.
+   * @param index - The index.
+   * @return count - The number of records read.
+   */
+  private static long replay(ByteBuffer in, Index index) {
+    CRC32 crc = new CRC32();
+    byte scratch[] = new byte[RECORD];
+    long count = 0;
+    while (in.remaining() >= 8) {
+      int start = in.position();
+      int body = in.getInt();
+      int sum = in.getInt();
+      if (body != RECORD || in.remaining() < RECORD) {
+        in.position(start);
+        break;
+      }
+      in.get(scratch,0,body);
+      crc.reset();
+      crc.update(scratch,0,body);
+      if ((int) crc.getValue() != sum) {
+        in.position(start);
+        break;
+      }
+      ByteBuffer record = ByteBuffer.wrap(scratch,0,body);
+      index.restore(record.getLong(),record.getLong(),record.getLong());
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * @param prefix - The prefix of the files, LOG or SNAPSHOT.
+   * @return generations - The generations of the files of the directory, in increasing order.
+   */
+  private List<Long> generations(String prefix) {
+    List<Long> generations = new ArrayList<Long>();
+    String names[] = directory.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(prefix)) {
+          try {
+            generations.add(Long.parseLong(name.substring(prefix.length())));
+          } catch (NumberFormatException e) {
+            ;
+          }
+        }
+      }
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  /**
+   * Deletes the files older than a generation, and the temporary files of unfinished snapshots.
+   * A file still mapped may not be deleted on some systems; it is deleted at the next snapshot.
+   * @param prefix - The prefix of the files, LOG or SNAPSHOT.
+   * @param generation - The generation.
+   */
+  private void deleteOlder(String prefix, long generation) {
+    for (long g : generations(prefix)) {
+      if (g < generation) {
+        new File(directory,prefix+g).delete();
+      }
+    }
+    String names[] = directory.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.endsWith(".tmp")) {
+          new File(directory,name).delete();
+        }
+      }
+    }
+  }
+
+  private File logFile(long generation) {
+    return new File(directory,LOG+generation);
+  }
+
+  /**
+   * Syncs the directory so that the renaming of the snapshot survives a crash. Not every system supports it.
+   */
+  private void syncDirectory() {
+    try (FileChannel dir = FileChannel.open(directory.toPath(),StandardOpenOption.READ)) {
+      dir.force(true);
+    } catch (IOException e) {
+      ;
+    }
+  }
+}
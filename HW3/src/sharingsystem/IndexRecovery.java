@@ -0,0 +1,81 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the durable index: the time of the registrations written to the log by concurrent threads,
+ * the recovery time of an index of a given size, and the write amplification.
+ * The index is filled with generated entries and a snapshot is written. It is then loaded again, registrations are logged,
+ * and it is loaded once more from the snapshot and the log.
+ * Usage: IndexRecovery directory entries registrations threads
+ */
+public class IndexRecovery {
+
+  public static void main(String args[]) throws Exception {
+    if(args.length < 4) {
+      System.out.println("Usage: IndexRecovery <directory> <entries> <registrations> <threads>");
+      return;
+    }
+    File directory = new File(args[0]);
+    final int entries = Integer.parseInt(args[1]);
+    final int registrations = Integer.parseInt(args[2]);
+    int threads = Integer.parseInt(args[3]);
+    delete(directory);
+
+    Index filled = Index.open(directory,Long.MAX_VALUE);
+    long holders = Holders.pack("1"+Constant.TOKEN+"2"+Constant.TOKEN+"3");
+    for(int i=0;i<entries;i++) {
+      filled.restore(Key.of("file"+i+".txt"),Key.fingerprint("file"+i+".txt"),holders);
+    }
+    long start = System.nanoTime();
+    filled.getLog().snapshot(filled);
+    System.out.println("Snapshot of "+entries+" entries written in "+(System.nanoTime()-start)/1000000+" ms.");
+    filled.close();
+
+    final Index index = Index.open(directory,Long.MAX_VALUE);
+    System.out.println("Loaded "+index.size()+" keys. "+index.getLog().report());
+
+    final AtomicLong next = new AtomicLong();
+    Thread workers[] = new Thread[threads];
+    start = System.nanoTime();
+    for(int t=0;t<threads;t++) {
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          long i;
+          try {
+            while((i = next.getAndIncrement()) < registrations) {
+              index.put(Key.of("new"+i+".txt"),"new"+i+".txt",""+(i%8+1));
+            }
+          } catch (IOException e) {
+            System.out.println("A registration failed: "+e.getMessage());
+          }
+        }
+      });
+      workers[t].start();
+    }
+    for(Thread worker : workers) {
+      worker.join();
+    }
+    long elapsed = System.nanoTime()-start;
+    System.out.println(String.format("%d registrations logged by %d threads in %d ms (%.0f per second).",
+        registrations,threads,elapsed/1000000,registrations*1e9/Math.max(1,elapsed)));
+    System.out.println(index.getLog().report());
+    index.close();
+
+    Index loaded = Index.open(directory,Long.MAX_VALUE);
+    System.out.println("Loaded "+loaded.size()+" keys. "+loaded.getLog().report());
+    loaded.close();
+  }
+
+  private static void delete(File file) {
+    File children[] = file.listFiles();
+    if(children != null) {
+      for(File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
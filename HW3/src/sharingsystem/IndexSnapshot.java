@@ -0,0 +1,222 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A compacted snapshot of an index, sorted by key and read in place through a memory-mapped buffer.
+ * Loading it only maps the file and checks its CRC32: the entries are not copied to the heap, a lookup is a binary search
+ * in the mapped entries.
+ * Layout: magic (4 bytes), generation (8), number of entries (8), CRC32 of the entries (4),
+ * then the entries of 24 bytes: key, fingerprint of the name and packed Holders.
+ * A snapshot must be smaller than 2 GB.
+ */
+public class IndexSnapshot {
+
+  private static final int MAGIC = 0x44465349;
+  private static final int HEADER = 4+8+8+4;
+  private static final int ENTRY = 24;
+
+  /**
+   * The mapped file.
+   */
+  private final ByteBuffer map;
+  private final long generation;
+  private final int count;
+
+  private IndexSnapshot(ByteBuffer map, long generation, int count) {
+    this.map = map;
+    this.generation = generation;
+    this.count = count;
+  }
+
+  /**
+   * Maps a snapshot and checks it.
+   * @param file - The file of the snapshot.
+   * @return snapshot - The snapshot.
+   * @throws IOException - If the file could not be read or is damaged.
+   */
+  public static IndexSnapshot open(File file) throws IOException {
+    try (FileChannel in = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+      if (in.size() > Integer.MAX_VALUE || in.size() < HEADER) {
+        throw new IOException("The index snapshot "+file+" is damaged.");
+      }
+      MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY,0,in.size());
+      long generation = map.getLong(4);
+      long count = map.getLong(12);
+      if (map.getInt(0) != MAGIC || count < 0 || HEADER+ENTRY*count != in.size()) {
+        throw new IOException("The index snapshot "+file+" is damaged.");
+      }
+      ByteBuffer body = map.duplicate();
+      body.position(HEADER);
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      if ((int) crc.getValue() != map.getInt(20)) {
+        throw new IOException("The index snapshot "+file+" is damaged.");
+      }
+      return new IndexSnapshot(map,generation,(int) count);
+    }
+  }
+
+  /**
+   * @return snapshot - An empty snapshot, for an index without one.
+   */
+  public static IndexSnapshot empty() {
+    return new IndexSnapshot(ByteBuffer.allocate(0),0,0);
+  }
+
+  /**
+   * @return generation - The generation of the snapshot. It replaces the logs older than it.
+   */
+  public long generation() {
+    return generation;
+  }
+
+  /**
+   * @return size - The number of entries.
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @param i - The number of an entry.
+   * @return key - The key of the entry.
+   */
+  public long key(int i) {
+    return map.getLong(HEADER+ENTRY*i);
+  }
+
+  /**
+   * @param i - The number of an entry.
+   * @return fingerprint - The fingerprint of the name of the file of the entry, or 0.
+   */
+  public long fingerprint(int i) {
+    return map.getLong(HEADER+ENTRY*i+8);
+  }
+
+  /**
+   * @param i - The number of an entry.
+   * @return holders - The packed holders of the entry.
+   */
+  public long holders(int i) {
+    return map.getLong(HEADER+ENTRY*i+16);
+  }
+
+  /**
+   * Returns the holders of a file.
+   * @param key - The key.
+   * @param fingerprint - The fingerprint of the name of the file. 0 to accept any name.
+   * @return holders - The packed holders, or 0 if the snapshot does not have the file.
+   */
+  public long get(long key, long fingerprint) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low+high) >>> 1;
+      if (key(middle) < key) {
+        low = middle+1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    for (int i = low; i < count && key(i) == key; i++) {
+      long f = fingerprint(i);
+      if (fingerprint == 0 || f == 0 || f == fingerprint) {
+        return holders(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Writes a snapshot. The entries must be added in increasing order of their keys.
+   */
+  public static class Writer {
+
+    private final FileChannel out;
+    private final long generation;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024*1024);
+    private final CRC32 crc = new CRC32();
+    private long count;
+    private long last = Long.MIN_VALUE;
+
+    /**
+     * Constructor of a writer.
+     * @param file - The file to write. It is replaced if it exists.
+     * @param generation - The generation of the snapshot.
+     * @throws IOException - If the file could not be created.
+     */
+    public Writer(File file, long generation) throws IOException {
+      this.out = FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      this.generation = generation;
+      out.position(HEADER);
+    }
+
+    /**
+     * Adds an entry.
+     * @param key - The key.
+     * @param fingerprint - The fingerprint of the name of the file, or 0.
+     * @param holders - The packed holders.
+     * @throws IOException - If the file could not be written.
+     */
+    public void add(long key, long fingerprint, long holders) throws IOException {
+      if (key < last) {
+        throw new IOException("The entries of a snapshot must be sorted.");
+      }
+      last = key;
+      if (buffer.remaining() < ENTRY) {
+        flush();
+      }
+      buffer.putLong(key).putLong(fingerprint).putLong(holders);
+      count++;
+    }
+
+    /**
+     * Writes the header and syncs the file.
+     * @return size - The size of the file.
+     * @throws IOException - If the file could not be written.
+     */
+    public long finish() throws IOException {
+      try {
+        flush();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putLong(generation).putLong(count).putInt((int) crc.getValue()).flip();
+        while (header.hasRemaining()) {
+          out.write(header,header.position());
+        }
+        out.force(true);
+        return out.size();
+      } finally {
+        out.close();
+      }
+    }
+
+    /**
+     * Closes the file without finishing it.
+     */
+    public void abort() {
+      try {
+        out.close();
+      } catch (IOException e) {
+        ;
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      crc.update(buffer.array(),0,buffer.limit());
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package sharingsystem;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The keys of the files. A key is a 64-bit hash, written as 16 hexadecimal digits in messages
+ * and sent as 8 bytes by the binary protocol.
+ */
+public class Key {
+
+  /**
+   * The number of digits of a key.
+   */
+  public static final int DIGITS = 16;
+  /**
+   * The seed of the fingerprints of the names.
+   */
+  private static final long FINGERPRINT_SEED = 0x5BD1E9955BD1E995L;
+
+  /**
+   * Returns the key of a file name.
+   * @param filename - The file name.
+   * @return key - The key.
+   */
+  public static long of(String filename) {
+    return XXHash64.hash(filename);
+  }
+
+  /**
+   * Returns the fingerprint of a file name, a second hash of the name with another seed.
+   * The index keeps it instead of the name to tell apart two names sharing a key.
+   * @param filename - The file name, or null.
+   * @return fingerprint - The fingerprint, never 0, or 0 if the name is null.
+   */
+  public static long fingerprint(String filename) {
+    if (filename == null) {
+      return 0;
+    }
+    XXHash64 hash = new XXHash64(FINGERPRINT_SEED);
+    byte bytes[] = filename.getBytes(StandardCharsets.UTF_8);
+    hash.update(bytes,0,bytes.length);
+    long fingerprint = hash.digest();
+    return fingerprint == 0 ? 1 : fingerprint;
+  }
+
+  /**
+   * Writes a key as 16 hexadecimal digits.
+   * @param key - The key.
+   * @return str - The digits.
+   */
+  public static String format(long key) {
+    String digits = Long.toHexString(key);
+    return "0000000000000000".substring(digits.length()) + digits;
+  }
+
+  /**
+   * Reads a key written by format.
+   * @param str - The digits.
+   * @return key - The key.
+   * @throws NumberFormatException - If the string is not a key.
+   */
+  public static long parse(String str) {
+    return Long.parseUnsignedLong(str,16);
+  }
+
+  /**
+   * Tells if a string is a key written by format.
+   * @param str - The string.
+   * @return true if the string has 16 lowercase hexadecimal digits.
+   */
+  public static boolean isKey(String str) {
+    if (str == null || str.length() != DIGITS) {
+      return false;
+    }
+    for (int i = 0; i < DIGITS; i++) {
+      char c = str.charAt(i);
+      if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
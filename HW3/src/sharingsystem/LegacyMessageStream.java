@@ -0,0 +1,225 @@
+package sharingsystem;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The protocol used before the binary protocol. Every message is written by a new ObjectOutputStream as a frame of 1024 bytes.
+ * The first 4 bytes correspond to the header, the next 20 bytes to the key and the last 1000 bytes to the value.
+ * Files are written through a new ObjectOutputStream, which cuts them in blocks of 1024 bytes, and end with the first
+ * block shorter than that. A file whose length is a multiple of 1024 bytes is ended by a reset of the stream instead.
+ * The blocks are read one by one with their length, so that a read of the socket coming back short does not end a file.
+ */
+public class LegacyMessageStream extends MessageStream {
+
+  /**
+   * The first byte written by an ObjectOutputStream.
+   */
+  public static final int FIRST_BYTE = 0xAC;
+
+  /**
+   * The size of a frame and of its fields.
+   */
+  private static final int FRAME_SIZE = 1024;
+  private static final int HEADER_SIZE = 4;
+  private static final int KEY_SIZE = 20;
+
+  /**
+   * The buffer used for frames and files.
+   */
+  private final byte[] buffer = new byte[FRAME_SIZE];
+
+  /**
+   * Constructor wrapping the streams of a socket.
+   * @param socket - The socket.
+   * @param in - The buffered input stream of the socket.
+   * @param out - The buffered output stream of the socket.
+   */
+  public LegacyMessageStream(Socket socket, InputStream in, OutputStream out) {
+    super(socket,in,out);
+  }
+
+  public void send(Message message) throws IOException {
+    byte[] headerByte = message.getHeader().getBytes();
+    byte[] keyByte = message.getKey() == null ? new byte[0] : message.getKey().getBytes();
+    byte[] valueByte = message.getValue() == null ? new byte[0] : message.getValue().getBytes();
+    if (headerByte.length > HEADER_SIZE || keyByte.length > KEY_SIZE
+        || valueByte.length > FRAME_SIZE-HEADER_SIZE-KEY_SIZE) {
+      throw new IOException("The message does not fit in a legacy frame.");
+    }
+    Arrays.fill(buffer,(byte) 0);
+    System.arraycopy(headerByte, 0, buffer, 0, headerByte.length);
+    System.arraycopy(keyByte, 0, buffer, HEADER_SIZE, keyByte.length);
+    System.arraycopy(valueByte, 0, buffer, HEADER_SIZE+KEY_SIZE, valueByte.length);
+    ObjectOutputStream objectOut = new ObjectOutputStream(out);
+    objectOut.write(buffer);
+    objectOut.flush();
+  }
+
+  public Message receive() throws IOException {
+    ObjectInputStream objectIn = new ObjectInputStream(in);
+    Arrays.fill(buffer,(byte) 0);
+    if (objectIn.read(buffer) < 0) {
+      throw new IOException("No message was received.");
+    }
+    String header = new String(buffer,0,HEADER_SIZE);
+    String key = field(HEADER_SIZE,KEY_SIZE);
+    String value = field(HEADER_SIZE+KEY_SIZE,FRAME_SIZE-HEADER_SIZE-KEY_SIZE);
+    return new Message(header,key,value);
+  }
+
+  public void sendFile(File file) throws IOException {
+    FileInputStream inf = new FileInputStream(file);
+    try {
+      ObjectOutputStream objectOut = new ObjectOutputStream(out);
+      long length = 0;
+      int i;
+      while((i=inf.read(buffer))!=-1){
+        objectOut.write(buffer,0,i);
+        length += i;
+      }
+      end(objectOut,length);
+    }
+    finally {
+      inf.close();
+    }
+  }
+
+  public void sendContent(ByteBuffer content) throws IOException {
+    ObjectOutputStream objectOut = new ObjectOutputStream(out);
+    byte copy[] = new byte[FRAME_SIZE];
+    long length = content.remaining();
+    while (content.hasRemaining()) {
+      int i = Math.min(copy.length,content.remaining());
+      content.get(copy,0,i);
+      objectOut.write(copy,0,i);
+    }
+    end(objectOut,length);
+  }
+
+  public OutputStream sendFile(final long length) throws IOException {
+    final ObjectOutputStream objectOut = new ObjectOutputStream(out);
+    return new FilterOutputStream(objectOut) {
+      public void write(byte b[], int off, int len) throws IOException {
+        out.write(b,off,len);
+      }
+
+      public void close() throws IOException {
+        end(objectOut,length);
+      }
+    };
+  }
+
+  public InputStream receiveStream(Message data) throws IOException {
+    throw new IOException("Frames need the binary protocol.");
+  }
+
+  public void receiveFile(File file) throws IOException {
+    DataInputStream dataIn = new DataInputStream(in);
+    if (dataIn.readShort() != ObjectStreamConstants.STREAM_MAGIC
+        || dataIn.readShort() != ObjectStreamConstants.STREAM_VERSION) {
+      throw new StreamCorruptedException("The file does not start with a stream header.");
+    }
+    FileOutputStream outf = new FileOutputStream(file);
+    try {
+      while (true) {
+        int type = dataIn.read();
+        int length;
+        if (type == ObjectStreamConstants.TC_BLOCKDATA) {
+          length = dataIn.readUnsignedByte();
+        }
+        else if (type == ObjectStreamConstants.TC_BLOCKDATALONG) {
+          length = dataIn.readInt();
+        }
+        else if (type == ObjectStreamConstants.TC_RESET) {
+          break;
+        }
+        else if (type < 0) {
+          throw new EOFException();
+        }
+        else {
+          throw new StreamCorruptedException("Unexpected block in a file.");
+        }
+        for (int count = length; count > 0;) {
+          int i = Math.min(buffer.length,count);
+          dataIn.readFully(buffer,0,i);
+          outf.write(buffer,0,i);
+          count -= i;
+        }
+        if (length < FRAME_SIZE) {
+          break;
+        }
+      }
+    }
+    finally {
+      outf.close();
+    }
+  }
+
+  /**
+   * Ends a file written through an ObjectOutputStream. A file whose last block is full is followed by a reset,
+   * so that the receiver does not wait for another block.
+   * @param objectOut - The stream the file was written to.
+   * @param length - The length of the file.
+   * @throws IOException - If the end could not be sent.
+   */
+  private static void end(ObjectOutputStream objectOut, long length) throws IOException {
+    if (length % FRAME_SIZE == 0) {
+      objectOut.reset();
+    }
+    objectOut.flush();
+  }
+
+  public void sendRange(File file, long offset, long length) throws IOException {
+    throw new IOException("Ranges need the binary protocol.");
+  }
+
+  public long receiveRange(FileChannel target) throws IOException {
+    throw new IOException("Ranges need the binary protocol.");
+  }
+
+  public void sendChunk(FileChannel source, long offset, long length, long id) throws IOException {
+    throw new IOException("Requests need the binary protocol.");
+  }
+
+  public void sendChunk(ByteBuffer content, long offset, long id) throws IOException {
+    throw new IOException("Requests need the binary protocol.");
+  }
+
+  public void receiveChunk(Message data, FileChannel target) throws IOException {
+    throw new IOException("Requests need the binary protocol.");
+  }
+
+  public String getProtocol() {
+    return Constant.PROTOCOL_LEGACY;
+  }
+
+  /**
+   * Reads a field of the frame up to its first '\0' byte.
+   * @param offset - The position of the field.
+   * @param size - The size of the field.
+   * @return field - The field as a String.
+   */
+  private String field(int offset, int size) {
+    int end = offset;
+    while(end < offset+size && buffer[end] != 0) {
+      end++;
+    }
+    return new String(buffer,offset,end-offset);
+  }
+}
@@ -0,0 +1,116 @@
+package sharingsystem;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many peers one node can hold in a server mode.
+ * A server is started as client 1 of the configuration file, then idle peers connect and stay silent
+ * while active peers keep searching keys. Connections are opened until the numbers asked are reached or the server refuses them.
+ * Usage: LoadTest mode idle active seconds
+ */
+public class LoadTest {
+
+  /**
+   * The number of keys registered before the test.
+   */
+  private static final int KEYS = 1000;
+
+  public static void main(String args[]) throws Exception {
+    if(args.length < 4) {
+      System.out.println("Usage: LoadTest <blocking|virtual|nio> <idle peers> <active peers> <seconds>");
+      return;
+    }
+    String mode = args[0];
+    int idle = Integer.parseInt(args[1]);
+    int active = Integer.parseInt(args[2]);
+    long seconds = Long.parseLong(args[3]);
+    final InetAddress address = InetAddress.getByName(ConfigurationFile.getClientIp()[0]);
+    final int port = ConfigurationFile.getClientPort()[0];
+
+    Server server = new Server(1,mode);
+    Thread serverThread = new Thread(server);
+    serverThread.setDaemon(true);
+    serverThread.start();
+    Thread.sleep(500);
+
+    MessageStream setup = MessageStream.connect(address,port,Constant.PROTOCOL_BINARY);
+    for(int i=0;i<KEYS;i++) {
+      setup.send(new Message(Constant.REGISTER_HEADER,Key.format(i),"1"));
+      setup.receive();
+    }
+
+    List<MessageStream> streams = new ArrayList<MessageStream>();
+    streams.add(setup);
+    int idleHeld = 0;
+    try {
+      for(;idleHeld<idle;idleHeld++) {
+        streams.add(MessageStream.connect(address,port,Constant.PROTOCOL_BINARY));
+      }
+    } catch (IOException e) {
+      System.out.println("The server refused idle peer "+(idleHeld+1)+".");
+    }
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final long end = System.currentTimeMillis()+seconds*1000;
+    List<Thread> peers = new ArrayList<Thread>();
+    int activeHeld = 0;
+    try {
+      for(;activeHeld<active;activeHeld++) {
+        final MessageStream stream = MessageStream.connect(address,port,Constant.PROTOCOL_BINARY);
+        streams.add(stream);
+        final int seed = activeHeld;
+        Thread peer = new Thread(new Runnable() {
+          public void run() {
+            int key = seed;
+            while(System.currentTimeMillis() < end) {
+              try {
+                stream.send(new Message(Constant.SEARCH_HEADER,Key.format(key%KEYS),""));
+                if(stream.receive().isSuccess()) {
+                  requests.incrementAndGet();
+                }
+                else {
+                  failures.incrementAndGet();
+                }
+              } catch (IOException e) {
+                failures.incrementAndGet();
+                return;
+              }
+              key += 7;
+            }
+          }
+        });
+        peer.setDaemon(true);
+        peer.start();
+        peers.add(peer);
+      }
+    } catch (IOException e) {
+      System.out.println("The server refused active peer "+(activeHeld+1)+".");
+    }
+
+    long start = System.currentTimeMillis();
+    for(Thread peer : peers) {
+      peer.join();
+    }
+    double elapsed = Math.max(1,System.currentTimeMillis()-start)/1000.0;
+    Runtime runtime = Runtime.getRuntime();
+    System.out.println("Mode: "+mode);
+    System.out.println("Idle peers held: "+idleHeld+"/"+idle);
+    System.out.println("Active peers held: "+activeHeld+"/"+active);
+    if(!mode.equals(Constant.SERVER_NIO)) {
+      System.out.println("Connections open on the server: "+server.getActiveConnections());
+    }
+    System.out.println("Searches: "+requests.get()+" ("+Math.round(requests.get()/elapsed)+"/s), failures: "+failures.get());
+    System.out.println("Platform threads: "+ManagementFactory.getThreadMXBean().getThreadCount());
+    System.out.println("Heap used: "+(runtime.totalMemory()-runtime.freeMemory())/(1024*1024)+" MB");
+    for(MessageStream stream : streams) {
+      stream.close();
+    }
+    server.shutdown();
+  }
+}
@@ -0,0 +1,301 @@
+package sharingsystem;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An open-addressing hash map from a key and the fingerprint of a file name to packed Holders, stored off-heap.
+ * A slot takes 24 bytes of a direct buffer: the key, the fingerprint and the holders, 0 marking an empty slot.
+ * The map is split in segments, each with its own table, linear probing and lock. Writes lock their segment.
+ * Reads do not lock: they read optimistically and only retry under the read lock if a write happened meanwhile.
+ * A fingerprint of 0 stands for a file registered without its name, and matches any name on lookup.
+ */
+public class LongHolderMap {
+
+  /**
+   * Visits the entries of the map.
+   */
+  public interface Visitor {
+    void visit(long key, long fingerprint, long holders);
+  }
+
+  private static final int SLOT = 24;
+  private static final int SEGMENT_BITS = 6;
+  private static final int INITIAL_CAPACITY = 64;
+
+  /**
+   * A segment of the map.
+   */
+  private static final class Segment {
+    private final StampedLock lock = new StampedLock();
+    private volatile ByteBuffer table = allocate(INITIAL_CAPACITY);
+    private volatile int size;
+  }
+
+  private final Segment segments[] = new Segment[1 << SEGMENT_BITS];
+
+  /**
+   * Constructor of an empty map.
+   */
+  public LongHolderMap() {
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Returns the holders of a file.
+   * @param key - The key.
+   * @param fingerprint - The fingerprint of the name, 0 to accept any name.
+   * @return holders - The packed holders, or 0 if the map does not have the file.
+   */
+  public long get(long key, long fingerprint) {
+    long hash = mix(key);
+    Segment segment = segments[(int) (hash >>> (64-SEGMENT_BITS))];
+    long stamp = segment.lock.tryOptimisticRead();
+    long holders = find(segment.table,hash,key,fingerprint);
+    if (!segment.lock.validate(stamp)) {
+      stamp = segment.lock.readLock();
+      try {
+        holders = find(segment.table,hash,key,fingerprint);
+      } finally {
+        segment.lock.unlockRead(stamp);
+      }
+    }
+    return holders;
+  }
+
+  /**
+   * Puts the holders of a file, replacing the ones put before with the same key and fingerprint.
+   * @param key - The key.
+   * @param fingerprint - The fingerprint of the name, 0 if the name is not known.
+   * @param holders - The packed holders, not 0.
+   */
+  public void put(long key, long fingerprint, long holders) {
+    long hash = mix(key);
+    Segment segment = segments[(int) (hash >>> (64-SEGMENT_BITS))];
+    long stamp = segment.lock.writeLock();
+    try {
+      ByteBuffer table = segment.table;
+      int slot = slot(table,hash,key,fingerprint);
+      if (table.getLong(slot+16) == 0) {
+        if ((segment.size+1)*4L > capacity(table)*3L) {
+          table = grow(segment);
+          slot = slot(table,hash,key,fingerprint);
+        }
+        table.putLong(slot,key);
+        table.putLong(slot+8,fingerprint);
+        segment.size++;
+      }
+      table.putLong(slot+16,holders);
+    } finally {
+      segment.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes a file if its holders did not change.
+   * @param key - The key.
+   * @param fingerprint - The fingerprint of the name.
+   * @param holders - The packed holders expected, or 0 to remove whatever the holders.
+   * @return true if the file was removed.
+   */
+  public boolean remove(long key, long fingerprint, long holders) {
+    long hash = mix(key);
+    Segment segment = segments[(int) (hash >>> (64-SEGMENT_BITS))];
+    long stamp = segment.lock.writeLock();
+    try {
+      ByteBuffer table = segment.table;
+      int slot = slot(table,hash,key,fingerprint);
+      long current = table.getLong(slot+16);
+      if (current == 0 || (holders != 0 && current != holders)) {
+        return false;
+      }
+      delete(table,slot);
+      segment.size--;
+      return true;
+    } finally {
+      segment.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns every file of a key.
+   * @param key - The key.
+   * @return entries - The fingerprints and packed holders of the files, one after the other.
+   */
+  public long[] entries(long key) {
+    long hash = mix(key);
+    Segment segment = segments[(int) (hash >>> (64-SEGMENT_BITS))];
+    long stamp = segment.lock.readLock();
+    try {
+      ByteBuffer table = segment.table;
+      int mask = capacity(table)-1;
+      long found[] = new long[0];
+      for (int i = (int) hash & mask; ; i = (i+1) & mask) {
+        int slot = i*SLOT;
+        if (table.getLong(slot+16) == 0) {
+          return found;
+        }
+        if (table.getLong(slot) == key) {
+          found = Arrays.copyOf(found,found.length+2);
+          found[found.length-2] = table.getLong(slot+8);
+          found[found.length-1] = table.getLong(slot+16);
+        }
+      }
+    } finally {
+      segment.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Visits every entry. Each segment is locked while it is visited, so the visitor must not write to the map.
+   * @param visitor - The visitor.
+   */
+  public void forEach(Visitor visitor) {
+    for (Segment segment : segments) {
+      long stamp = segment.lock.readLock();
+      try {
+        ByteBuffer table = segment.table;
+        for (int slot = 0; slot < table.capacity(); slot += SLOT) {
+          long holders = table.getLong(slot+16);
+          if (holders != 0) {
+            visitor.visit(table.getLong(slot),table.getLong(slot+8),holders);
+          }
+        }
+      } finally {
+        segment.lock.unlockRead(stamp);
+      }
+    }
+  }
+
+  /**
+   * @return size - The number of entries.
+   */
+  public long size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.size;
+    }
+    return size;
+  }
+
+  /**
+   * @return bytes - The off-heap memory taken by the tables.
+   */
+  public long memory() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      bytes += segment.table.capacity();
+    }
+    return bytes;
+  }
+
+  /**
+   * Looks a file up in a table. The table may be changed by a writer meanwhile: the probe is bounded and
+   * the result is only used if the read is validated.
+   */
+  private static long find(ByteBuffer table, long hash, long key, long fingerprint) {
+    int capacity = capacity(table);
+    int mask = capacity-1;
+    int i = (int) hash & mask;
+    for (int n = 0; n < capacity; n++, i = (i+1) & mask) {
+      int slot = i*SLOT;
+      long holders = table.getLong(slot+16);
+      if (holders == 0) {
+        return 0;
+      }
+      if (table.getLong(slot) == key) {
+        long f = table.getLong(slot+8);
+        if (fingerprint == 0 || f == 0 || f == fingerprint) {
+          return holders;
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the slot of a file, or the empty slot where it would be put.
+   */
+  private static int slot(ByteBuffer table, long hash, long key, long fingerprint) {
+    int mask = capacity(table)-1;
+    for (int i = (int) hash & mask; ; i = (i+1) & mask) {
+      int slot = i*SLOT;
+      if (table.getLong(slot+16) == 0 || (table.getLong(slot) == key && table.getLong(slot+8) == fingerprint)) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Empties a slot, moving back the following entries of the probe sequence so that no lookup stops early.
+   */
+  private static void delete(ByteBuffer table, int slot) {
+    int mask = capacity(table)-1;
+    int hole = slot/SLOT;
+    for (int i = (hole+1) & mask; ; i = (i+1) & mask) {
+      int next = i*SLOT;
+      if (table.getLong(next+16) == 0) {
+        break;
+      }
+      int home = (int) mix(table.getLong(next)) & mask;
+      if (((i-home) & mask) >= ((i-hole) & mask)) {
+        table.putLong(hole*SLOT,table.getLong(next));
+        table.putLong(hole*SLOT+8,table.getLong(next+8));
+        table.putLong(hole*SLOT+16,table.getLong(next+16));
+        hole = i;
+      }
+    }
+    table.putLong(hole*SLOT+16,0);
+    table.putLong(hole*SLOT,0);
+    table.putLong(hole*SLOT+8,0);
+  }
+
+  /**
+   * Doubles the table of a segment, under its write lock.
+   */
+  private static ByteBuffer grow(Segment segment) {
+    ByteBuffer old = segment.table;
+    ByteBuffer table = allocate(capacity(old)*2);
+    int mask = capacity(table)-1;
+    for (int slot = 0; slot < old.capacity(); slot += SLOT) {
+      long holders = old.getLong(slot+16);
+      if (holders != 0) {
+        long key = old.getLong(slot);
+        int i = (int) mix(key) & mask;
+        while (table.getLong(i*SLOT+16) != 0) {
+          i = (i+1) & mask;
+        }
+        table.putLong(i*SLOT,key);
+        table.putLong(i*SLOT+8,old.getLong(slot+8));
+        table.putLong(i*SLOT+16,holders);
+      }
+    }
+    segment.table = table;
+    return table;
+  }
+
+  private static int capacity(ByteBuffer table) {
+    return table.capacity()/SLOT;
+  }
+
+  private static ByteBuffer allocate(int capacity) {
+    return ByteBuffer.allocateDirect(capacity*SLOT).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Spreads the bits of a key (the finalizer of MurmurHash3), so that sequential keys do not cluster.
+   * The top bits choose the segment and the low bits the slot.
+   */
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xFF51AFD7ED558CCDL;
+    key ^= key >>> 33;
+    key *= 0xC4CEB9FE1A85EC53L;
+    key ^= key >>> 33;
+    return key;
+  }
+}
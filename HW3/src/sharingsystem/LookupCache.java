@@ -0,0 +1,138 @@
+package sharingsystem;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the answers of the searches, so that a file looked up again is not searched on its server.
+ * The cache keeps the peers holding a file, by key and name, for a time to live. A file which was not found is cached too,
+ * for a shorter time, so that it can be found soon after it is registered.
+ * The cache holds a maximum number of files, the least recently used ones being evicted first.
+ * A file is removed from the cache when a download from the peers it gave failed, so that it is searched again.
+ */
+public class LookupCache {
+
+  /**
+   * The peers holding a file and the time they expire.
+   */
+  private static final class Lookup {
+    private final int peerId[];
+    private final long expires;
+
+    private Lookup(int peerId[], long expires) {
+      this.peerId = peerId;
+      this.expires = expires;
+    }
+  }
+
+  private final int capacity;
+  private final long ttl;
+  private final long negativeTtl;
+  /**
+   * The files, the least recently used first.
+   */
+  private final LinkedHashMap<String,Lookup> entries;
+  private long hits;
+  private long negativeHits;
+  private long misses;
+  private long evictions;
+  private long expirations;
+  private long invalidations;
+
+  /**
+   * Constructor of an empty cache.
+   * @param capacity - The maximum number of files. 0 disables the cache.
+   * @param ttl - The time a file found is kept, in milliseconds.
+   * @param negativeTtl - The time a file not found is kept, in milliseconds.
+   */
+  public LookupCache(final int capacity, long ttl, long negativeTtl) {
+    this.capacity = capacity;
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+    this.entries = new LinkedHashMap<String,Lookup>(16,0.75f,true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry<String,Lookup> eldest) {
+        if (size() <= capacity) {
+          return false;
+        }
+        evictions++;
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Returns the peers holding a file, if they are cached and did not expire.
+   * @param key - The key of the file.
+   * @param filename - The name of the file, or null.
+   * @return peerId - A copy of the peers as returned by Action.findPeerToDownload, the first one being 0 if the file
+   * was not found, or null if the file is not cached.
+   */
+  public synchronized int[] get(String key, String filename) {
+    if (capacity <= 0) {
+      return null;
+    }
+    String id = id(key,filename);
+    Lookup entry = entries.get(id);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (entry.expires <= System.currentTimeMillis()) {
+      entries.remove(id);
+      expirations++;
+      misses++;
+      return null;
+    }
+    if (entry.peerId[0] == 0) {
+      negativeHits++;
+    }
+    hits++;
+    return entry.peerId.clone();
+  }
+
+  /**
+   * Caches the peers holding a file.
+   * @param key - The key of the file.
+   * @param filename - The name of the file, or null.
+   * @param peerId - The peers as returned by Action.findPeerToDownload, the first one being 0 if the file was not found.
+   */
+  public synchronized void put(String key, String filename, int peerId[]) {
+    if (capacity <= 0) {
+      return;
+    }
+    long expires = System.currentTimeMillis()+(peerId[0] == 0 ? negativeTtl : ttl);
+    entries.put(id(key,filename),new Lookup(peerId.clone(),expires));
+  }
+
+  /**
+   * Removes a file from the cache, whatever the name it was searched with.
+   * @param key - The key of the file.
+   */
+  public synchronized void invalidate(String key) {
+    Iterator<String> i = entries.keySet().iterator();
+    while (i.hasNext()) {
+      String id = i.next();
+      if (id.startsWith(key) && (id.length() == key.length() || id.charAt(key.length()) == '/')) {
+        i.remove();
+        invalidations++;
+      }
+    }
+  }
+
+  /**
+   * @return report - The size of the cache and how often it answered.
+   */
+  public synchronized String report() {
+    long lookups = hits+misses;
+    return String.format("Lookup cache: %d files, %d hits (%d not found), %d misses, %.1f%% hit ratio, "
+        +"%d evicted, %d expired, %d invalidated.",entries.size(),hits,negativeHits,misses,
+        lookups == 0 ? 0 : hits*100.0/lookups,evictions,expirations,invalidations);
+  }
+
+  private static String id(String key, String filename) {
+    return filename == null ? key : key+"/"+filename;
+  }
+}
@@ -0,0 +1,194 @@
+package sharingsystem;
+
+public class Message {
+
+  /**
+   * The header of the message. One of the headers defined in Constant.
+   */
+  private final String header;
+  /**
+   * The key. Can be null.
+   */
+  private final String key;
+  /**
+   * The value. Can be null.
+   */
+  private final String value;
+  /**
+   * The number of bytes following the message, or -1 if none.
+   */
+  private final long length;
+  /**
+   * The position in a file of the bytes concerned by the message, or -1 if none.
+   */
+  private final long offset;
+  /**
+   * The name of the file concerned by the message. Can be null.
+   */
+  private final String name;
+  /**
+   * The key of the content of the file concerned by the message. Can be null.
+   */
+  private final String content;
+  /**
+   * The messages sent together in a batch. Null if the message is not a batch.
+   */
+  private final Message batch[];
+  /**
+   * The id of the request the message belongs to, or -1 if none.
+   */
+  private final long id;
+
+  /**
+   * Constructor of a message without data following it.
+   * @param header - The header.
+   * @param key - The key.
+   * @param value - The value.
+   */
+  public Message(String header, String key, String value) {
+    this(header,key,value,-1);
+  }
+
+  /**
+   * Constructor of a message announcing data.
+   * @param header - The header.
+   * @param key - The key.
+   * @param value - The value.
+   * @param length - The number of bytes following the message, or -1 if none.
+   */
+  public Message(String header, String key, String value, long length) {
+    this(header,key,value,-1,length);
+  }
+
+  /**
+   * Constructor of a message concerning a range of a file.
+   * @param header - The header.
+   * @param key - The key.
+   * @param value - The value.
+   * @param offset - The position of the range in the file, or -1 if none.
+   * @param length - The length of the range, or -1 if none.
+   */
+  public Message(String header, String key, String value, long offset, long length) {
+    this(header,key,value,offset,length,null,null,null,-1);
+  }
+
+  private Message(String header, String key, String value, long offset, long length, String name, String content,
+      Message batch[], long id) {
+    this.header = header;
+    this.key = key;
+    this.value = value;
+    this.offset = offset;
+    this.length = length;
+    this.name = name;
+    this.content = content;
+    this.batch = batch;
+    this.id = id;
+  }
+
+  /**
+   * Returns the same message concerning a file designed by its name.
+   * @param name - The name of the file. Can be null.
+   * @return message - The new message.
+   */
+  public Message withName(String name) {
+    return new Message(header,key,value,offset,length,name,content,batch,id);
+  }
+
+  /**
+   * Returns the same message concerning a file designed by the key of its content.
+   * @param content - The key of the content. Can be null.
+   * @return message - The new message.
+   */
+  public Message withContent(String content) {
+    return new Message(header,key,value,offset,length,name,content,batch,id);
+  }
+
+  /**
+   * Returns the same message carrying a batch of messages, handled by the receiver as if they were sent one by one.
+   * @param batch - The messages. Can be null.
+   * @return message - The new message.
+   */
+  public Message withBatch(Message batch[]) {
+    return new Message(header,key,value,offset,length,name,content,batch,id);
+  }
+
+  /**
+   * Returns the same message belonging to a request, so that several requests can be sent at once on a connection
+   * and answered in any order.
+   * @param id - The id of the request, or -1 if none.
+   * @return message - The new message.
+   */
+  public Message withId(long id) {
+    return new Message(header,key,value,offset,length,name,content,batch,id);
+  }
+
+  /**
+   * @return header - The header of the message.
+   */
+  public String getHeader() {
+    return header;
+  }
+
+  /**
+   * @return key - The key of the message. Can be null.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return value - The value of the message. Can be null.
+   */
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * @return length - The number of bytes following the message, or -1 if none.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * @return offset - The position in a file of the bytes concerned by the message, or -1 if none.
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return name - The name of the file concerned by the message. Can be null.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return content - The key of the content of the file concerned by the message. Can be null.
+   */
+  public String getContent() {
+    return content;
+  }
+
+  /**
+   * @return batch - The messages sent together in a batch. Null if the message is not a batch.
+   */
+  public Message[] getBatch() {
+    return batch;
+  }
+
+  /**
+   * @return id - The id of the request the message belongs to, or -1 if none.
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * @return true if the header is the success header.
+   */
+  public boolean isSuccess() {
+    return Constant.SUCCESS_HEADER.equals(header);
+  }
+}
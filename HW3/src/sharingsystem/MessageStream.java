@@ -0,0 +1,287 @@
+package sharingsystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A stream of messages over a socket. It is created once per socket and used for every message and file sent on it.
+ * The binary protocol and the legacy protocol, made of 1024-byte frames each written by a new ObjectOutputStream,
+ * are both supported so that old and new peers can talk to each other.
+ */
+public abstract class MessageStream {
+
+  /**
+   * The size of the buffers of the socket streams.
+   */
+  protected static final int BUFFER_SIZE = 64*1024;
+
+  /**
+   * The socket.
+   */
+  protected final Socket socket;
+  /**
+   * The buffered input stream of the socket.
+   */
+  protected final InputStream in;
+  /**
+   * The buffered output stream of the socket.
+   */
+  protected final OutputStream out;
+  /**
+   * The lock of the threads sharing the stream to write, so that a frame, or a frame and the file following it, is written
+   * at once. It is not a monitor: a virtual thread blocked on the socket while holding one would pin its carrier.
+   */
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  /**
+   * Constructor wrapping the streams of a socket.
+   * @param socket - The socket.
+   * @param in - The buffered input stream of the socket.
+   * @param out - The buffered output stream of the socket.
+   */
+  protected MessageStream(Socket socket, InputStream in, OutputStream out) {
+    this.socket = socket;
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * @return writeLock - The lock to hold while writing to a stream shared by several threads.
+   */
+  public ReentrantLock getWriteLock() {
+    return writeLock;
+  }
+
+  /**
+   * Sends a message.
+   * @param message - The message.
+   * @throws IOException - If the message could not be sent.
+   */
+  public abstract void send(Message message) throws IOException;
+
+  /**
+   * Waits for a message and returns it.
+   * @return message - The message received.
+   * @throws IOException - If no message could be received.
+   */
+  public abstract Message receive() throws IOException;
+
+  /**
+   * Sends the content of a file.
+   * @param file - The file to send.
+   * @throws IOException - If the file could not be read or sent.
+   */
+  public abstract void sendFile(File file) throws IOException;
+
+  /**
+   * Receives the content of a file sent by sendFile and writes it.
+   * @param file - The file to write.
+   * @throws IOException - If the file could not be received or written.
+   */
+  public abstract void receiveFile(File file) throws IOException;
+
+  /**
+   * Sends the content of a file held in memory, the way sendFile sends a file.
+   * @param content - The content, from its position to its limit.
+   * @throws IOException - If the content could not be sent.
+   */
+  public abstract void sendContent(ByteBuffer content) throws IOException;
+
+  /**
+   * Starts sending the content of a file the way sendFile sends it, the bytes being written by the caller.
+   * Closing the stream returned flushes it and leaves the connection open.
+   * @param length - The length of the file. Exactly that many bytes must be written.
+   * @return out - The stream to write the content to.
+   * @throws IOException - If the file could not be announced.
+   */
+  public abstract OutputStream sendFile(long length) throws IOException;
+
+  /**
+   * Returns the bytes of a file following a DAT# frame received, so that they can be read as they arrive.
+   * The stream returned ends after the length of the frame. Closing it leaves the connection open.
+   * @param data - The DAT# frame.
+   * @return in - The stream to read the content from.
+   * @throws IOException - If the frame announces no file, or if the protocol has no frames.
+   */
+  public abstract InputStream receiveStream(Message data) throws IOException;
+
+  /**
+   * Sends a range of a file, preceded by a DAT# frame giving the offset and the length of the range.
+   * The range is cut at the end of the file.
+   * @param file - The file.
+   * @param offset - The position of the range.
+   * @param length - The length of the range.
+   * @throws IOException - If the file could not be read or sent, or if the protocol has no ranges.
+   */
+  public abstract void sendRange(File file, long offset, long length) throws IOException;
+
+  /**
+   * Receives a range sent by sendRange and writes it at its position in a file.
+   * @param target - The file.
+   * @return length - The number of bytes written.
+   * @throws IOException - If the range could not be received or written, or if the protocol has no ranges.
+   */
+  public abstract long receiveRange(FileChannel target) throws IOException;
+
+  /**
+   * Sends a chunk of a file answering a request: a DAT# frame with the id of the request giving the offset and
+   * the length of the chunk, followed by its bytes. Chunks of several requests can be sent one after the other.
+   * @param source - The file.
+   * @param offset - The position of the chunk.
+   * @param length - The length of the chunk. The file must hold it.
+   * @param id - The id of the request.
+   * @throws IOException - If the file could not be read or sent, or if the protocol has no requests.
+   */
+  public abstract void sendChunk(FileChannel source, long offset, long length, long id) throws IOException;
+
+  /**
+   * Sends a chunk of a file held in memory answering a request, the way the chunks of a file are sent.
+   * @param content - The chunk, from its position to its limit.
+   * @param offset - The position of the chunk in the file.
+   * @param id - The id of the request.
+   * @throws IOException - If the chunk could not be sent, or if the protocol has no requests.
+   */
+  public abstract void sendChunk(ByteBuffer content, long offset, long id) throws IOException;
+
+  /**
+   * Receives the bytes following a DAT# frame already received and writes them at their position in a file.
+   * @param data - The DAT# frame.
+   * @param target - The file, or null to skip the bytes.
+   * @throws IOException - If the bytes could not be received or written, or if the protocol has no requests.
+   */
+  public abstract void receiveChunk(Message data, FileChannel target) throws IOException;
+
+  /**
+   * @return protocol - The name of the protocol used by the stream.
+   */
+  public abstract String getProtocol();
+
+  /**
+   * @return socket - The socket of the stream.
+   */
+  public Socket getSocket() {
+    return socket;
+  }
+
+  /**
+   * Closes the socket.
+   */
+  public void close() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      ;
+    }
+  }
+
+  /**
+   * @return closed - True once the stream was closed.
+   */
+  public boolean isClosed() {
+    return socket.isClosed();
+  }
+
+  /**
+   * Connects to a server and opens a stream with the protocol given.
+   * In auto mode the binary protocol is tried first, and the legacy protocol is used if the server does not answer it.
+   * A binary stream asks the server to compress the files if the configuration file enables it.
+   * The handshake must be answered within CONNECT_TIMEOUT, so that a server which leaves the connection in its backlog
+   * without accepting it, having reached its maxConnections, is given up. Such a server is not tried in legacy mode.
+   * @param address - The address of the server.
+   * @param port - The port of the server.
+   * @param protocol - The protocol. One of the PROTOCOL constants.
+   * @return stream - The stream.
+   * @throws IOException - If the connection could not be made.
+   */
+  public static MessageStream connect(InetAddress address, int port, String protocol) throws IOException {
+    if (Constant.PROTOCOL_LEGACY.equals(protocol)) {
+      return legacy(open(address,port));
+    }
+    Socket socket = open(address,port);
+    try {
+      BinaryMessageStream stream = BinaryMessageStream.handshake(socket,buffer(socket.getInputStream()),
+          new BufferedOutputStream(socket.getOutputStream(),BUFFER_SIZE));
+      if (ConfigurationFile.isCompression()) {
+        stream.negotiateCompression();
+      }
+      socket.setSoTimeout(0);
+      return stream;
+    } catch (SocketTimeoutException e) {
+      socket.close();
+      throw e;
+    } catch (IOException e) {
+      socket.close();
+      if (Constant.PROTOCOL_BINARY.equals(protocol)) {
+        throw e;
+      }
+    }
+    return legacy(open(address,port));
+  }
+
+  /**
+   * Opens a socket backed by a channel, so that files can be transferred without copying them through the heap.
+   * Such a socket is read and written by two threads at once by a Multiplexer, and by a Connection answering requests,
+   * which needs Java 13 or later: before, the streams of the socket of a channel wait on one lock.
+   * A server which does not complete the connection within CONNECT_TIMEOUT is given up. The reads time out after
+   * CONNECT_TIMEOUT as well, until the handshake is done.
+   * @param address - The address of the server.
+   * @param port - The port of the server.
+   * @return socket - The socket.
+   * @throws IOException - If the connection could not be made.
+   */
+  private static Socket open(InetAddress address, int port) throws IOException {
+    Socket socket = SocketChannel.open().socket();
+    try {
+      socket.connect(new InetSocketAddress(address,port),Constant.CONNECT_TIMEOUT);
+      socket.setSoTimeout(Constant.CONNECT_TIMEOUT);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    return socket;
+  }
+
+  /**
+   * Opens a stream on a socket accepted by a server.
+   * The protocol is found from the first byte sent by the client.
+   * @param socket - The socket.
+   * @return stream - The stream.
+   * @throws IOException - If the client sent nothing or an unknown protocol.
+   */
+  public static MessageStream accept(Socket socket) throws IOException {
+    InputStream in = buffer(socket.getInputStream());
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream(),BUFFER_SIZE);
+    in.mark(1);
+    int first = in.read();
+    in.reset();
+    if (first == FrameCodec.MAGIC[0]) {
+      return BinaryMessageStream.handshake(socket,in,out);
+    }
+    else if (first == LegacyMessageStream.FIRST_BYTE) {
+      return new LegacyMessageStream(socket,in,out);
+    }
+    throw new IOException("Unknown protocol.");
+  }
+
+  private static MessageStream legacy(Socket socket) throws IOException {
+    socket.setSoTimeout(0);
+    return new LegacyMessageStream(socket,buffer(socket.getInputStream()),
+        new BufferedOutputStream(socket.getOutputStream(),BUFFER_SIZE));
+  }
+
+  private static InputStream buffer(InputStream in) {
+    return new BufferedInputStream(in,BUFFER_SIZE);
+  }
+}
@@ -0,0 +1,156 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the latency of searches sent to a node while it sends large files to the same peer.
+ * A server is started as client 1 of the configuration file and a file is written in its shared directory.
+ * The file is downloaded several times while a thread keeps searching keys, first on one message stream answering in order,
+ * the search waiting for the download in progress, then through a multiplexer, the downloads running at once.
+ * Usage: MultiplexTest mode size downloads
+ */
+public class MultiplexTest {
+
+  /**
+   * The number of keys registered before the test.
+   */
+  private static final int KEYS = 1000;
+  private static final String FILENAME = "multiplex.bin";
+
+  public static void main(String args[]) throws Exception {
+    if(args.length < 3) {
+      System.out.println("Usage: MultiplexTest <blocking|virtual|nio> <file size in MB> <downloads>");
+      return;
+    }
+    String mode = args[0];
+    long size = Long.parseLong(args[1])*1024*1024;
+    final int downloads = Integer.parseInt(args[2]);
+    InetAddress address = InetAddress.getByName(ConfigurationFile.getClientIp()[0]);
+    int port = ConfigurationFile.getClientPort()[0];
+
+    new File(ConfigurationFile.getShareDirectory()).mkdirs();
+    new File(ConfigurationFile.getDownloadDirectory()).mkdirs();
+    RandomAccessFile shared = new RandomAccessFile(ConfigurationFile.getShareDirectory()+"/"+FILENAME,"rw");
+    shared.setLength(size);
+    shared.close();
+
+    Server server = new Server(1,mode);
+    Thread serverThread = new Thread(server);
+    serverThread.setDaemon(true);
+    serverThread.start();
+    Thread.sleep(500);
+
+    final MessageStream stream = MessageStream.connect(address,port,Constant.PROTOCOL_BINARY);
+    for(int i=0;i<KEYS;i++) {
+      stream.send(new Message(Constant.REGISTER_HEADER,Key.format(i),"1"));
+      stream.receive();
+    }
+
+    final File target = new File(ConfigurationFile.getDownloadDirectory()+"/"+FILENAME);
+    run("In order",downloads,new Client() {
+      public void download() throws IOException {
+        synchronized(stream) {
+          stream.send(new Message(Constant.DOWNLOAD_HEADER,Key.format(Key.of(FILENAME)),FILENAME));
+          stream.receiveFile(target);
+        }
+      }
+      public void search(long key) throws IOException {
+        synchronized(stream) {
+          stream.send(new Message(Constant.SEARCH_HEADER,Key.format(key),""));
+          stream.receive();
+        }
+      }
+    });
+
+    final Multiplexer multiplexer = Multiplexer.open(MessageStream.connect(address,port,Constant.PROTOCOL_BINARY));
+    run("Multiplexed",downloads,new Client() {
+      public void download() throws IOException {
+        File part = File.createTempFile("multiplex",".bin",target.getParentFile());
+        try {
+          FileChannel file = FileChannel.open(part.toPath(),StandardOpenOption.WRITE);
+          try {
+            multiplexer.download(new Message(Constant.DOWNLOAD_HEADER,Key.format(Key.of(FILENAME)),FILENAME),file);
+          }
+          finally {
+            file.close();
+          }
+        }
+        finally {
+          part.delete();
+        }
+      }
+      public void search(long key) throws IOException {
+        multiplexer.request(new Message(Constant.SEARCH_HEADER,Key.format(key),""));
+      }
+    });
+    multiplexer.close();
+    stream.close();
+    server.shutdown();
+  }
+
+  /**
+   * The requests of a test.
+   */
+  private interface Client {
+    void download() throws IOException;
+    void search(long key) throws IOException;
+  }
+
+  /**
+   * Downloads the file on a thread per download while the current thread searches keys, and prints the latencies.
+   * @param name - The name of the test.
+   * @param downloads - The number of downloads.
+   * @param client - The requests.
+   * @throws Exception - If a request failed.
+   */
+  private static void run(String name, int downloads, final Client client) throws Exception {
+    final AtomicInteger running = new AtomicInteger(downloads);
+    Thread threads[] = new Thread[downloads];
+    long start = System.nanoTime();
+    for(int t=0;t<downloads;t++) {
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            client.download();
+          } catch (IOException e) {
+            System.out.println("A download failed: "+e.getMessage());
+          }
+          running.decrementAndGet();
+        }
+      });
+      threads[t].start();
+    }
+    long latencies[] = new long[1024];
+    int searches = 0;
+    while(running.get() > 0) {
+      long begin = System.nanoTime();
+      client.search(searches%KEYS);
+      if(searches == latencies.length) {
+        latencies = Arrays.copyOf(latencies,searches*2);
+      }
+      latencies[searches++] = System.nanoTime()-begin;
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime()-start;
+    Arrays.sort(latencies,0,searches);
+    System.out.println(String.format("%s: %d downloads in %d ms, %d searches meanwhile, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms.",
+        name,downloads,elapsed/1000000,searches,percentile(latencies,searches,0.5),percentile(latencies,searches,0.99),
+        percentile(latencies,searches,1)));
+  }
+
+  private static double percentile(long latencies[], int count, double rank) {
+    if(count == 0) {
+      return 0;
+    }
+    return latencies[(int) Math.min(count-1,Math.floor(count*rank))]/1e6;
+  }
+}
@@ -0,0 +1,173 @@
+package sharingsystem;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends requests to a server over one connection of the binary protocol, without waiting for the answers of the
+ * requests sent before. Each request has an id carried by its answer, so that answers can come back in any order.
+ * A thread reads the answers and hands each one to its request, writing the chunks of a file asked by a request
+ * straight to its file. Any number of threads can send requests at once.
+ */
+public class Multiplexer implements Runnable {
+
+  /**
+   * A request waiting for its answer, with the file receiving its chunks if it asks for a file.
+   */
+  private static final class Request {
+    private final CompletableFuture<Message> answer = new CompletableFuture<Message>();
+    private final FileChannel target;
+
+    private Request(FileChannel target) {
+      this.target = target;
+    }
+  }
+
+  /**
+   * The stream of the connection.
+   */
+  private final MessageStream stream;
+  /**
+   * The requests waiting for their answer, by id.
+   */
+  private final Map<Long,Request> requests = new ConcurrentHashMap<Long,Request>();
+  /**
+   * The id of the next request.
+   */
+  private final AtomicLong nextId = new AtomicLong();
+  /**
+   * The error which ended the connection, or null while it is open.
+   */
+  private volatile IOException failure;
+
+  private Multiplexer(MessageStream stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * Starts reading the answers of a connection. The stream must not be used by anything else afterwards.
+   * @param stream - The stream of the connection.
+   * @return multiplexer - The multiplexer of the connection.
+   * @throws IOException - If the stream does not use the binary protocol.
+   */
+  public static Multiplexer open(MessageStream stream) throws IOException {
+    if (!stream.getProtocol().equals(Constant.PROTOCOL_BINARY)) {
+      throw new IOException("Requests need the binary protocol.");
+    }
+    Multiplexer multiplexer = new Multiplexer(stream);
+    Thread thread = new Thread(multiplexer,"multiplexer");
+    thread.setDaemon(true);
+    thread.start();
+    return multiplexer;
+  }
+
+  /**
+   * Sends a request and waits for its answer.
+   * @param message - The request.
+   * @return answer - The answer of the server.
+   * @throws IOException - If the connection failed.
+   */
+  public Message request(Message message) throws IOException {
+    return await(send(message,null));
+  }
+
+  /**
+   * Sends a request for a file or a part of a file, DOW#, DLR# or RNG#, and waits until it is received.
+   * The chunks are written at their position in the target.
+   * @param message - The request.
+   * @param target - The file receiving the chunks.
+   * @return length - The number of bytes received.
+   * @throws IOException - If the server does not have the file or the connection failed.
+   */
+  public long download(Message message, FileChannel target) throws IOException {
+    Message answer = await(send(message,target));
+    if (!answer.isSuccess()) {
+      throw new IOException("The file could not be downloaded.");
+    }
+    return answer.getLength();
+  }
+
+  /**
+   * @return open - False once the connection failed. Requests are then answered by an exception.
+   */
+  public boolean isOpen() {
+    return failure == null;
+  }
+
+  /**
+   * Closes the connection. The requests waiting for their answer fail.
+   */
+  public void close() {
+    stream.close();
+  }
+
+  /**
+   * Reads the answers until the connection fails.
+   */
+  public void run() {
+    try {
+      while (true) {
+        Message message = stream.receive();
+        Request request = requests.get(message.getId());
+        if (message.getHeader().equals(Constant.DATA_HEADER)) {
+          stream.receiveChunk(message,request == null ? null : request.target);
+        }
+        else if (request != null) {
+          requests.remove(message.getId());
+          request.answer.complete(message);
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+      stream.close();
+      for (Request request : requests.values()) {
+        request.answer.completeExceptionally(e);
+      }
+      requests.clear();
+    }
+  }
+
+  /**
+   * Sends a request with a new id.
+   * @param message - The request.
+   * @param target - The file receiving the chunks, or null.
+   * @return request - The request waiting for its answer.
+   * @throws IOException - If the connection failed.
+   */
+  private Request send(Message message, FileChannel target) throws IOException {
+    long id = nextId.getAndIncrement();
+    Request request = new Request(target);
+    requests.put(id,request);
+    try {
+      if (failure != null) {
+        throw failure;
+      }
+      stream.getWriteLock().lock();
+      try {
+        stream.send(message.withId(id));
+      } finally {
+        stream.getWriteLock().unlock();
+      }
+    } catch (IOException e) {
+      requests.remove(id);
+      throw e;
+    }
+    return request;
+  }
+
+  private static Message await(Request request) throws IOException {
+    try {
+      return request.answer.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for an answer.");
+    }
+  }
+}
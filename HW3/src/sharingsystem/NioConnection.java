@@ -0,0 +1,802 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * The state of a connection handled by the NioServer. It does what Connection does for the blocking server,
+ * without ever blocking: data is read into a buffer and frames are handled once complete,
+ * answers are queued in another buffer and written when the channel is ready.
+ * The files asked by requests are sent in chunks, one chunk of each in turn, and the other requests are answered
+ * between two chunks. The work which could block the selector, such as a registration logged to the disk, a file read
+ * into the FileCache or the checksums of a file, is deferred to a worker. Only the files already cached are sent at once.
+ */
+public class NioConnection {
+
+  /**
+   * The initial size of the buffers.
+   */
+  private static final int BUFFER_SIZE = 64*1024;
+
+  /**
+   * The states of the connection.
+   * HANDSHAKE - Waiting for the magic bytes of the protocol.
+   * FRAME - Waiting for a request.
+   * AWAIT_DATA - Waiting for the DAT# frame announcing a replicated file.
+   * RECEIVE_FILE - Writing the bytes of a replicated file.
+   */
+  private static final int HANDSHAKE = 0;
+  private static final int FRAME = 1;
+  private static final int AWAIT_DATA = 2;
+  private static final int RECEIVE_FILE = 3;
+
+  /**
+   * A file sent in chunks to answer a request, from the disk or from the FileCache.
+   */
+  private static final class Transfer {
+    private final long id;
+    private final FileChannel file;
+    private final ByteBuffer content;
+    private final long length;
+    private long position;
+    private long remaining;
+
+    private Transfer(long id, FileChannel file, ByteBuffer content, long position, long length) {
+      this.id = id;
+      this.file = file;
+      this.content = content;
+      this.length = length;
+      this.position = position;
+      this.remaining = length;
+    }
+  }
+
+  /**
+   * A part of a request which could block the selector, done by a worker. The request is answered from the event loop
+   * once it is done, and the requests after it wait for it so that the answers keep their order.
+   */
+  private abstract class Deferred implements Runnable {
+    /**
+     * The id of the request, or -1.
+     */
+    private final long id = request;
+    /**
+     * The exception thrown by the work, or null if it succeeded.
+     */
+    protected Exception failure;
+
+    /**
+     * Does the work, on a worker.
+     * @throws IOException - If the work failed.
+     */
+    abstract void work() throws IOException;
+
+    /**
+     * Answers the request, on the event loop.
+     * @throws IOException - If the answer could not be encoded.
+     */
+    abstract void answer() throws IOException;
+
+    private void perform() {
+      try {
+        work();
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+
+    public void run() {
+      perform();
+      loop.execute(new Runnable() {
+        public void run() {
+          resume(Deferred.this);
+        }
+      });
+    }
+  }
+
+  /**
+   * The channel of the connection.
+   */
+  private final SocketChannel channel;
+  /**
+   * The key of the channel in the selector.
+   */
+  private final SelectionKey key;
+  /**
+   * The index containing the keys and values.
+   */
+  private final Index index;
+  /**
+   * The workers doing the deferred work, and the event loop of the connection.
+   */
+  private final Executor workers;
+  private final Executor loop;
+  /**
+   * The request being done by a worker, or null.
+   */
+  private Deferred deferred;
+  /**
+   * The codec encoding the answers.
+   */
+  private final FrameCodec codec = new FrameCodec();
+  /**
+   * The bytes read and not handled yet. Always kept ready to be filled.
+   */
+  private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+  /**
+   * The bytes queued and not written yet. Always kept ready to be filled.
+   */
+  private ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+  /**
+   * The state of the connection.
+   */
+  private int state = HANDSHAKE;
+  /**
+   * The name of the replicated file expected.
+   */
+  private String replicaFilename;
+  /**
+   * The key of the content of the replicated file, or null if it is stored under its name only.
+   */
+  private String replicaContent;
+  /**
+   * True if the replicated file was sent along a ReplicaChain, which waits for the replicas which stored it.
+   * The file is not forwarded, as that would block the selector: the sender replicates it again to the replicas left.
+   */
+  private boolean replicaChain;
+  /**
+   * The replicated file being written, and the number of bytes left to write.
+   */
+  private FileChannel replica;
+  private long replicaRemaining;
+  /**
+   * The file being sent, the position of the next byte to send and the number of bytes left to send.
+   */
+  private FileChannel upload;
+  private long uploadPosition;
+  private long uploadRemaining;
+  /**
+   * The content being sent from the FileCache, or the chunk of it, instead of a file.
+   */
+  private ByteBuffer uploadContent;
+  /**
+   * The files sent in chunks, and the one whose chunk is being sent, or null if the file sent is not in chunks.
+   */
+  private final ArrayDeque<Transfer> transfers = new ArrayDeque<Transfer>();
+  private Transfer chunk;
+  /**
+   * The id of the request handled, or -1 for a message answered in order.
+   */
+  private long request = -1;
+
+  /**
+   * Constructor of a new connection.
+   * @param channel - The channel, in non-blocking mode.
+   * @param key - The key of the channel in the selector.
+   * @param index - The index containing the keys and values.
+   * @param workers - The workers doing the work which could block the selector.
+   * @param loop - The event loop of the connection, running the answers of the workers.
+   */
+  public NioConnection(SocketChannel channel, SelectionKey key, Index index, Executor workers, Executor loop) {
+    this.channel = channel;
+    this.key = key;
+    this.index = index;
+    this.workers = workers;
+    this.loop = loop;
+  }
+
+  /**
+   * Reads what the channel has and handles the complete requests.
+   * @throws IOException - If the channel was closed or the client sent something wrong.
+   */
+  public void read() throws IOException {
+    if (channel.read(input) < 0) {
+      close();
+      return;
+    }
+    process();
+    updateInterest();
+  }
+
+  /**
+   * Writes the queued answers, then the file being sent, then handles the requests left waiting for them.
+   * Once everything is written, the next chunk of the files asked by requests is sent.
+   * @throws IOException - If the channel was closed.
+   */
+  public void write() throws IOException {
+    output.flip();
+    channel.write(output);
+    output.compact();
+    if (output.position() == 0 && !isUploading() && !transfers.isEmpty()) {
+      nextChunk();
+      output.flip();
+      channel.write(output);
+      output.compact();
+    }
+    if (output.position() == 0 && uploadContent != null) {
+      channel.write(uploadContent);
+      if (!uploadContent.hasRemaining()) {
+        endUpload();
+        process();
+      }
+    }
+    else if (output.position() == 0 && upload != null) {
+      if (uploadRemaining > 0) {
+        long written = upload.transferTo(uploadPosition,uploadRemaining,channel);
+        if (written == 0 && uploadPosition >= upload.size()) {
+          throw new IOException("The file was truncated while it was sent.");
+        }
+        uploadPosition += written;
+        uploadRemaining -= written;
+      }
+      if (uploadRemaining <= 0) {
+        endUpload();
+        process();
+      }
+    }
+    updateInterest();
+  }
+
+  /**
+   * Closes the channel and the files in use.
+   */
+  public void close() {
+    key.cancel();
+    try {
+      channel.close();
+      if (upload != null) {
+        upload.close();
+      }
+      if (replica != null) {
+        replica.close();
+      }
+      for (Transfer transfer : transfers) {
+        if (transfer.file != null) {
+          transfer.file.close();
+        }
+      }
+    } catch (IOException e) {
+      ;
+    }
+  }
+
+  /**
+   * Handles the bytes read as long as they hold complete requests.
+   * Requests are not handled while a file or a chunk is being sent, or a request is deferred, so that answers keep their
+   * order.
+   * @throws IOException - If the client sent something wrong.
+   */
+  private void process() throws IOException {
+    input.flip();
+    try {
+      while (!isUploading() && deferred == null && input.hasRemaining()) {
+        if (state == HANDSHAKE) {
+          if (input.remaining() < FrameCodec.MAGIC.length) {
+            break;
+          }
+          for (int i = 0; i < FrameCodec.MAGIC.length; i++) {
+            if (input.get() != FrameCodec.MAGIC[i]) {
+              throw new IOException("Unsupported protocol.");
+            }
+          }
+          queue(FrameCodec.MAGIC,0,FrameCodec.MAGIC.length);
+          state = FRAME;
+        }
+        else if (state == RECEIVE_FILE) {
+          ByteBuffer data = input.duplicate();
+          data.limit(data.position() + (int) Math.min(data.remaining(),replicaRemaining));
+          int written = replica.write(data);
+          input.position(input.position()+written);
+          replicaRemaining -= written;
+          if (replicaRemaining == 0) {
+            closeReplica();
+          }
+        }
+        else {
+          int start = input.position();
+          long length = FrameCodec.readVarint(input);
+          if (length < 0 || input.remaining() < length) {
+            if (length > FrameCodec.MAX_FRAME) {
+              throw new IOException("Frame too long.");
+            }
+            input.position(start);
+            if (length > input.capacity()-10) {
+              ByteBuffer grown = ByteBuffer.allocate((int) length+10);
+              grown.put(input);
+              grown.flip();
+              input = grown;
+            }
+            break;
+          }
+          ByteBuffer frame = input.duplicate();
+          frame.limit(input.position()+(int) length);
+          input.position(input.position()+(int) length);
+          handle(FrameCodec.decode(frame));
+        }
+      }
+    }
+    finally {
+      input.compact();
+    }
+  }
+
+  /**
+   * Handles a request the way Connection.run() does.
+   * @param message - The request.
+   * @throws IOException - If a file could not be opened.
+   */
+  private void handle(Message message) throws IOException {
+    String header = message.getHeader();
+    request = message.getId();
+    if (state == AWAIT_DATA) {
+      state = FRAME;
+      if (header.equals(Constant.DATA_HEADER) && message.getLength() >= 0) {
+        File file;
+        if (replicaContent != null) {
+          file = Connection.getContentFile(replicaContent);
+          file.getParentFile().mkdirs();
+        }
+        else {
+          file = new File(ConfigurationFile.getReplicaDirectory()+"/"+replicaFilename);
+        }
+        replica = new FileOutputStream(file).getChannel();
+        replicaRemaining = message.getLength();
+        state = RECEIVE_FILE;
+        if (replicaRemaining == 0) {
+          closeReplica();
+        }
+      }
+    }
+    else if (header.equals(Constant.REGISTER_HEADER)) {
+      if (message.getKey() == null || message.getValue() == null) {
+        returnError();
+      }
+      else {
+        final Message registration = message;
+        submit(new Deferred() {
+          void work() throws IOException {
+            index.put(Key.parse(registration.getKey()),registration.getName(),registration.getValue());
+          }
+
+          void answer() throws IOException {
+            if (failure instanceof IOException) {
+              System.out.println("A registration could not be written to the index log.");
+            }
+            if (failure != null) {
+              returnError();
+            }
+            else {
+              returnSuccess(registration.getValue());
+            }
+          }
+        },index.getLog() != null);
+      }
+    }
+    else if (header.equals(Constant.BATCH_HEADER) && message.getBatch() != null) {
+      final Message batch[] = message.getBatch();
+      submit(new Deferred() {
+        private int registered;
+
+        void work() throws IOException {
+          registered = Connection.putBatch(index,batch);
+        }
+
+        void answer() throws IOException {
+          if (failure instanceof IOException) {
+            System.out.println("A registration could not be written to the index log.");
+          }
+          if (failure != null) {
+            returnError();
+          }
+          else {
+            returnSuccess(""+registered);
+          }
+        }
+      },index.getLog() != null);
+    }
+    else if (header.equals(Constant.UNREGISTER_HEADER)) {
+      final Message removal = message;
+      submit(new Deferred() {
+        private boolean removed;
+
+        void work() throws IOException {
+          removed = removal.getKey() != null && removal.getValue() != null
+              && index.remove(Key.parse(removal.getKey()),removal.getName(),Integer.parseInt(removal.getValue()));
+        }
+
+        void answer() throws IOException {
+          if (failure instanceof IOException) {
+            System.out.println("A removal could not be written to the index log.");
+          }
+          if (removed && failure == null) {
+            returnSuccess("Success");
+          }
+          else {
+            returnError();
+          }
+        }
+      },index.getLog() != null);
+    }
+    else if (header.equals(Constant.SEARCH_HEADER)) {
+      String value = null;
+      try {
+        value = message.getKey() == null ? null : index.get(Key.parse(message.getKey()),message.getName());
+      } catch (NumberFormatException e) {
+        ;
+      }
+      if (value != null) {
+        returnSuccess(value);
+      }
+      else {
+        returnError();
+      }
+    }
+    else if (header.equals(Constant.DOWNLOAD_HEADER) || header.equals(Constant.DOWNLOAD_REPLICA_HEADER)) {
+      final File file = Connection.getSharedFile(message.getValue(),header);
+      ByteBuffer content = FileCache.get().hit(file);
+      if (content != null) {
+        download(file,content);
+        return;
+      }
+      submit(new Deferred() {
+        private ByteBuffer loaded;
+
+        void work() throws IOException {
+          loaded = FileCache.get().get(file);
+        }
+
+        void answer() throws IOException {
+          download(file,loaded);
+        }
+      },FileCache.get().isEnabled());
+    }
+    else if (header.equals(Constant.RANGE_HEADER)) {
+      final File file = message.getValue() == null ? null : Connection.getRangeFile(message.getValue());
+      final long offset = message.getOffset();
+      final long length = message.getLength();
+      ByteBuffer content;
+      if (file == null) {
+        returnError();
+      }
+      else if (length < 0) {
+        send(new Message(Constant.SUCCESS_HEADER,"nokey",null,file.length()));
+      }
+      else if ((content = FileCache.get().hit(file)) != null) {
+        range(file,content,offset,length);
+      }
+      else {
+        submit(new Deferred() {
+          private ByteBuffer loaded;
+
+          void work() throws IOException {
+            loaded = FileCache.get().get(file);
+          }
+
+          void answer() throws IOException {
+            range(file,loaded,offset,length);
+          }
+        },FileCache.get().isEnabled());
+      }
+    }
+    else if (header.equals(Constant.CHECKSUM_HEADER)) {
+      final String filename = message.getValue();
+      submit(new Deferred() {
+        private Checksums checksums;
+
+        void work() throws IOException {
+          checksums = filename == null ? null : Checksums.lookup(filename);
+        }
+
+        void answer() throws IOException {
+          if (checksums == null) {
+            returnError();
+          }
+          else {
+            send(new Message(Constant.SUCCESS_HEADER,"nokey",checksums.encode(),checksums.getLength()));
+          }
+        }
+      },filename != null);
+    }
+    else if (header.equals(Constant.REPLICATE_HEADER) && request < 0) {
+      replicaChain = message.getName() != null;
+      replicaFilename = replicaChain ? message.getName() : message.getValue();
+      replicaContent = message.getContent();
+      final String filename = replicaFilename;
+      final String content = replicaContent;
+      final File stored = content == null ? null : Connection.getContentFile(content);
+      submit(new Deferred() {
+        private boolean kept;
+
+        void work() throws IOException {
+          kept = stored != null && stored.isFile() && Connection.storeReplica(filename,content,null);
+        }
+
+        void answer() throws IOException {
+          if (kept && failure == null) {
+            send(new Message(Constant.SUCCESS_HEADER,"nokey","Stored",stored.length()));
+            if (replicaChain) {
+              returnSuccess("1");
+            }
+          }
+          else {
+            state = AWAIT_DATA;
+            returnSuccess("Success");
+          }
+        }
+      },stored != null);
+    }
+    else {
+      returnError();
+    }
+  }
+
+  /**
+   * Sends a whole file to answer the request handled.
+   * @param file - The file.
+   * @param content - The content of the file from the FileCache, or null if it is read from the disk.
+   * @throws IOException - If the answer could not be encoded.
+   */
+  private void download(File file, ByteBuffer content) throws IOException {
+    if (content != null) {
+      if (request >= 0) {
+        transfer(null,content,0,content.remaining());
+        return;
+      }
+      uploadContent = content;
+      send(new Message(Constant.DATA_HEADER,null,null,content.remaining()));
+      return;
+    }
+    FileChannel channel;
+    try {
+      channel = new FileInputStream(file).getChannel();
+    } catch (IOException e) {
+      System.out.println("An error occurred trying to share a file.");
+      returnError();
+      return;
+    }
+    if (request >= 0) {
+      transfer(channel,null,0,channel.size());
+      return;
+    }
+    upload = channel;
+    uploadPosition = 0;
+    uploadRemaining = upload.size();
+    send(new Message(Constant.DATA_HEADER,null,null,uploadRemaining));
+  }
+
+  /**
+   * Sends a range of a file to answer the request handled.
+   * @param file - The file.
+   * @param content - The content of the file from the FileCache, or null if it is read from the disk.
+   * @param offset - The position of the range asked.
+   * @param length - The length of the range asked, cut to the end of the file.
+   * @throws IOException - If the file could not be opened or the answer encoded.
+   */
+  private void range(File file, ByteBuffer content, long offset, long length) throws IOException {
+    if (content != null) {
+      int start = (int) Math.min(Math.max(offset,0),content.limit());
+      int count = (int) Math.min(content.limit()-start,length);
+      if (request >= 0) {
+        transfer(null,content,start,count);
+        return;
+      }
+      uploadContent = content;
+      uploadContent.position(start);
+      uploadContent.limit(start+count);
+      send(new Message(Constant.DATA_HEADER,null,null,start,count));
+      return;
+    }
+    FileChannel channel = new FileInputStream(file).getChannel();
+    long start = Math.max(offset,0);
+    long count = Math.max(0,Math.min(length,channel.size()-start));
+    if (request >= 0) {
+      transfer(channel,null,start,count);
+      return;
+    }
+    upload = channel;
+    uploadPosition = start;
+    uploadRemaining = count;
+    send(new Message(Constant.DATA_HEADER,null,null,uploadPosition,uploadRemaining));
+  }
+
+  /**
+   * Does the part of the request handled which could block, and answers it.
+   * @param work - The part of the request.
+   * @param blocking - True if it could block the selector. It is then given to a worker and the request is answered once
+   * it is done. Otherwise it is done and answered at once.
+   * @throws IOException - If the answer could not be encoded.
+   */
+  private void submit(Deferred work, boolean blocking) throws IOException {
+    if (!blocking) {
+      work.perform();
+      work.answer();
+      return;
+    }
+    deferred = work;
+    workers.execute(work);
+  }
+
+  /**
+   * Answers a request deferred to a worker, then handles the requests which waited for it.
+   * Nothing is answered if the connection was closed meanwhile.
+   * @param work - The part of the request done by the worker.
+   */
+  private void resume(Deferred work) {
+    if (!channel.isOpen()) {
+      return;
+    }
+    deferred = null;
+    request = work.id;
+    try {
+      work.answer();
+      process();
+      updateInterest();
+    } catch (IOException e) {
+      close();
+    } catch (RuntimeException e) {
+      System.out.println("A connection of the server failed. "+e);
+      close();
+    }
+  }
+
+  /**
+   * Queues a part of a file to be sent in chunks to answer the request handled.
+   * @param file - The file, closed once sent, or null if the content is sent.
+   * @param content - The content of the file from the FileCache, or null if the file is sent.
+   * @param offset - The position of the part.
+   * @param length - The length of the part, which the file must hold.
+   * @throws IOException - If the file could not be closed.
+   */
+  private void transfer(FileChannel file, ByteBuffer content, long offset, long length) throws IOException {
+    if (length == 0) {
+      if (file != null) {
+        file.close();
+      }
+      send(new Message(Constant.SUCCESS_HEADER,"nokey",null,0));
+      return;
+    }
+    transfers.add(new Transfer(request,file,content,offset,length));
+  }
+
+  /**
+   * Queues the DAT# frame of the next chunk and starts sending it. The file it belongs to goes back at the end of the queue
+   * if more chunks are left, so that the files are sent in turn.
+   * @throws IOException - If the frame could not be encoded.
+   */
+  private void nextChunk() throws IOException {
+    chunk = transfers.poll();
+    long count = Math.min(Constant.CHUNK_SIZE,chunk.remaining);
+    send(new Message(Constant.DATA_HEADER,null,null,chunk.position,count).withId(chunk.id));
+    if (chunk.content != null) {
+      uploadContent = chunk.content.duplicate();
+      uploadContent.position((int) chunk.position);
+      uploadContent.limit((int) (chunk.position+count));
+    }
+    else {
+      upload = chunk.file;
+      uploadPosition = chunk.position;
+      uploadRemaining = count;
+    }
+    chunk.position += count;
+    chunk.remaining -= count;
+    if (chunk.remaining > 0) {
+      transfers.add(chunk);
+    }
+  }
+
+  /**
+   * Ends the file or the chunk sent. The file is closed unless more chunks of it are left,
+   * and the success message ending a transfer is queued after its last chunk.
+   * @throws IOException - If the file could not be closed.
+   */
+  private void endUpload() throws IOException {
+    if (chunk == null) {
+      if (upload != null) {
+        upload.close();
+      }
+    }
+    else if (chunk.remaining == 0) {
+      if (chunk.file != null) {
+        chunk.file.close();
+      }
+      send(new Message(Constant.SUCCESS_HEADER,"nokey",null,chunk.length).withId(chunk.id));
+    }
+    chunk = null;
+    upload = null;
+    uploadContent = null;
+  }
+
+  /**
+   * @return uploading - True while a file or a chunk is being sent.
+   */
+  private boolean isUploading() {
+    return upload != null || uploadContent != null;
+  }
+
+  /**
+   * Closes the replicated file once written and stores its checksums, linking its name to it if it was stored by content.
+   * The checksums are computed by a worker. A chain is told that this replica did not store the file if it was damaged
+   * on its way.
+   * @throws IOException - If the file could not be closed, or linked.
+   */
+  private void closeReplica() throws IOException {
+    replica.close();
+    replica = null;
+    state = FRAME;
+    final String filename = replicaFilename;
+    final String content = replicaContent;
+    submit(new Deferred() {
+      private boolean intact;
+
+      void work() throws IOException {
+        intact = Connection.storeReplica(filename,content,null);
+      }
+
+      void answer() throws IOException {
+        if (failure != null) {
+          throw new IOException("The replica could not be stored.",failure);
+        }
+        if (replicaChain) {
+          returnSuccess(intact ? "1" : "0");
+        }
+      }
+    },true);
+  }
+
+  private void returnError() throws IOException {
+    send(new Message(Constant.ERROR_HEADER,null,null));
+  }
+
+  private void returnSuccess(String msg) throws IOException {
+    send(new Message(Constant.SUCCESS_HEADER,"nokey",msg));
+  }
+
+  /**
+   * Queues a message to be written, with the id of the request handled if it has none.
+   * @param message - The message.
+   * @throws IOException - If the message could not be encoded.
+   */
+  private void send(Message message) throws IOException {
+    codec.encode(request >= 0 && message.getId() < 0 ? message.withId(request) : message);
+    queue(codec.buffer(),codec.offset(),codec.length());
+  }
+
+  private void queue(byte[] bytes, int offset, int length) {
+    if (output.remaining() < length) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(output.capacity()*2,output.position()+length));
+      output.flip();
+      grown.put(output);
+      output = grown;
+    }
+    output.put(bytes,offset,length);
+  }
+
+  /**
+   * Asks the selector for writes while something is waiting to be written.
+   * Reads are stopped while a file is being sent or a request is deferred, and the input buffer is full.
+   */
+  private void updateInterest() {
+    if (!key.isValid()) {
+      return;
+    }
+    int ops = 0;
+    if ((!isUploading() && deferred == null) || input.hasRemaining()) {
+      ops |= SelectionKey.OP_READ;
+    }
+    if (output.position() > 0 || isUploading() || !transfers.isEmpty()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    key.interestOps(ops);
+  }
+}
@@ -0,0 +1,283 @@
+package sharingsystem;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server built on non-blocking channels. The thread running the server accepts connections
+ * and hands them to a small number of event loops, one per core, each one driving its connections with a Selector.
+ * Only the binary protocol is supported. Peers still using the legacy protocol need the blocking server.
+ * The work which could block a loop, such as a registration waiting for the index log to be synced, is run by workers
+ * and its answer is handed back to the loop of the connection.
+ */
+public class NioServer implements Runnable {
+
+  /**
+   * The port to listen on.
+   */
+  private int port;
+  /**
+   * The table containing the keys and values.
+   */
+  private Index index;
+  /**
+   * The event loops.
+   */
+  private EventLoop loops[];
+  /**
+   * The threads running the work which could block the event loops.
+   */
+  private final ExecutorService workers;
+  /**
+   * The threads running the event loops.
+   */
+  private Thread threads[];
+  /**
+   * The channel accepting the connections.
+   */
+  private ServerSocketChannel server;
+  /**
+   * False once the server is closed.
+   */
+  private volatile boolean running = true;
+
+  /**
+   * Constructor of a server listening on a port.
+   * @param port - The port.
+   * @param index - The index containing the keys and values.
+   */
+  public NioServer(int port, Index index) {
+    this.port = port;
+    this.index = index;
+    workers = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable,"nio-worker-"+NioServer.this.port);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Starts the event loops and accepts connections, giving them to the loops in turn, until the server is closed.
+   */
+  public void run() {
+    try {
+      synchronized (this) {
+        if (!running) {
+          return;
+        }
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+        threads = new Thread[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+          loops[i] = new EventLoop();
+          threads[i] = new Thread(loops[i], "nio-loop-"+port+"-"+i);
+          threads[i].setDaemon(true);
+          threads[i].start();
+        }
+      }
+      int next = 0;
+      while (running) {
+        SocketChannel channel = server.accept();
+        loops[next].add(channel);
+        next = (next+1) % loops.length;
+      }
+    }
+    catch (IOException e) {
+      if (running) {
+        System.out.println("Server socket could not be created. Check configuration file.");
+      }
+    }
+    finally {
+      close();
+    }
+  }
+
+  /**
+   * Stops accepting connections and waits for the event loops to close their connections and end,
+   * then for the workers to end their work. Once it returns, no request is handled anymore.
+   */
+  public void close() {
+    EventLoop loops[];
+    Thread threads[];
+    synchronized (this) {
+      running = false;
+      try {
+        if (server != null) {
+          server.close();
+        }
+      } catch (IOException e) {
+        ;
+      }
+      loops = this.loops;
+      threads = this.threads;
+    }
+    if (loops == null) {
+      workers.shutdown();
+      return;
+    }
+    for (EventLoop loop : loops) {
+      if (loop != null) {
+        loop.selector.wakeup();
+      }
+    }
+    for (Thread thread : threads) {
+      if (thread == null || thread == Thread.currentThread()) {
+        continue;
+      }
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(5,TimeUnit.SECONDS)) {
+        workers.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      workers.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A thread selecting the channels ready to be read or written and letting their connection handle them.
+   * A connection failing on something else than an IOException is closed alone. The connections are closed
+   * when the server is. The tasks given to the loop are run by its thread, between two selections.
+   */
+  private class EventLoop implements Runnable, Executor {
+    /**
+     * The selector of the loop.
+     */
+    private final Selector selector;
+    /**
+     * The channels accepted but not registered yet.
+     */
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+    /**
+     * The tasks waiting to be run by the loop.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Gives a new channel to the loop.
+     * @param channel - The channel.
+     */
+    private void add(SocketChannel channel) {
+      pending.add(channel);
+      selector.wakeup();
+    }
+
+    /**
+     * Gives a task to the loop, such as the answer to a request handled by a worker.
+     * @param task - The task.
+     */
+    public void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    public void run() {
+      try {
+        loop();
+      }
+      finally {
+        for (SelectionKey key : selector.keys()) {
+          if (key.attachment() != null) {
+            ((NioConnection) key.attachment()).close();
+          }
+        }
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+          try {
+            channel.close();
+          } catch (IOException e) {
+            ;
+          }
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          ;
+        }
+      }
+    }
+
+    /**
+     * Registers the new channels and handles the ready ones, until the server is closed.
+     */
+    private void loop() {
+      while (running) {
+        try {
+          selector.select();
+          SocketChannel channel;
+          while ((channel = pending.poll()) != null) {
+            try {
+              channel.configureBlocking(false);
+              channel.socket().setTcpNoDelay(true);
+              SelectionKey key = channel.register(selector,SelectionKey.OP_READ);
+              key.attach(new NioConnection(channel,key,index,workers,this));
+            }
+            catch (IOException e) {
+              channel.close();
+            }
+          }
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            try {
+              task.run();
+            }
+            catch (RuntimeException e) {
+              System.out.println("A task of the server failed. "+e);
+            }
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.write();
+              }
+            }
+            catch (IOException e) {
+              connection.close();
+            }
+            catch (RuntimeException e) {
+              System.out.println("A connection of the server failed. "+e);
+              connection.close();
+            }
+          }
+        }
+        catch (IOException e) {
+          System.out.println("An event loop of the server failed.");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,296 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a file from every peer holding a copy at the same time.
+ * The file is cut in chunks which the peers take from a shared queue, so a fast peer ends up fetching more chunks than a slow one.
+ * The chunk of a peer that fails goes back in the queue. Once the queue is empty, an idle peer also fetches the chunk
+ * that has been in progress the longest on a slower peer, and the first copy received completes it: the connection
+ * still receiving the other copy is closed, so that the download does not wait for the slower peer. A peer sending
+ * nothing for RANGE_TIMEOUT fails.
+ * Each chunk is written at its position in a PartialDownload, whose progress is recorded each time the chunks received
+ * from the start of the file grow, so that a download which failed is resumed after them. It is renamed once complete.
+ */
+public class ParallelDownload {
+
+  /**
+   * The size of a chunk.
+   */
+  public static final long CHUNK_SIZE = 1024*1024;
+  /**
+   * A chunk in progress is fetched again by an idle peer when it takes longer than this factor times the average chunk.
+   */
+  private static final int SLOW_FACTOR = 2;
+  /**
+   * The time an idle peer waits before looking for work again, in milliseconds.
+   */
+  private static final long IDLE_WAIT = 5;
+
+  /**
+   * A range of the file.
+   */
+  private static class Chunk {
+    private final long offset;
+    private final long length;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final AtomicInteger fetchers = new AtomicInteger();
+    /**
+     * The connections receiving the chunk.
+     */
+    private final Queue<MessageStream> streams = new ConcurrentLinkedQueue<MessageStream>();
+    private volatile long started;
+
+    private Chunk(long offset, long length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * The action used to connect to the peers.
+   */
+  private final Action action;
+  /**
+   * The name and the key of the file.
+   */
+  private final String filename;
+  private final String key;
+  /**
+   * The ids of the peers holding the file, without duplicates.
+   */
+  private final List<Integer> holders = new ArrayList<Integer>();
+  /**
+   * The chunks of the file, and the ones waiting for a peer.
+   */
+  private final List<Chunk> chunks = new ArrayList<Chunk>();
+  private final Queue<Chunk> queue = new ConcurrentLinkedQueue<Chunk>();
+  /**
+   * The number of chunks not received yet.
+   */
+  private final AtomicInteger remaining = new AtomicInteger();
+  /**
+   * The time spent on the chunks received, in nanoseconds, used to find slow chunks.
+   */
+  private final AtomicLong chunkTime = new AtomicLong();
+  /**
+   * The number of bytes received from each peer.
+   */
+  private final Map<Integer,AtomicLong> received = new LinkedHashMap<Integer,AtomicLong>();
+  /**
+   * The number of chunks received from the start of the file, and the offset they end at. Guarded by the download.
+   */
+  private int prefix;
+  private long completed;
+
+  /**
+   * Constructor of a download.
+   * @param action - The action used to connect to the peers.
+   * @param filename - The name of the file.
+   * @param peerId - The ids of the peers holding the file, as returned by findPeerToDownload.
+   */
+  public ParallelDownload(Action action, String filename, int peerId[]) {
+    this.action = action;
+    this.filename = filename;
+    this.key = action.hash(filename);
+    for (int id : peerId) {
+      if (id != 0 && !holders.contains(id)) {
+        holders.add(id);
+        received.put(id,new AtomicLong());
+      }
+    }
+  }
+
+  /**
+   * Downloads the file.
+   * A new connection is opened to each peer so that the connections of the action stay free.
+   * @param target - The file to write.
+   * @throws DownloadException - If no peer answered or the file could not be completed.
+   */
+  public void run(File target) throws DownloadException {
+    List<MessageStream> streams = new ArrayList<MessageStream>();
+    List<Integer> peers = new ArrayList<Integer>();
+    long size = -1;
+    for (int id : holders) {
+      MessageStream stream = action.connectToServer(id);
+      if (stream == null) {
+        continue;
+      }
+      try {
+        if (size < 0) {
+          stream.send(new Message(Constant.RANGE_HEADER,key,filename));
+          Message answer = stream.receive();
+          if (!answer.isSuccess() || answer.getLength() < 0) {
+            throw new IOException("The peer does not have the file.");
+          }
+          size = answer.getLength();
+        }
+        stream.getSocket().setSoTimeout(Constant.RANGE_TIMEOUT);
+        streams.add(stream);
+        peers.add(id);
+      } catch (IOException e) {
+        stream.close();
+      }
+    }
+    if (size < 0) {
+      throw new DownloadException();
+    }
+    long start = System.nanoTime();
+    PartialDownload download = new PartialDownload(target);
+    try {
+      completed = download.resume(size);
+      download.allocate();
+      if (completed > 0) {
+        System.out.println("Resuming the download at "+completed+" of "+size+" bytes.");
+      }
+      for (long offset = completed; offset < size; offset += CHUNK_SIZE) {
+        Chunk chunk = new Chunk(offset,Math.min(CHUNK_SIZE,size-offset));
+        chunks.add(chunk);
+        queue.add(chunk);
+      }
+      remaining.set(chunks.size());
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < streams.size(); i++) {
+        Thread thread = new Thread(worker(peers.get(i),streams.get(i),download));
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      if (remaining.get() > 0) {
+        throw new DownloadException();
+      }
+      download.complete();
+    } catch (IOException e) {
+      throw new DownloadException();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DownloadException();
+    } finally {
+      for (MessageStream stream : streams) {
+        stream.close();
+      }
+      download.close();
+    }
+    System.out.println("Downloaded "+size+" bytes from "+peers.size()+" peer(s) in "
+        +(System.nanoTime()-start)/1000000+" ms. Bytes per peer: "+received+".");
+  }
+
+  /**
+   * Creates the task fetching chunks from one peer until the file is complete or the peer fails.
+   * @param id - The id of the peer.
+   * @param stream - The connection to the peer.
+   * @param download - The file to write.
+   * @return worker - The task.
+   */
+  private Runnable worker(final int id, final MessageStream stream, final PartialDownload download) {
+    final FileChannel target = download.getChannel();
+    return new Runnable() {
+      public void run() {
+        try {
+          while (remaining.get() > 0) {
+            Chunk chunk = queue.poll();
+            if (chunk == null) {
+              chunk = slowest();
+            }
+            if (chunk == null) {
+              Thread.sleep(IDLE_WAIT);
+              continue;
+            }
+            if (chunk.done.get()) {
+              continue;
+            }
+            chunk.fetchers.incrementAndGet();
+            chunk.streams.add(stream);
+            long started = System.nanoTime();
+            if (chunk.started == 0) {
+              chunk.started = started;
+            }
+            try {
+              stream.send(new Message(Constant.RANGE_HEADER,key,filename,chunk.offset,chunk.length));
+              if (stream.receiveRange(target) != chunk.length) {
+                throw new IOException("The peer sent a short range.");
+              }
+            } catch (IOException e) {
+              chunk.streams.remove(stream);
+              if (chunk.fetchers.decrementAndGet() == 0 && !chunk.done.get()) {
+                chunk.started = 0;
+                queue.add(chunk);
+              }
+              return;
+            }
+            chunk.streams.remove(stream);
+            chunk.fetchers.decrementAndGet();
+            received.get(id).addAndGet(chunk.length);
+            if (chunk.done.compareAndSet(false,true)) {
+              for (MessageStream slower : chunk.streams) {
+                slower.close();
+              }
+              chunkTime.addAndGet(System.nanoTime()-started);
+              remaining.decrementAndGet();
+              checkpoint(download);
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  /**
+   * Records the progress of the download if the chunks received from the start of the file grew.
+   * The download goes on if it could not be recorded: it is then resumed from an earlier offset.
+   * @param download - The file written.
+   */
+  private synchronized void checkpoint(PartialDownload download) {
+    int first = prefix;
+    while (prefix < chunks.size() && chunks.get(prefix).done.get()) {
+      completed = chunks.get(prefix).offset+chunks.get(prefix).length;
+      prefix++;
+    }
+    if (prefix == first) {
+      return;
+    }
+    try {
+      download.checkpoint(completed);
+    } catch (IOException e) {
+      ;
+    }
+  }
+
+  /**
+   * Finds a chunk worth fetching again: the one in progress the longest, if it takes much longer than an average chunk.
+   * A chunk is never fetched by more than two peers at once.
+   * @return chunk - The chunk, or null if none is slow.
+   */
+  private Chunk slowest() {
+    int done = chunks.size()-remaining.get();
+    if (done == 0) {
+      return null;
+    }
+    long limit = SLOW_FACTOR*chunkTime.get()/done;
+    long now = System.nanoTime();
+    Chunk slowest = null;
+    for (Chunk chunk : chunks) {
+      long started = chunk.started;
+      if (!chunk.done.get() && started != 0 && chunk.fetchers.get() == 1 && now-started > limit
+          && (slowest == null || started < slowest.started)) {
+        slowest = chunk;
+      }
+    }
+    return slowest;
+  }
+}
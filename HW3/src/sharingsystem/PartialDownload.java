@@ -0,0 +1,127 @@
+package sharingsystem;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A download written to a .part file next to the file downloaded, and renamed once complete.
+ * The progress is kept in a .progress file: the size of the file and the number of bytes from its start which were
+ * received and synced to the disk. A download which failed leaves both files, and is resumed from that offset by the next
+ * download of the file, from the same peer or another one, as long as the file has the same size.
+ */
+public class PartialDownload {
+
+  private static final int MAGIC = 0x44465350;
+
+  private final File target;
+  private final File part;
+  private final File progress;
+  private FileChannel channel;
+  private long size = -1;
+
+  /**
+   * Constructor of the download of a file.
+   * @param target - The file downloaded.
+   */
+  public PartialDownload(File target) {
+    this.target = target;
+    this.part = new File(target.getPath()+".part");
+    this.progress = new File(target.getPath()+".progress");
+  }
+
+  /**
+   * Opens the .part file and returns the offset the download continues from.
+   * The progress of a file of another size is dropped, as it belongs to another file.
+   * @param size - The size of the file, as announced by the peer sending it.
+   * @return offset - The number of bytes already received.
+   * @throws IOException - If the .part file could not be opened.
+   */
+  public long resume(long size) throws IOException {
+    this.size = size;
+    long offset = 0;
+    if (progress.isFile() && part.isFile()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(progress)))) {
+        if (in.readInt() == MAGIC && in.readLong() == size) {
+          offset = Math.min(in.readLong(),part.length());
+        }
+      } catch (IOException e) {
+        offset = 0;
+      }
+    }
+    channel = FileChannel.open(part.toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+    channel.truncate(offset);
+    return offset;
+  }
+
+  /**
+   * Extends the .part file to the size of the file, so that a range received before the ones preceding it is written at its position.
+   * FileChannel.transferFrom writes nothing at a position beyond the size of the file.
+   * @throws IOException - If the .part file could not be extended.
+   */
+  public void allocate() throws IOException {
+    if (size > 0 && channel.size() < size) {
+      channel.write(ByteBuffer.wrap(new byte[1]),size-1);
+    }
+  }
+
+  /**
+   * @return channel - The .part file, where the bytes received are written at their position.
+   */
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Syncs the bytes received and records that the file is complete up to an offset.
+   * The progress is written aside and renamed.
+   * @param offset - The number of bytes received from the start of the file.
+   * @throws IOException - If the progress could not be written.
+   */
+  public void checkpoint(long offset) throws IOException {
+    channel.force(false);
+    File temporary = new File(progress.getPath()+".tmp");
+    FileOutputStream stream = new FileOutputStream(temporary);
+    try (DataOutputStream out = new DataOutputStream(stream)) {
+      out.writeInt(MAGIC);
+      out.writeLong(size);
+      out.writeLong(offset);
+      out.flush();
+      stream.getFD().sync();
+    }
+    Files.move(temporary.toPath(),progress.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Renames the complete .part file to the file downloaded and drops the progress.
+   * @throws IOException - If the file could not be renamed.
+   */
+  public void complete() throws IOException {
+    close();
+    Files.move(part.toPath(),target.toPath(),StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(progress.toPath());
+  }
+
+  /**
+   * Closes the .part file, which is kept to resume the download.
+   */
+  public void close() {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      ;
+    }
+    channel = null;
+  }
+}
@@ -0,0 +1,286 @@
+package sharingsystem;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The connections of this peer to the servers of the other peers, shared by everything sending them messages.
+ * A connection is opened when first needed and used by one thread at a time. Once released, it is kept in a small pool
+ * per server to be used again. A connection which failed is closed instead, so that the next one is opened anew.
+ * A server which could not be connected is not tried again before a delay, doubling with each failure up to a maximum.
+ * A connection left idle for a while is checked with a search before it is used again, and closed if idle for longer.
+ */
+public class PeerConnections {
+
+  /**
+   * The connections of the peer.
+   */
+  private static final PeerConnections connections = new PeerConnections();
+
+  /**
+   * A connection kept in the pool, with the time it was released.
+   */
+  private static final class Idle {
+    private final MessageStream stream;
+    private final long released;
+
+    private Idle(MessageStream stream, long released) {
+      this.stream = stream;
+      this.released = released;
+    }
+  }
+
+  /**
+   * The connections to a server and their statistics. Guarded by its own lock.
+   */
+  private static final class Peer {
+    private final ArrayDeque<Idle> idle = new ArrayDeque<Idle>();
+    private int used;
+    private int failures;
+    private long retry;
+    private long opened;
+    private long reused;
+    private long failed;
+    private long broken;
+    private long evicted;
+  }
+
+  private final Peer peers[] = new Peer[Constant.MAX_SERVER];
+  /**
+   * The thread closing the idle connections, started with the first connection released.
+   */
+  private Thread evictor;
+
+  private PeerConnections() {
+    for (int i = 0; i < peers.length; i++) {
+      peers[i] = new Peer();
+    }
+  }
+
+  /**
+   * @return connections - The connections of the peer.
+   */
+  public static PeerConnections get() {
+    return connections;
+  }
+
+  /**
+   * Opens a connection to every server at once, without waiting for them.
+   * The connections are put in the pools, the servers which could not be connected wait for their delay.
+   */
+  public void warmUp() {
+    for (int i = 1; i <= ConfigurationFile.getClientNumber(); i++) {
+      final int server = i;
+      synchronized (peers[server-1]) {
+        if (!peers[server-1].idle.isEmpty() || peers[server-1].used > 0) {
+          continue;
+        }
+      }
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            release(server,acquire(server));
+          } catch (IOException e) {
+            ;
+          }
+        }
+      },"connect-"+server);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Takes a connection to a server, from the pool if there is one, otherwise a new one.
+   * It must be given back by release().
+   * @param server - The number of the server.
+   * @return stream - The connection.
+   * @throws IOException - If the server could not be connected, or is waiting for its delay after failures.
+   */
+  public MessageStream acquire(int server) throws IOException {
+    Peer peer = peers[server-1];
+    while (true) {
+      Idle idle;
+      synchronized (peer) {
+        idle = peer.idle.poll();
+        peer.used++;
+      }
+      if (idle == null) {
+        break;
+      }
+      if (System.currentTimeMillis()-idle.released < Constant.CONNECTION_CHECK_DELAY || check(idle.stream)) {
+        synchronized (peer) {
+          peer.reused++;
+        }
+        return idle.stream;
+      }
+      idle.stream.close();
+      synchronized (peer) {
+        peer.used--;
+        peer.broken++;
+      }
+    }
+    try {
+      return connect(server);
+    } catch (IOException e) {
+      synchronized (peer) {
+        peer.used--;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Gives back a connection taken by acquire(). It is kept in the pool unless it was closed or the pool is full.
+   * @param server - The number of the server.
+   * @param stream - The connection. Null is ignored.
+   */
+  public void release(int server, MessageStream stream) {
+    if (stream == null) {
+      return;
+    }
+    Peer peer = peers[server-1];
+    boolean kept = false;
+    synchronized (peer) {
+      peer.used--;
+      if (stream.isClosed()) {
+        peer.broken++;
+      }
+      else if (peer.idle.size() < Constant.POOL_SIZE) {
+        peer.idle.push(new Idle(stream,System.currentTimeMillis()));
+        kept = true;
+      }
+    }
+    if (!kept) {
+      stream.close();
+    }
+    startEvictor();
+  }
+
+  /**
+   * Opens a connection to a server which is not taken from the pool nor given back to it, for a long transfer or
+   * a multiplexer. The server is not tried if it is waiting for its delay after failures.
+   * @param server - The number of the server.
+   * @return stream - The connection, closed by the caller.
+   * @throws IOException - If the server could not be connected.
+   */
+  public MessageStream connect(int server) throws IOException {
+    Peer peer = peers[server-1];
+    synchronized (peer) {
+      long wait = peer.retry-System.currentTimeMillis();
+      if (wait > 0) {
+        throw new IOException("Server "+server+" is down. It is tried again in "+wait+" ms.");
+      }
+    }
+    try {
+      MessageStream stream = MessageStream.connect(InetAddress.getByName(ConfigurationFile.getClientIp()[server-1]),
+          ConfigurationFile.getClientPort()[server-1],ConfigurationFile.getProtocol());
+      synchronized (peer) {
+        peer.failures = 0;
+        peer.retry = 0;
+        peer.opened++;
+      }
+      return stream;
+    } catch (IOException e) {
+      synchronized (peer) {
+        peer.failed++;
+        peer.retry = System.currentTimeMillis()
+            +Math.min(Constant.CONNECT_MAX_BACKOFF,Constant.CONNECT_BACKOFF << Math.min(peer.failures,20));
+        peer.failures++;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Closes the connections of the pools which were not used for the idle timeout.
+   */
+  public void evict() {
+    long oldest = System.currentTimeMillis()-Constant.CONNECTION_IDLE_TIMEOUT;
+    for (Peer peer : peers) {
+      ArrayDeque<Idle> expired = new ArrayDeque<Idle>();
+      synchronized (peer) {
+        Iterator<Idle> i = peer.idle.iterator();
+        while (i.hasNext()) {
+          Idle idle = i.next();
+          if (idle.released < oldest) {
+            i.remove();
+            expired.add(idle);
+            peer.evicted++;
+          }
+        }
+      }
+      for (Idle idle : expired) {
+        idle.stream.close();
+      }
+    }
+  }
+
+  /**
+   * Closes the connections of the pools. The connections in use are closed when given back.
+   */
+  public void close() {
+    for (Peer peer : peers) {
+      synchronized (peer) {
+        for (Idle idle : peer.idle) {
+          idle.stream.close();
+        }
+        peer.idle.clear();
+      }
+    }
+  }
+
+  /**
+   * @return report - The state and the statistics of the connections to each server.
+   */
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    long now = System.currentTimeMillis();
+    for (int i = 1; i <= ConfigurationFile.getClientNumber(); i++) {
+      Peer peer = peers[i-1];
+      synchronized (peer) {
+        sb.append(String.format("Server %d: %s, %d in use, %d idle, %d opened, %d reused, %d failed, %d broken, %d evicted.%n",
+            i,peer.retry > now ? "down for "+(peer.retry-now)+" ms after "+peer.failures+" failure(s)" : "up",
+            peer.used,peer.idle.size(),peer.opened,peer.reused,peer.failed,peer.broken,peer.evicted));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Checks that a connection left idle still works, by searching a key and waiting for any answer.
+   * @param stream - The connection.
+   * @return healthy - True if the server answered.
+   */
+  private static boolean check(MessageStream stream) {
+    try {
+      stream.send(new Message(Constant.SEARCH_HEADER,Key.format(0),""));
+      stream.receive();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private synchronized void startEvictor() {
+    if (evictor != null) {
+      return;
+    }
+    evictor = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(Constant.CONNECTION_IDLE_TIMEOUT/2);
+            evict();
+          }
+        } catch (InterruptedException e) {
+          ;
+        }
+      }
+    },"connection-evictor");
+    evictor.setDaemon(true);
+    evictor.start();
+  }
+}
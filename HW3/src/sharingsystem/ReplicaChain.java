@@ -0,0 +1,264 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Chain replication: a file is sent to the first of its replicas only, which stores it and forwards it at the same time
+ * to the next replica in the placement order, and so on, so that the peer holding the file sends it once whatever the
+ * number of replicas.
+ * The RPL# of a chain gives the name of the file in its name field, and in its value the id of the peer holding the file
+ * followed by the replicas left after the one receiving it. Once the file is sent, each replica answers with the number
+ * of replicas, counted from itself along the chain, which stored the file. A replica whose next replica failed stores
+ * the file all the same and answers with the replicas before the failure only.
+ * A chain needs the binary protocol. A replica which does not forward answers with 1, and the sender starts a new chain
+ * from the replicas left.
+ */
+public class ReplicaChain {
+
+  private final String key;
+  private final String filename;
+  private final String content;
+  private final int origin;
+  /**
+   * The replicas, in the order the file goes through them.
+   */
+  private int chain[];
+  /**
+   * The connection to the first replica, or null if it failed.
+   */
+  private MessageStream stream;
+  /**
+   * The stream the file is written to, or null if it is not sent.
+   */
+  private OutputStream out;
+  /**
+   * True if the first replica asked for the file, false if it already stores its content.
+   */
+  private boolean needsFile;
+  /**
+   * The number of bytes of the file sent.
+   */
+  private long sent;
+
+  /**
+   * Constructor of a chain, not connected yet.
+   * @param key - The key of the name of the file.
+   * @param filename - The name of the file.
+   * @param content - The key of the content of the file, or null if it is stored under its name only.
+   * @param origin - The id of the peer holding the file.
+   * @param chain - The replicas, in order. Can be empty.
+   */
+  public ReplicaChain(String key, String filename, String content, int origin, int chain[]) {
+    this.key = key;
+    this.filename = filename;
+    this.content = content;
+    this.origin = origin;
+    this.chain = chain;
+  }
+
+  /**
+   * Returns the origin and the replicas given by the value of the RPL# of a chain.
+   * @param value - The value.
+   * @return ids - The id of the peer holding the file, followed by the replicas left.
+   */
+  public static int[] parse(String value) {
+    StringTokenizer st = new StringTokenizer(value,Constant.TOKEN);
+    int ids[] = new int[st.countTokens()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = Integer.parseInt(st.nextToken());
+    }
+    return ids;
+  }
+
+  /**
+   * Connects the chain: registers the file to its first replica and asks it to receive the file for the others.
+   * @return chained - False if it can not be a chain because the first replica does not use the binary protocol.
+   * True otherwise, even if the first replica failed.
+   */
+  public boolean open() {
+    if (chain.length == 0) {
+      return true;
+    }
+    try {
+      stream = PeerConnections.get().acquire(chain[0]);
+    } catch (IOException e) {
+      return true;
+    }
+    if (stream.getProtocol().equals(Constant.PROTOCOL_LEGACY)) {
+      PeerConnections.get().release(chain[0],stream);
+      stream = null;
+      return false;
+    }
+    String value = ""+origin;
+    for (int i = 1; i < chain.length; i++) {
+      value += Constant.TOKEN+chain[i];
+    }
+    try {
+      stream.send(new Message(Constant.REGISTER_HEADER,key,""+origin).withName(filename));
+      if (!stream.receive().isSuccess()) {
+        throw new IOException("The file could not be registered.");
+      }
+      stream.send(new Message(Constant.REPLICATE_HEADER,key,value).withName(filename).withContent(content));
+      Message answer = stream.receive();
+      if (!answer.isSuccess()) {
+        throw new IOException("The file could not be replicated.");
+      }
+      needsFile = content == null || answer.getLength() < 0;
+    } catch (IOException e) {
+      close();
+    }
+    return true;
+  }
+
+  /**
+   * Replicates a file along the chain. If only the first replicas stored it, because one of them failed or did not
+   * forward it, a new chain is started at once from the replicas left, the one which failed being skipped.
+   * @param file - The file.
+   * @return failed - The replicas which did not store the file, or null if it can not be a chain.
+   */
+  public List<Integer> replicate(File file) {
+    int all[] = chain;
+    List<Integer> failed = new ArrayList<Integer>();
+    int next = 0;
+    while (next < all.length) {
+      chain = Arrays.copyOfRange(all,next,all.length);
+      if (!open()) {
+        chain = all;
+        if (next == 0) {
+          return null;
+        }
+        for (int id : Arrays.copyOfRange(all,next,all.length)) {
+          failed.add(id);
+        }
+        return failed;
+      }
+      send(file);
+      int stored = finish();
+      if (stored == 0) {
+        failed.add(all[next]);
+        stored = 1;
+      }
+      next += stored;
+    }
+    chain = all;
+    return failed;
+  }
+
+  /**
+   * @return needsFile - True if the first replica is waiting for the file.
+   */
+  public boolean needsFile() {
+    return stream != null && needsFile;
+  }
+
+  /**
+   * @return sent - The number of bytes of the file sent by this peer, to the first replica of each chain.
+   */
+  public long getSent() {
+    return sent;
+  }
+
+  /**
+   * Starts sending the file to the first replica.
+   * @param length - The length of the file.
+   */
+  public void start(long length) {
+    if (needsFile()) {
+      try {
+        out = stream.sendFile(length);
+      } catch (IOException e) {
+        close();
+      }
+    }
+  }
+
+  /**
+   * Sends a part of the file to the first replica. The chain is dropped if it failed.
+   * @param b - The bytes.
+   * @param off - The position of the part.
+   * @param len - The length of the part.
+   */
+  public void write(byte b[], int off, int len) {
+    if (out != null) {
+      try {
+        out.write(b,off,len);
+        sent += len;
+      } catch (IOException e) {
+        close();
+      }
+    }
+  }
+
+  /**
+   * Sends a whole file to the first replica.
+   * @param file - The file.
+   */
+  public void send(File file) {
+    if (!needsFile()) {
+      return;
+    }
+    byte buffer[] = new byte[64*1024];
+    try (InputStream in = new FileInputStream(file)) {
+      long length = file.length();
+      start(length);
+      int i;
+      while (length > 0 && (i = in.read(buffer,0,(int) Math.min(buffer.length,length))) > 0) {
+        write(buffer,0,i);
+        length -= i;
+      }
+      if (length > 0) {
+        close();
+      }
+    } catch (IOException e) {
+      close();
+    }
+  }
+
+  /**
+   * Ends the file sent, waits for the answer of the first replica and gives back its connection.
+   * @return stored - The number of replicas, from the first one, which stored the file.
+   */
+  public int finish() {
+    if (stream == null) {
+      return 0;
+    }
+    int stored = 0;
+    try {
+      if (out != null) {
+        out.close();
+      }
+      Message answer = stream.receive();
+      if (answer.isSuccess() && answer.getValue() != null) {
+        stored = Math.min(chain.length,Integer.parseInt(answer.getValue()));
+      }
+    } catch (IOException e) {
+      stream.close();
+    } catch (NumberFormatException e) {
+      ;
+    }
+    PeerConnections.get().release(chain[0],stream);
+    stream = null;
+    out = null;
+    return stored;
+  }
+
+  /**
+   * Drops the chain, closing the connection to its first replica, after a failure.
+   */
+  public void close() {
+    if (stream != null) {
+      stream.close();
+      PeerConnections.get().release(chain[0],stream);
+      stream = null;
+    }
+    out = null;
+  }
+}
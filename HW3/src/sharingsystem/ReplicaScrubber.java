@@ -0,0 +1,199 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the replicas stored by the peer in the background, against the checksums stored when they were received.
+ * The replicas are read at scrubRate bytes per second at most, so that the transfers of the peer are not slowed down,
+ * and the replica directory is checked again every SCRUB_INTERVAL.
+ * A damaged chunk is downloaded again from another peer having the file. A replica without checksums, received before
+ * they were kept, gets new ones. A replica written while it is checked is left for the next pass.
+ */
+public class ReplicaScrubber implements Runnable {
+
+  /**
+   * The scrubbers started, by the id of their peer.
+   */
+  private static final Map<Integer,ReplicaScrubber> started = new ConcurrentHashMap<Integer,ReplicaScrubber>();
+
+  private final Action action;
+  private final int myId;
+  private final long rate;
+  private volatile boolean running = true;
+  private Thread thread;
+  /**
+   * The time the current pass started and the number of bytes it read, to keep to the rate.
+   */
+  private long passStart;
+  private long passBytes;
+  /**
+   * The statistics of the scrubber.
+   */
+  private final AtomicLong checked = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong repaired = new AtomicLong();
+  private final AtomicLong damaged = new AtomicLong();
+
+  /**
+   * Constructor of the scrubber of a peer, not started yet.
+   * @param myId - The id of the peer.
+   * @param rate - The number of bytes read per second.
+   */
+  public ReplicaScrubber(int myId, long rate) {
+    this.action = new Action(myId);
+    this.myId = myId;
+    this.rate = rate;
+  }
+
+  /**
+   * @param myId - The id of a peer.
+   * @return scrubber - The scrubber started by the peer, or null if its replicas are not scrubbed.
+   */
+  public static ReplicaScrubber get(int myId) {
+    return started.get(myId);
+  }
+
+  /**
+   * Starts the scrubber in a daemon thread.
+   */
+  public void start() {
+    started.put(myId,this);
+    thread = new Thread(this,"scrubber-"+myId);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the scrubber.
+   */
+  public void stop() {
+    started.remove(myId,this);
+    running = false;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  public void run() {
+    try {
+      while (running) {
+        scrub();
+        Thread.sleep(Constant.SCRUB_INTERVAL);
+      }
+    } catch (InterruptedException e) {
+      ;
+    }
+  }
+
+  /**
+   * Checks all the replicas once.
+   * @throws InterruptedException - If the scrubber was stopped.
+   */
+  public void scrub() throws InterruptedException {
+    File files[] = new File(ConfigurationFile.getReplicaDirectory()).listFiles();
+    if (files == null) {
+      return;
+    }
+    passStart = System.nanoTime();
+    passBytes = 0;
+    for (File file : files) {
+      if (!running) {
+        return;
+      }
+      if (file.isFile() && !file.getName().startsWith(".")) {
+        try {
+          scrub(file);
+        } catch (IOException e) {
+          ;
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks a replica, and downloads its damaged chunks again.
+   * @param file - The replica.
+   * @throws IOException - If the replica could not be read.
+   * @throws InterruptedException - If the scrubber was stopped.
+   */
+  private void scrub(File file) throws IOException, InterruptedException {
+    String filename = file.getName();
+    long modified = file.lastModified();
+    Checksums stored = Checksums.stored(filename,file);
+    Checksums read = read(file);
+    if (file.lastModified() != modified || (stored != null && !stored.describes(file))) {
+      return;
+    }
+    checked.incrementAndGet();
+    if (stored == null) {
+      read.store(filename,file);
+      return;
+    }
+    int chunks[] = stored.compare(read);
+    if (chunks.length == 0 && read.getDigest() == stored.getDigest()) {
+      return;
+    }
+    int holders[] = action.findPeerToDownload(action.hash(filename),filename);
+    for (int i = 0; i < holders.length; i++) {
+      if (holders[i] == myId) {
+        holders[i] = 0;
+      }
+    }
+    boolean intact = chunks.length > 0;
+    for (int chunk : chunks) {
+      if (action.repair(filename,file,stored,chunk,holders)) {
+        repaired.incrementAndGet();
+      }
+      else {
+        intact = false;
+      }
+    }
+    if (intact && Checksums.of(file).getDigest() == stored.getDigest()) {
+      stored.store(filename,file);
+      System.out.println("The replica "+filename+" was damaged and "+chunks.length+" chunks of it were downloaded again.");
+    }
+    else {
+      damaged.incrementAndGet();
+      System.out.println("The replica "+filename+" is damaged and could not be repaired.");
+    }
+  }
+
+  /**
+   * Computes the checksums of a replica, reading it at the rate of the scrubber.
+   * @param file - The replica.
+   * @return checksums - The checksums.
+   * @throws IOException - If the replica could not be read.
+   * @throws InterruptedException - If the scrubber was stopped.
+   */
+  private Checksums read(File file) throws IOException, InterruptedException {
+    Checksums checksums = new Checksums();
+    byte buffer[] = new byte[64*1024];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        checksums.update(buffer,0,n);
+        bytes.addAndGet(n);
+        passBytes += n;
+        long wait = passStart+passBytes*1000000000L/rate-System.nanoTime();
+        if (wait > 0) {
+          Thread.sleep(wait/1000000,(int) (wait%1000000));
+        }
+      }
+    }
+    return checksums.finish();
+  }
+
+  /**
+   * @return report - The number of replicas checked, and of chunks downloaded again.
+   */
+  public String report() {
+    return String.format("Scrubber: %d replicas checked (%d bytes read), %d chunks repaired, %d replicas damaged.",
+        checked.get(),bytes.get(),repaired.get(),damaged.get());
+  }
+}
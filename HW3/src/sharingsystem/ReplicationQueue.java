@@ -0,0 +1,494 @@
+package sharingsystem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replicates the files registered in the background, so that a registration returns once the index has it.
+ * The files are queued and replicated by a pool of replicationThreads workers. If replication is chained, a worker sends
+ * a file to its first replica only, along a ReplicaChain. Otherwise it reads a file once and sends each part read to all
+ * its replicas, whose connections were opened and asked to receive the file beforehand. The replicas holding an older
+ * copy of a large file are sent a delta by DeltaReplication first, and are left out of the whole file.
+ * A file whose replication failed on some replicas is tried again on those, after a delay doubling with each attempt,
+ * and given up after REPLICATION_RETRIES attempts. Queueing blocks while REPLICATION_BACKLOG files are waiting.
+ * If the index is durable, the queue is kept in a journal in the index directory of the peer, so that the files
+ * not replicated yet are replicated after a restart. The journal holds the path of each file queued (record 1)
+ * and replicated or given up (record 2), as a byte followed by the path in UTF, and is emptied with the queue.
+ * A peer has one queue, shared by all its actions, so that the journal has one writer.
+ */
+public class ReplicationQueue {
+
+  private static final byte QUEUED = 1;
+  private static final byte DONE = 2;
+
+  /**
+   * The queues started, by the id of their peer.
+   */
+  private static final Map<Integer,ReplicationQueue> started = new ConcurrentHashMap<Integer,ReplicationQueue>();
+
+  /**
+   * A file to replicate, and the time it can be sent.
+   */
+  private static final class Item implements Delayed {
+    private final File file;
+    /**
+     * The replicas left, or null for all the replicas of the file.
+     */
+    private final int replicas[];
+    private final int attempt;
+    private final long queued;
+    private final long due;
+
+    private Item(File file, int replicas[], int attempt, long queued, long due) {
+      this.file = file;
+      this.replicas = replicas;
+      this.attempt = attempt;
+      this.queued = queued;
+      this.due = due;
+    }
+
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(due-System.currentTimeMillis(),TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo(Delayed other) {
+      return Long.compare(due,((Item) other).due);
+    }
+  }
+
+  private final Action action;
+  private final int myId;
+  private final DelayQueue<Item> items = new DelayQueue<Item>();
+  /**
+   * The files waiting or being replicated. Guarded by the queue.
+   */
+  private final Set<File> pending = new LinkedHashSet<File>();
+  private final List<Item> running = new ArrayList<Item>();
+  /**
+   * The files queued again while they were being replicated, or waiting to be tried again on some of their replicas.
+   * They may have changed, so they are replicated again to all their replicas once done. Guarded by the queue.
+   */
+  private final Set<File> dirty = new LinkedHashSet<File>();
+  /**
+   * The journal, or null if the queue is kept in memory only.
+   */
+  private final File file;
+  private FileChannel journal;
+  private long replicated;
+  private long retried;
+  private long abandoned;
+  private long bytesSent;
+
+  /**
+   * Returns the queue of a peer, starting it if it was not done yet.
+   * @param action - The action of the peer, used to connect to the replicas.
+   * @param myId - The id of the peer.
+   * @param file - The journal of the queue, or null to keep it in memory only.
+   * @param threads - The number of workers.
+   * @return queue - The queue of the peer.
+   */
+  public static ReplicationQueue get(Action action, int myId, File file, int threads) {
+    synchronized (started) {
+      ReplicationQueue queue = started.get(myId);
+      if (queue == null) {
+        queue = new ReplicationQueue(action,myId,file,threads);
+        started.put(myId,queue);
+      }
+      return queue;
+    }
+  }
+
+  /**
+   * Constructor starting the workers of the queue. The files left in the journal by the last run are queued again.
+   * @param action - The action of the peer, used to connect to the replicas.
+   * @param myId - The id of the peer.
+   * @param file - The journal of the queue, or null to keep it in memory only.
+   * @param threads - The number of workers.
+   */
+  private ReplicationQueue(Action action, int myId, File file, int threads) {
+    this.action = action;
+    this.myId = myId;
+    this.file = file;
+    open();
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(new Worker(),"replication-"+myId+"-"+(i+1));
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Queues files to be replicated. Files already waiting are not queued twice. A file being replicated, or waiting to be
+   * tried again on some replicas, is replicated again to all its replicas once done.
+   * Blocks while REPLICATION_BACKLOG files are waiting.
+   * @param files - The files.
+   */
+  public void addAll(Collection<File> files) {
+    addAll(files,true);
+  }
+
+  /**
+   * Queues files to be replicated.
+   * @param files - The files.
+   * @param backpressure - True to block while REPLICATION_BACKLOG files are waiting. The files left in the journal are
+   * queued at once: nothing replicates them yet.
+   */
+  private void addAll(Collection<File> files, boolean backpressure) {
+    long now = System.currentTimeMillis();
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(records);
+    synchronized (this) {
+      try {
+        for (File file : files) {
+          while (backpressure && pending.size() >= Constant.REPLICATION_BACKLOG) {
+            write(records);
+            records.reset();
+            wait();
+          }
+          if (pending.add(file)) {
+            items.add(new Item(file,null,0,now,now));
+            out.writeByte(QUEUED);
+            out.writeUTF(file.getPath());
+          }
+          else if (!isWaiting(file)) {
+            dirty.add(file);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        ;
+      }
+      write(records);
+    }
+  }
+
+  /**
+   * Waits until every file queued is replicated or given up.
+   * @param timeout - The maximum time to wait, in milliseconds.
+   * @return empty - True if the queue is empty.
+   * @throws InterruptedException - If the thread was interrupted.
+   */
+  public synchronized boolean await(long timeout) throws InterruptedException {
+    long end = System.currentTimeMillis()+timeout;
+    while (!pending.isEmpty()) {
+      long wait = end-System.currentTimeMillis();
+      if (wait <= 0) {
+        return false;
+      }
+      wait(wait);
+    }
+    return true;
+  }
+
+  /**
+   * @return lag - The time in milliseconds the oldest file waiting or being replicated was queued for, 0 if there is none.
+   */
+  public synchronized long getLag() {
+    long oldest = Long.MAX_VALUE;
+    for (Item item : items) {
+      oldest = Math.min(oldest,item.queued);
+    }
+    for (Item item : running) {
+      oldest = Math.min(oldest,item.queued);
+    }
+    return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis()-oldest;
+  }
+
+  /**
+   * @return backlog - The number of files waiting or being replicated.
+   */
+  public synchronized int getBacklog() {
+    return pending.size();
+  }
+
+  /**
+   * @return report - How far behind the replication is, and what it did.
+   */
+  public synchronized String report() {
+    return String.format("Replication: %d files waiting, %d in progress, lag %d ms, %d replicated (%d bytes sent), "
+        +"%d retried, %d given up.",pending.size()-running.size(),running.size(),getLag(),replicated,bytesSent,retried,abandoned);
+  }
+
+  /**
+   * @param file - A file pending.
+   * @return waiting - True if the file waits for a replication to all its replicas which did not start yet.
+   */
+  private boolean isWaiting(File file) {
+    for (Item item : items) {
+      if (item.file.equals(file) && item.replicas == null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Opens the journal and queues the files left in it.
+   */
+  private synchronized void open() {
+    if (file == null) {
+      return;
+    }
+    Set<File> left = new LinkedHashSet<File>();
+    if (file.isFile()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),64*1024))) {
+        while (true) {
+          byte type = in.readByte();
+          File queued = new File(in.readUTF());
+          if (type == QUEUED) {
+            left.add(queued);
+          }
+          else {
+            left.remove(queued);
+          }
+        }
+      } catch (EOFException e) {
+        ;
+      } catch (IOException e) {
+        System.out.println("The replication journal "+file+" could not be read. "+e.getMessage());
+      }
+    }
+    try {
+      file.getParentFile().mkdirs();
+      journal = FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+    } catch (IOException e) {
+      System.out.println("The replication journal "+file+" could not be opened. The queue is kept in memory only.");
+    }
+    if (!left.isEmpty()) {
+      System.out.println(left.size()+" files left by the last run are replicated again.");
+      addAll(left,false);
+    }
+  }
+
+  /**
+   * Appends records to the journal and syncs it.
+   */
+  private void write(ByteArrayOutputStream records) {
+    if (journal == null || records.size() == 0) {
+      return;
+    }
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+      while (buffer.hasRemaining()) {
+        journal.write(buffer);
+      }
+      journal.force(false);
+    } catch (IOException e) {
+      System.out.println("The replication journal could not be written. "+e.getMessage());
+    }
+  }
+
+  /**
+   * Ends the replication of a file, or queues it again for the replicas which failed.
+   * A file queued again meanwhile is queued for all its replicas instead.
+   * @param item - The file.
+   * @param failed - The replicas which failed, or null if the replication crashed: it is tried again on the same
+   * replicas as this attempt.
+   */
+  private synchronized void finish(Item item, List<Integer> failed) {
+    running.remove(item);
+    if (dirty.remove(item.file)) {
+      long now = System.currentTimeMillis();
+      items.add(new Item(item.file,null,0,now,now));
+      return;
+    }
+    boolean crashed = failed == null;
+    if ((crashed || !failed.isEmpty()) && item.attempt+1 < Constant.REPLICATION_RETRIES) {
+      int replicas[] = item.replicas;
+      if (!crashed) {
+        replicas = new int[failed.size()];
+        for (int i = 0; i < replicas.length; i++) {
+          replicas[i] = failed.get(i);
+        }
+      }
+      long delay = Constant.REPLICATION_RETRY_DELAY << item.attempt;
+      items.add(new Item(item.file,replicas,item.attempt+1,item.queued,System.currentTimeMillis()+delay));
+      retried++;
+      return;
+    }
+    if (!crashed && failed.isEmpty()) {
+      replicated++;
+    }
+    else {
+      abandoned++;
+      System.out.println("Warning : Could not upload a replica of the file "+item.file.getName()+" after "
+          +Constant.REPLICATION_RETRIES+" attempts.");
+    }
+    pending.remove(item.file);
+    try {
+      if (journal != null && pending.isEmpty()) {
+        journal.truncate(0);
+      }
+      else {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        out.writeByte(DONE);
+        out.writeUTF(item.file.getPath());
+        write(records);
+      }
+    } catch (IOException e) {
+      ;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Replicates a file to its replicas, reading it once.
+   * @param item - The file.
+   * @return failed - The replicas which did not get the file.
+   */
+  private List<Integer> replicate(Item item) {
+    List<Integer> failed = new ArrayList<Integer>();
+    File source = item.file;
+    if (!source.isFile()) {
+      return failed;
+    }
+    String filename = source.getName();
+    String key = action.hash(filename);
+    String replicaKey;
+    try {
+      replicaKey = action.replicaKey(source);
+    } catch (RegistrationException e) {
+      return failed;
+    }
+    String content = ConfigurationFile.getKeyMode().equals(Constant.KEY_CONTENT) ? replicaKey : null;
+    int replicas[] = item.replicas != null ? item.replicas : action.getReplicaId(Key.parse(replicaKey),myId);
+    if (content == null && DeltaReplication.applies(source)) {
+      replicas = DeltaReplication.replicate(key,filename,source,myId,replicas);
+      if (replicas.length == 0) {
+        return failed;
+      }
+    }
+    if (ConfigurationFile.isReplicationChain() && replicas[0] != 0) {
+      ReplicaChain chain = new ReplicaChain(key,filename,content,myId,replicas);
+      List<Integer> missing = chain.replicate(source);
+      if (missing != null) {
+        synchronized (this) {
+          bytesSent += chain.getSent();
+        }
+        return missing;
+      }
+    }
+    MessageStream streams[] = new MessageStream[replicas.length];
+    OutputStream outs[] = new OutputStream[replicas.length];
+    long length = source.length();
+    int receivers = 0;
+    for (int i = 0; i < replicas.length; i++) {
+      if (replicas[i] == 0) {
+        continue;
+      }
+      streams[i] = action.acquire(replicas[i]);
+      if (streams[i] == null) {
+        failed.add(replicas[i]);
+        continue;
+      }
+      boolean result = action.sendMessage(streams[i],new Message(Constant.REGISTER_HEADER,key,""+myId).withName(filename))
+          && action.receiveMessage(streams[i]).isSuccess()
+          && action.sendMessage(streams[i],new Message(Constant.REPLICATE_HEADER,key,filename).withContent(content));
+      Message answer = result ? action.receiveMessage(streams[i]) : null;
+      if (answer == null || !answer.isSuccess()) {
+        failed.add(replicas[i]);
+      }
+      else if (content == null || answer.getLength() < 0) {
+        try {
+          outs[i] = streams[i].sendFile(length);
+          receivers++;
+        } catch (IOException e) {
+          streams[i].close();
+          failed.add(replicas[i]);
+        }
+      }
+    }
+    if (receivers > 0) {
+      long sent = 0;
+      byte buffer[] = new byte[64*1024];
+      try (InputStream in = new FileInputStream(source)) {
+        int n;
+        while (sent < length && (n = in.read(buffer,0,(int) Math.min(buffer.length,length-sent))) > 0) {
+          for (int i = 0; i < outs.length; i++) {
+            if (outs[i] != null) {
+              try {
+                outs[i].write(buffer,0,n);
+              } catch (IOException e) {
+                outs[i] = null;
+                streams[i].close();
+                failed.add(replicas[i]);
+              }
+            }
+          }
+          sent += n;
+        }
+      } catch (IOException e) {
+        ;
+      }
+      for (int i = 0; i < outs.length; i++) {
+        if (outs[i] != null) {
+          try {
+            if (sent < length) {
+              throw new IOException("The file was truncated while it was sent.");
+            }
+            outs[i].close();
+          } catch (IOException e) {
+            streams[i].close();
+            failed.add(replicas[i]);
+          }
+        }
+      }
+      synchronized (this) {
+        bytesSent += sent*receivers;
+      }
+    }
+    for (int i = 0; i < streams.length; i++) {
+      action.release(replicas[i],streams[i]);
+    }
+    return failed;
+  }
+
+  /**
+   * Takes the files due and replicates them.
+   */
+  private class Worker implements Runnable {
+    public void run() {
+      try {
+        while (true) {
+          Item item = items.take();
+          synchronized (ReplicationQueue.this) {
+            running.add(item);
+          }
+          List<Integer> failed;
+          try {
+            failed = replicate(item);
+          } catch (RuntimeException e) {
+            failed = null;
+          }
+          finish(item,failed);
+        }
+      } catch (InterruptedException e) {
+        ;
+      }
+    }
+  }
+}
@@ -1,9 +1,17 @@
 package sharingsystem;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Hashtable;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class Server implements Runnable {
 /**
@@ -11,18 +19,62 @@ public class Server implements Runnable {
  */
   private int clientNumber;
   /**
-   * A hashtable to store filenames and corresponding server IDs.
+   * An index to store the keys of the filenames and corresponding server IDs.
+   * Reads do not lock and writes only lock one bin, so connection threads never wait on a global monitor.
+   * It is durable if an index directory is configured.
    */
-  private Hashtable<String,String> hashtable;
-  
+  private Index index;
+  /**
+   * The server mode. One of the SERVER constants.
+   */
+  private String mode;
+  /**
+   * The server socket, once listening.
+   */
+  private volatile ServerSocketChannel server;
+  /**
+   * The server handling the connections in 'nio' mode.
+   */
+  private volatile NioServer nio;
+  /**
+   * The executor running the connections in 'virtual' mode.
+   */
+  private ExecutorService executor;
+  /**
+   * The permits limiting the number of connections handled at once. Null if there is no limit.
+   */
+  private Semaphore permits;
+  /**
+   * The sockets of the connections being handled.
+   */
+  private final Set<Socket> active = ConcurrentHashMap.newKeySet();
+  /**
+   * False once the server was shut down.
+   */
+  private volatile boolean running = true;
+  /**
+   * The scrubber checking the replicas of the peer, or null if they are not scrubbed.
+   */
+  private ReplicaScrubber scrubber;
+
   /**
    * Constructor to initialize a server with the right server number.
-   * It gets the hashtable ready.
+   * It gets the index ready.
    * @param clientNumber
    */
   public Server(int clientNumber) {
+    this(clientNumber,ConfigurationFile.getServerMode());
+  }
+
+  /**
+   * Constructor to initialize a server with the right server number and a server mode.
+   * @param clientNumber - The client number.
+   * @param mode - The server mode. One of the SERVER constants.
+   */
+  public Server(int clientNumber, String mode) {
     this.clientNumber = clientNumber;
-    hashtable = new Hashtable<String,String>();
+    this.mode = mode;
+    index = openIndex(clientNumber);
   }
   /**
    * The default constructor initialize the server number with a wrong number.
@@ -30,25 +82,181 @@ public class Server implements Runnable {
    */
   public Server() {
     this(0);
-    hashtable = new Hashtable<String,String>();
   }
-  
+
   /**
    * Initialize the server to listen on the right port.
    * When someone connects, run the Connection thread.
+   * The sockets are backed by channels so that files can be sent with FileChannel.transferTo.
+   * In 'virtual' mode the Connection runs on the connection executor instead of a new thread.
+   * If the server mode is 'nio', the connections are handled by a NioServer instead.
+   * When a maximum number of connections is configured, no connection is accepted while it is reached.
+   * The replicas are checked in the background by a ReplicaScrubber if a scrub rate is configured.
    */
-  @SuppressWarnings("resource")
   public void run() {
+    if(ConfigurationFile.getScrubRate() > 0) {
+      scrubber = new ReplicaScrubber(clientNumber,ConfigurationFile.getScrubRate());
+      scrubber.start();
+    }
+    if(mode.equals(Constant.SERVER_NIO)) {
+      nio = new NioServer(ConfigurationFile.getClientPort()[clientNumber-1],index);
+      if(!running) {
+        nio.close();
+      }
+      nio.run();
+      return;
+    }
+    if(ConfigurationFile.getMaxConnections() > 0) {
+      permits = new Semaphore(ConfigurationFile.getMaxConnections());
+    }
+    if(mode.equals(Constant.SERVER_VIRTUAL)) {
+      executor = newConnectionExecutor();
+    }
     try {
-      ServerSocket server = new ServerSocket(ConfigurationFile.getClientPort()[clientNumber-1]);
-      while(true) {
-        Socket socket =server.accept();
-        Thread thread = new Thread(new Connection(socket,hashtable));
-        thread.start();
+      server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(ConfigurationFile.getClientPort()[clientNumber-1]));
+      while(running) {
+        if(permits != null) {
+          permits.acquire();
+        }
+        Socket socket;
+        try {
+          socket = server.accept().socket();
+        }
+        catch(IOException e) {
+          if(permits != null) {
+            permits.release();
+          }
+          throw e;
+        }
+        active.add(socket);
+        Runnable connection = track(socket);
+        if(executor != null) {
+          executor.execute(connection);
+        }
+        else {
+          Thread thread = new Thread(connection);
+          thread.start();
+        }
       }
     }
     catch(IOException e) {
-      System.out.println("Server socket could not be created. Check configuration file.");
+      if(running) {
+        System.out.println("Server socket could not be created. Check configuration file.");
+      }
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Stops accepting connections, closes the connections being handled and waits for them to end, then closes the index.
+   * The statistics of the file cache are printed.
+   */
+  public void shutdown() {
+    running = false;
+    if(scrubber != null) {
+      scrubber.stop();
+    }
+    try {
+      if(server != null) {
+        server.close();
+      }
+      for(Socket socket : active) {
+        socket.close();
+      }
+    } catch (IOException e) {
+      ;
+    }
+    if(nio != null) {
+      nio.close();
+    }
+    if(executor != null) {
+      executor.shutdown();
+      try {
+        if(!executor.awaitTermination(5,TimeUnit.SECONDS)) {
+          executor.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+    index.close();
+    if(ConfigurationFile.getFileCacheSize() > 0) {
+      System.out.println(FileCache.get().report());
+    }
+  }
+
+  /**
+   * Opens the index of the server. If an index directory is configured, the index is loaded from the directory of the
+   * server in it and its registrations are logged there. Otherwise, or if it could not be loaded, it lives in memory only.
+   * @param clientNumber - The client number.
+   * @return index - The index.
+   */
+  private static Index openIndex(int clientNumber) {
+    String directory = ConfigurationFile.getIndexDirectory();
+    if(directory == null) {
+      return new Index();
+    }
+    try {
+      Index index = Index.open(new File(directory,"peer"+clientNumber),ConfigurationFile.getSnapshotInterval()*1000L);
+      System.out.println("Index of peer "+clientNumber+" loaded. "+index.getLog().report());
+      return index;
+    } catch (IOException e) {
+      System.out.println("The index could not be loaded from "+directory+". Registrations will not be saved. "+e.getMessage());
+      return new Index();
+    }
+  }
+
+  /**
+   * @return index - The index of the server.
+   */
+  public Index getIndex() {
+    return index;
+  }
+
+  /**
+   * @return active - The number of connections being handled.
+   */
+  public int getActiveConnections() {
+    return active.size();
+  }
+
+  /**
+   * Wraps a connection so that its socket and its permit are released when it ends.
+   * @param socket - The socket of the connection.
+   * @return connection - The connection to run.
+   */
+  private Runnable track(final Socket socket) {
+    return new Runnable() {
+      public void run() {
+        try {
+          new Connection(socket,index).run();
+        }
+        finally {
+          active.remove(socket);
+          if(permits != null) {
+            permits.release();
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Creates the executor starting a virtual thread per connection.
+   * Virtual threads need Java 21. On older JVMs a cached thread pool is used instead.
+   * @return executor - The connection executor.
+   */
+  private static ExecutorService newConnectionExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      System.out.println("Virtual threads are not available. Connections will run on a thread pool.");
+      return Executors.newCachedThreadPool();
     }
   }
 
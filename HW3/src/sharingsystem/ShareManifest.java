@@ -0,0 +1,205 @@
+package sharingsystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The files of the shared directory registered by a peer, with their size and modification time when they were registered.
+ * It is kept between runs, so that a restart only registers the files added or changed since and unregisters the ones deleted.
+ * It is only valid while the settings placing the keys are the same: a manifest written with other settings is ignored.
+ * Layout: magic (4 bytes), hash of the settings (8), number of files (4),
+ * then for each file its path in the shared directory (UTF), its size (8), its modification time (8) and its key (8).
+ */
+public class ShareManifest {
+
+  private static final int MAGIC = 0x4446534D;
+
+  /**
+   * A file of the manifest.
+   */
+  public static final class Entry {
+    private final String path;
+    private final long size;
+    private final long modified;
+    private final long key;
+    /**
+     * True once the file was found by a scan of the shared directory.
+     */
+    private volatile boolean seen;
+
+    /**
+     * Constructor of a file.
+     * @param path - The path of the file in the shared directory.
+     * @param size - The size of the file.
+     * @param modified - The modification time of the file, in milliseconds.
+     * @param key - The key of the name of the file.
+     */
+    public Entry(String path, long size, long modified, long key) {
+      this.path = path;
+      this.size = size;
+      this.modified = modified;
+      this.key = key;
+    }
+
+    /**
+     * @return path - The path of the file in the shared directory, its directories separated by '/'.
+     */
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * @return key - The key of the name of the file.
+     */
+    public long getKey() {
+      return key;
+    }
+
+    /**
+     * @return filename - The name of the file, its path without the directories.
+     */
+    public String getName() {
+      return path.substring(path.lastIndexOf('/')+1);
+    }
+
+    /**
+     * @param size - The current size of the file.
+     * @param modified - The current modification time of the file.
+     * @return true if the file did not change since it was registered.
+     */
+    public boolean matches(long size, long modified) {
+      return this.size == size && this.modified == modified;
+    }
+
+    /**
+     * Marks the file as found by the scan.
+     */
+    public void see() {
+      seen = true;
+    }
+
+    /**
+     * @return true if the file was found by the scan.
+     */
+    public boolean isSeen() {
+      return seen;
+    }
+  }
+
+  /**
+   * The file of the manifest.
+   */
+  private final File file;
+  /**
+   * The hash of the settings placing the keys.
+   */
+  private final long settings;
+  /**
+   * The files by path. Not modified once loaded, so it is read by several threads during a scan.
+   */
+  private final Map<String,Entry> entries;
+
+  private ShareManifest(File file, long settings, Map<String,Entry> entries) {
+    this.file = file;
+    this.settings = settings;
+    this.entries = entries;
+  }
+
+  /**
+   * Loads a manifest. An empty manifest is returned if the file does not exist, is damaged, or was written with other settings.
+   * @param file - The file of the manifest. Null for an empty manifest which is never saved.
+   * @return manifest - The manifest.
+   */
+  public static ShareManifest load(File file) {
+    long settings = settings();
+    Map<String,Entry> entries = new HashMap<String,Entry>();
+    if (file != null && file.isFile()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),64*1024))) {
+        if (in.readInt() == MAGIC && in.readLong() == settings) {
+          int count = in.readInt();
+          for (int i = 0; i < count; i++) {
+            Entry entry = new Entry(in.readUTF(),in.readLong(),in.readLong(),in.readLong());
+            entries.put(entry.path,entry);
+          }
+        }
+        else {
+          System.out.println("The settings changed since the shared directory was registered. It is registered again.");
+        }
+      } catch (IOException e) {
+        System.out.println("The manifest "+file+" is damaged. The shared directory is registered again.");
+        entries.clear();
+      }
+    }
+    return new ShareManifest(file,settings,entries);
+  }
+
+  /**
+   * @param path - The path of a file in the shared directory.
+   * @return entry - The file, or null if it is not in the manifest.
+   */
+  public Entry get(String path) {
+    return entries.get(path);
+  }
+
+  /**
+   * @return entries - The files of the manifest.
+   */
+  public Collection<Entry> entries() {
+    return entries.values();
+  }
+
+  /**
+   * @return size - The number of files of the manifest.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Writes the files registered, replacing the manifest. The file is written aside and renamed.
+   * Nothing is written for a manifest without a file.
+   * @param registered - The files registered.
+   * @throws IOException - If the manifest could not be written.
+   */
+  public void save(Collection<Entry> registered) throws IOException {
+    if (file == null) {
+      return;
+    }
+    File temporary = new File(file.getPath()+".tmp");
+    file.getParentFile().mkdirs();
+    FileOutputStream stream = new FileOutputStream(temporary);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream,64*1024))) {
+      out.writeInt(MAGIC);
+      out.writeLong(settings);
+      out.writeInt(registered.size());
+      for (Entry entry : registered) {
+        out.writeUTF(entry.path);
+        out.writeLong(entry.size);
+        out.writeLong(entry.modified);
+        out.writeLong(entry.key);
+      }
+      out.flush();
+      stream.getFD().sync();
+    }
+    Files.move(temporary.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return settings - The hash of the settings deciding which peers hold the keys and the replicas.
+   */
+  private static long settings() {
+    return Key.of(ConfigurationFile.getClientNumber()+"/"+ConfigurationFile.getVirtualNodes()+"/"
+        +ConfigurationFile.isReplicaEnabled()+"/"+ConfigurationFile.getReplicaNumber()+"/"+ConfigurationFile.getKeyMode());
+  }
+}
@@ -0,0 +1,172 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scans the shared directory on several threads and compares it with the ShareManifest of the last run.
+ * Each directory is read with a DirectoryStream, its files being checked as they are listed, and its subdirectories
+ * are handed to the other threads of a fork-join pool.
+ * A file of the manifest with the same size and modification time is unchanged, the other files are added or changed.
+ * The files of the manifest not found are deleted, unless a directory could not be read.
+ */
+public class ShareScanner {
+
+  /**
+   * The shared directory.
+   */
+  private final File directory;
+  /**
+   * The manifest of the last run.
+   */
+  private final ShareManifest manifest;
+  /**
+   * The files found, unchanged since the last run or added and changed.
+   */
+  private final Queue<ShareManifest.Entry> unchanged = new ConcurrentLinkedQueue<ShareManifest.Entry>();
+  private final Queue<ShareManifest.Entry> changed = new ConcurrentLinkedQueue<ShareManifest.Entry>();
+  /**
+   * False if a directory could not be read, its files then being neither found nor deleted.
+   */
+  private volatile boolean complete = true;
+
+  /**
+   * Constructor of a scanner.
+   * @param directory - The shared directory.
+   * @param manifest - The manifest of the last run.
+   */
+  public ShareScanner(File directory, ShareManifest manifest) {
+    this.directory = directory;
+    this.manifest = manifest;
+  }
+
+  /**
+   * Scans the directory and its subdirectories.
+   * @param threads - The number of threads.
+   */
+  public void run(int threads) {
+    if (!directory.isDirectory()) {
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new Scan(directory.toPath(),""));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * @return unchanged - The files of the manifest found with the same size and modification time.
+   */
+  public List<ShareManifest.Entry> getUnchanged() {
+    return new ArrayList<ShareManifest.Entry>(unchanged);
+  }
+
+  /**
+   * @return changed - The files added or changed since the manifest was written, with their current size and modification time.
+   */
+  public List<ShareManifest.Entry> getChanged() {
+    return new ArrayList<ShareManifest.Entry>(changed);
+  }
+
+  /**
+   * @return deleted - The files of the manifest not found. None if a directory could not be read.
+   */
+  public List<ShareManifest.Entry> getDeleted() {
+    List<ShareManifest.Entry> deleted = new ArrayList<ShareManifest.Entry>();
+    for (ShareManifest.Entry entry : manifest.entries()) {
+      if (complete && !entry.isSeen()) {
+        deleted.add(entry);
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * @param entry - A file found by the scan.
+   * @return file - The file in the shared directory.
+   */
+  public File getFile(ShareManifest.Entry entry) {
+    return new File(directory,entry.getPath());
+  }
+
+  /**
+   * Compares a file with the manifest.
+   * @param path - The path of the file in the shared directory.
+   * @param name - The name of the file.
+   * @param attributes - The attributes of the file.
+   */
+  private void check(String path, String name, BasicFileAttributes attributes) {
+    long size = attributes.size();
+    long modified = attributes.lastModifiedTime().toMillis();
+    ShareManifest.Entry entry = manifest.get(path);
+    if (entry != null) {
+      entry.see();
+    }
+    if (entry != null && entry.matches(size,modified)) {
+      unchanged.add(entry);
+    }
+    else {
+      changed.add(new ShareManifest.Entry(path,size,modified,Key.of(name)));
+    }
+  }
+
+  /**
+   * The scan of a directory. Its subdirectories are scanned by tasks forked while it goes on.
+   */
+  private final class Scan extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path directory;
+    /**
+     * The path of the directory in the shared directory, ending with '/', or "" for the shared directory.
+     */
+    private final String prefix;
+
+    private Scan(Path directory, String prefix) {
+      this.directory = directory;
+      this.prefix = prefix;
+    }
+
+    protected void compute() {
+      List<Scan> subdirectories = new ArrayList<Scan>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        for (Path path : stream) {
+          BasicFileAttributes attributes;
+          try {
+            attributes = Files.readAttributes(path,BasicFileAttributes.class);
+          } catch (IOException e) {
+            continue;
+          }
+          String name = path.getFileName().toString();
+          if (attributes.isDirectory()) {
+            Scan scan = new Scan(path,prefix+name+"/");
+            scan.fork();
+            subdirectories.add(scan);
+          }
+          else if (attributes.isRegularFile()) {
+            check(prefix+name,name,attributes);
+          }
+        }
+      } catch (IOException e) {
+        System.out.println("The directory "+directory+" could not be read.");
+        complete = false;
+      }
+      for (Scan scan : subdirectories) {
+        scan.join();
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package sharingsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the shared directory and its subdirectories, and keeps the index up to date while the peer runs.
+ * The events are coalesced by path: once a change is seen, the watcher waits until no event came for WATCH_DELAY
+ * milliseconds, or WATCH_MAX_DELAY milliseconds at most, then registers the files created or modified and unregisters
+ * the files deleted. The files registered are then replicated.
+ * The watcher takes its own connections from the pool of PeerConnections, so it never blocks the interactive loop.
+ * The latency from the first event of a file to the answer of its server, when it can be searched,
+ * is measured and printed for each batch.
+ */
+public class ShareWatcher implements Runnable {
+
+  /**
+   * The action registering the files.
+   */
+  private final Action action;
+  /**
+   * The watch service, and the directory watched by each of its keys.
+   */
+  private final WatchService service;
+  private final Map<WatchKey,Path> directories = new HashMap<WatchKey,Path>();
+  private final Set<Path> watched = new HashSet<Path>();
+  /**
+   * The directories to read again because some of their events were lost.
+   */
+  private final Set<Path> lost = new HashSet<Path>();
+  /**
+   * The paths changed and not handled yet, with the time of their first event.
+   */
+  private final Map<Path,Long> pending = new LinkedHashMap<Path,Long>();
+  /**
+   * The number of changes handled and the sum and maximum of their latencies, in nanoseconds.
+   */
+  private long changes;
+  private long totalLatency;
+  private long maxLatency;
+
+  private ShareWatcher(Action action, WatchService service) {
+    this.action = action;
+    this.service = service;
+  }
+
+  /**
+   * Starts a daemon thread watching the shared directory of the configuration file.
+   * @param myId - The id of the peer.
+   * @return watcher - The watcher, or null if the directory could not be watched.
+   */
+  public static ShareWatcher start(int myId) {
+    Path root = new File(ConfigurationFile.getShareDirectory()).toPath();
+    ShareWatcher watcher;
+    try {
+      watcher = new ShareWatcher(new Action(myId),FileSystems.getDefault().newWatchService());
+      watcher.watch(root,null);
+    } catch (IOException e) {
+      System.out.println("The shared directory will not be watched. It could not be read.");
+      return null;
+    }
+    Thread thread = new Thread(watcher,"share-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    return watcher;
+  }
+
+  /**
+   * Waits for changes and handles them once they stop.
+   */
+  public void run() {
+    action.connect();
+    try {
+      while (true) {
+        collect(service.take());
+        long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(Constant.WATCH_MAX_DELAY);
+        WatchKey key;
+        while (System.nanoTime() < deadline
+            && (key = service.poll(Constant.WATCH_DELAY,TimeUnit.MILLISECONDS)) != null) {
+          collect(key);
+        }
+        handle();
+      }
+    } catch (InterruptedException e) {
+      ;
+    } catch (ClosedWatchServiceException e) {
+      ;
+    }
+  }
+
+  /**
+   * @return report - The number of changes handled and their latency.
+   */
+  public synchronized String report() {
+    return String.format("%d changes indexed, latency %.0f ms on average, %d ms at most.",changes,
+        changes == 0 ? 0.0 : totalLatency/1e6/changes,maxLatency/1000000);
+  }
+
+  /**
+   * Adds the paths of the events of a key to the pending changes.
+   * @param key - The key.
+   */
+  private void collect(WatchKey key) {
+    Path directory = directories.get(key);
+    long now = System.nanoTime();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (directory == null) {
+        continue;
+      }
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        System.out.println("Some changes of the shared directory were lost. It is read again.");
+        pending.put(directory,now);
+        lost.add(directory);
+      }
+      else if (!pending.containsKey(directory.resolve((Path) event.context()))) {
+        pending.put(directory.resolve((Path) event.context()),now);
+      }
+    }
+    if (!key.reset()) {
+      watched.remove(directories.remove(key));
+    }
+  }
+
+  /**
+   * Registers the files created or modified and unregisters the files deleted.
+   * A new directory is watched, and the files it already holds are registered. So are the files of a directory
+   * whose events were lost.
+   */
+  private void handle() {
+    List<File> files = new ArrayList<File>();
+    List<Long> times = new ArrayList<Long>();
+    int unregistered = 0;
+    for (Map.Entry<Path,Long> change : pending.entrySet()) {
+      Path path = change.getKey();
+      if (Files.isDirectory(path)) {
+        if (watched.contains(path) && !lost.remove(path)) {
+          continue;
+        }
+        List<Path> found = new ArrayList<Path>();
+        try {
+          watch(path,found);
+        } catch (IOException e) {
+          System.out.println("The directory "+path+" could not be watched.");
+        }
+        for (Path file : found) {
+          files.add(file.toFile());
+          times.add(change.getValue());
+        }
+      }
+      else if (Files.isRegularFile(path)) {
+        files.add(path.toFile());
+        times.add(change.getValue());
+      }
+      else {
+        try {
+          action.unregisterFile(path.getFileName().toString());
+          unregistered++;
+        } catch (ServerNotFoundException e) {
+          System.out.println("A server could not be found.");
+        } catch (RegistrationException e) {
+          ;
+        }
+        measure(change.getValue());
+      }
+    }
+    pending.clear();
+    List<File> registered = action.registerFiles(files);
+    for (int i = 0; i < files.size(); i++) {
+      measure(times.get(i));
+    }
+    System.out.println("Shared directory changed: "+registered.size()+" files registered, "+unregistered+" unregistered. "
+        +report());
+    action.replicateFiles(registered);
+  }
+
+  /**
+   * Records the latency of a change handled now.
+   * @param start - The time of the first event of the change.
+   */
+  private synchronized void measure(long start) {
+    long latency = System.nanoTime()-start;
+    changes++;
+    totalLatency += latency;
+    maxLatency = Math.max(maxLatency,latency);
+  }
+
+  /**
+   * Watches a directory and its subdirectories. A directory already watched is only read.
+   * @param directory - The directory.
+   * @param found - The list getting the files of the directories, or null.
+   * @throws IOException - If the directory could not be read or watched.
+   */
+  private void watch(Path directory, final List<Path> found) throws IOException {
+    Files.walkFileTree(directory,new SimpleFileVisitor<Path>() {
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+        if (watched.add(dir)) {
+          directories.put(dir.register(service,StandardWatchEventKinds.ENTRY_CREATE,StandardWatchEventKinds.ENTRY_MODIFY,
+              StandardWatchEventKinds.ENTRY_DELETE),dir);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+        if (found != null && attributes.isRegularFile()) {
+          found.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,166 @@
+package sharingsystem;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The 64-bit xxHash function. It can hash a whole array at once or a stream of bytes given piece by piece.
+ */
+public class XXHash64 {
+
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  /**
+   * The seed and the four accumulators of the stripes.
+   */
+  private final long seed;
+  private long v1, v2, v3, v4;
+  /**
+   * The bytes not forming a whole stripe yet.
+   */
+  private final byte[] pending = new byte[32];
+  private int pendingLength;
+  /**
+   * The number of bytes hashed.
+   */
+  private long total;
+
+  /**
+   * Constructor of a streaming hash with a seed of 0.
+   */
+  public XXHash64() {
+    this(0);
+  }
+
+  /**
+   * Constructor of a streaming hash.
+   * @param seed - The seed.
+   */
+  public XXHash64(long seed) {
+    this.seed = seed;
+    v1 = seed + PRIME1 + PRIME2;
+    v2 = seed + PRIME2;
+    v3 = seed;
+    v4 = seed - PRIME1;
+  }
+
+  /**
+   * Hashes a string as UTF-8 bytes.
+   * @param value - The string.
+   * @return hash - The hash.
+   */
+  public static long hash(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    return hash(bytes,0,bytes.length);
+  }
+
+  /**
+   * Hashes bytes with a seed of 0.
+   * @param data - The array.
+   * @param offset - The position of the bytes.
+   * @param length - The number of bytes.
+   * @return hash - The hash.
+   */
+  public static long hash(byte[] data, int offset, int length) {
+    XXHash64 hash = new XXHash64();
+    hash.update(data,offset,length);
+    return hash.digest();
+  }
+
+  /**
+   * Adds bytes to the hash.
+   * @param data - The array.
+   * @param offset - The position of the bytes.
+   * @param length - The number of bytes.
+   */
+  public void update(byte[] data, int offset, int length) {
+    total += length;
+    if (pendingLength > 0) {
+      int n = Math.min(32-pendingLength,length);
+      System.arraycopy(data,offset,pending,pendingLength,n);
+      pendingLength += n;
+      offset += n;
+      length -= n;
+      if (pendingLength < 32) {
+        return;
+      }
+      stripe(pending,0);
+      pendingLength = 0;
+    }
+    while (length >= 32) {
+      stripe(data,offset);
+      offset += 32;
+      length -= 32;
+    }
+    System.arraycopy(data,offset,pending,0,length);
+    pendingLength = length;
+  }
+
+  /**
+   * Returns the hash of the bytes added so far.
+   * @return hash - The hash.
+   */
+  public long digest() {
+    long h;
+    if (total >= 32) {
+      h = Long.rotateLeft(v1,1) + Long.rotateLeft(v2,7) + Long.rotateLeft(v3,12) + Long.rotateLeft(v4,18);
+      h = merge(h,v1);
+      h = merge(h,v2);
+      h = merge(h,v3);
+      h = merge(h,v4);
+    }
+    else {
+      h = seed + PRIME5;
+    }
+    h += total;
+    int i = 0;
+    for (; i+8 <= pendingLength; i += 8) {
+      h ^= round(0,readLong(pending,i));
+      h = Long.rotateLeft(h,27) * PRIME1 + PRIME4;
+    }
+    if (i+4 <= pendingLength) {
+      h ^= (readInt(pending,i) & 0xFFFFFFFFL) * PRIME1;
+      h = Long.rotateLeft(h,23) * PRIME2 + PRIME3;
+      i += 4;
+    }
+    for (; i < pendingLength; i++) {
+      h ^= (pending[i] & 0xFF) * PRIME5;
+      h = Long.rotateLeft(h,11) * PRIME1;
+    }
+    h ^= h >>> 33;
+    h *= PRIME2;
+    h ^= h >>> 29;
+    h *= PRIME3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  private void stripe(byte[] data, int offset) {
+    v1 = round(v1,readLong(data,offset));
+    v2 = round(v2,readLong(data,offset+8));
+    v3 = round(v3,readLong(data,offset+16));
+    v4 = round(v4,readLong(data,offset+24));
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * PRIME2;
+    acc = Long.rotateLeft(acc,31);
+    return acc * PRIME1;
+  }
+
+  private static long merge(long acc, long value) {
+    acc ^= round(0,value);
+    return acc * PRIME1 + PRIME4;
+  }
+
+  private static long readLong(byte[] data, int offset) {
+    return (readInt(data,offset) & 0xFFFFFFFFL) | ((long) readInt(data,offset+4) << 32);
+  }
+
+  private static int readInt(byte[] data, int offset) {
+    return (data[offset] & 0xFF) | (data[offset+1] & 0xFF) << 8 | (data[offset+2] & 0xFF) << 16 | (data[offset+3] & 0xFF) << 24;
+  }
+}